@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.*;
+
+
+/**
+ * Extracts timestamps from many files at once. Only the first
+ * {@link #HEADER_BYTES} (128 KB) of each file are read at first, since
+ * metadata segments precede the image data. A JPEG whose segments run past
+ * that, as when large ICC profiles come first, is read again in full.
+ * <p>
+ * Before any I/O is issued, the requests are sorted by on-disk locality.
+ * Java provides no portable access to physical block addresses, so files
+ * are ordered by device and inode number where the platform exposes them,
+ * which on most filesystems correlates strongly with allocation order.
+ * Files without an inode are ordered by path. A bounded number of reads are
+ * kept in flight at once, and results are returned in input order.
+ * <p>
+ * Results are stored in and served from a {@link MetadataCache}.
+ */
+public class BatchTimestampReader {
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int HEADER_BYTES = 128 * 1024;
+
+    private static final Pattern INODE_PAT = Pattern.compile("dev=(\\w+),ino=(\\d+)");
+
+
+    /**
+     * Convenience method that reads timestamps with default concurrency,
+     * default time sources and the shared cache.
+     *
+     * @return timestamps in input order. Files that are undated or could not be read are Long.MIN_VALUE.
+     */
+    public static long[] readTimestampsMicros(List<File> files) throws InterruptedException {
+        return new BatchTimestampReader(DEFAULT_CONCURRENCY, MetadataCache.shared()).read(files, TimeChain.DEFAULT);
+    }
+
+
+    private final int mConcurrency;
+    private final MetadataCache mCache;
+    private final IoScheduler mScheduler;
+    private SortMetrics mMetrics = null;
+
+
+    public BatchTimestampReader(int concurrency, MetadataCache cache) {
+        this(concurrency, cache, null);
+    }
+
+    /**
+     * @param scheduler Admits header reads per device, or null for no limits beyond <code>concurrency</code>.
+     */
+    public BatchTimestampReader(int concurrency, MetadataCache cache, IoScheduler scheduler) {
+        mConcurrency = Math.max(1, concurrency);
+        mCache = cache;
+        mScheduler = scheduler;
+    }
+
+
+    /**
+     * @param metrics Receives read and parse times, or null for none.
+     */
+    void setMetrics(SortMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @param chain Sources from which timestamps are taken.
+     * @return timestamps in input order. Files that are undated or could not be read are Long.MIN_VALUE.
+     */
+    public long[] read(List<File> files, TimeChain chain) throws InterruptedException {
+        FileMeta[] metas = readMeta(files);
+        long[] ret = new long[metas.length];
+
+        for(int i = 0; i < metas.length; i++)
+            ret[i] = (metas[i] == null ? Long.MIN_VALUE : chain.resolve(files.get(i), metas[i]).mMicros);
+
+        return ret;
+    }
+
+    /**
+     * @return metadata in input order. Entries for files that could not be read are null.
+     */
+    public FileMeta[] readMeta(List<File> files) throws InterruptedException {
+        return readMeta(files, SidecarIndex.DISK);
+    }
+
+    /**
+     * @param sidecars Index in which to look up XMP sidecars.
+     * @return metadata in input order. Entries for files that could not be read are null.
+     */
+    FileMeta[] readMeta(List<File> files, final SidecarIndex sidecars) throws InterruptedException {
+        final int len = files.size();
+        final FileMeta[] ret = new FileMeta[len];
+        final List<Request> pending = new ArrayList<Request>(len);
+
+        for(int i = 0; i < len; i++) {
+            File file = files.get(i);
+            MetadataCache.Key key;
+
+            try{
+                key = MetadataCache.keyFor(file);
+            }catch(IOException ex) {
+                continue;
+            }
+
+            if(key == null)
+                continue;
+
+            FileMeta meta = mCache.get(key);
+            if(meta != null) {
+                ret[i] = meta;
+            }else{
+                pending.add(new Request(i, file, key));
+            }
+        }
+
+        if(pending.isEmpty())
+            return ret;
+
+        Collections.sort(pending);
+
+        final AtomicInteger next = new AtomicInteger(0);
+        int threads = Math.min(mConcurrency, pending.size());
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+
+        try{
+            List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+
+            for(int t = 0; t < threads; t++) {
+                futures.add(exec.submit(new Runnable() {
+                    public void run() {
+                        for(int i = next.getAndIncrement(); i < pending.size(); i = next.getAndIncrement()) {
+                            if(Thread.currentThread().isInterrupted())
+                                return;
+
+                            Request req = pending.get(i);
+                            ret[req.mIndex] = readOne(req, sidecars);
+                        }
+                    }
+                }));
+            }
+
+            for(Future<?> f: futures) {
+                try{
+                    f.get();
+                }catch(ExecutionException ex) {
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+        }finally{
+            exec.shutdownNow();
+        }
+
+        return ret;
+    }
+
+
+
+    private FileMeta readOne(Request req, SidecarIndex sidecars) {
+        try{
+            long t = SortMetrics.start();
+            ByteBuffer buf = FileUtil.bufferHeader(req.mFile, HEADER_BYTES, mScheduler);
+            if(buf.remaining() >= HEADER_BYTES && TimestampReader.isHeadTruncated(buf)) {
+                //Parsing the head alone could miss the metadata, and would be cached as undated.
+                buf = FileUtil.bufferFile(req.mFile, mScheduler);
+            }
+
+            if(mMetrics != null)
+                mMetrics.record(SortMetrics.Stage.READ, t, buf.remaining());
+
+            t = SortMetrics.start();
+            FileMeta meta = TimestampReader.readFileMeta(req.mFile, buf, sidecars);
+            mCache.put(req.mKey, meta);
+            if(mMetrics != null)
+                mMetrics.record(SortMetrics.Stage.PARSE, t, 0L);
+            return meta;
+        }catch(IOException ex) {
+            return null;
+        }catch(RuntimeException ex) {
+            //Leave it to the caller to read the file again and report the failure.
+            return null;
+        }
+    }
+
+
+
+    private static final class Request implements Comparable<Request> {
+
+        final int mIndex;
+        final File mFile;
+        final MetadataCache.Key mKey;
+        final String mDevice;
+        final long mInode;
+
+
+        Request(int index, File file, MetadataCache.Key key) {
+            mIndex = index;
+            mFile = file;
+            mKey = key;
+
+            Matcher m = INODE_PAT.matcher(key.mId);
+            if(m.find()) {
+                mDevice = m.group(1);
+                mInode = Long.parseLong(m.group(2));
+            }else{
+                mDevice = "";
+                mInode = -1L;
+            }
+        }
+
+
+        public int compareTo(Request r) {
+            int c = mDevice.compareTo(r.mDevice);
+            if(c != 0)
+                return c;
+
+            if(mInode != r.mInode)
+                return mInode < r.mInode ? -1 : 1;
+
+            return mFile.getPath().compareTo(r.mFile.getPath());
+        }
+
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+/**
+ * When transferred files are forced to stable storage.
+ */
+public enum Durability {
+
+    NONE    ("none", "Never fsync. Fastest, but a power loss may leave truncated files"),
+    BATCHED ("batched", "Fsync files and their directories in groups on a background thread"),
+    FILE    ("file", "Fsync each file and its directory before moving on to the next");
+
+
+    private final String mName;
+    private final String mDescription;
+
+    Durability(String name, String description) {
+        mName = name;
+        mDescription = description;
+    }
+
+
+    public String durabilityName() {
+        return mName;
+    }
+
+    public String description() {
+        return mDescription;
+    }
+
+    public static Durability forName(String name) {
+        for(Durability d: values()) {
+            if(d.mName.equalsIgnoreCase(name))
+                return d;
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+
+/**
+ * Records what happened to each file without making the sort wait on the
+ * console or disk. Events are copied into a fixed ring of preallocated
+ * slots, and a dedicated thread formats and writes them in batches, so a
+ * slow terminal only stalls the sort once the ring is full. What happens
+ * then depends on the overflow policy: BLOCK waits for room, which loses
+ * nothing, while DROP discards the event and counts it. Dropped events are
+ * noted in the log once there is room again.
+ * <p>
+ * Two formats are written:
+ * <ul>
+ * <li>TEXT is the familiar console line, <code>source c&gt; target  [exif]</code>.</li>
+ * <li>TSV is one tab-separated record per file, for tools:
+ * <pre>
+ * millis  decision  source  target  time-source  bytes  transfer-nanos  message
+ * </pre>
+ * Decisions use the same words as a {@link SortPlan}, and paths are escaped
+ * the same way.</li>
+ * </ul>
+ */
+public class EventLog {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+
+    public enum Format {
+        TEXT,
+        TSV
+    }
+
+
+    public enum Overflow {
+        BLOCK ("block", "Wait for the log to catch up. Nothing is lost"),
+        DROP  ("drop", "Discard events while the log is behind, and note how many were lost");
+
+        private final String mName;
+        private final String mDescription;
+
+        Overflow(String name, String description) {
+            mName = name;
+            mDescription = description;
+        }
+
+        public String overflowName() {
+            return mName;
+        }
+
+        public String description() {
+            return mDescription;
+        }
+
+        public static Overflow forName(String name) {
+            for(Overflow o: values()) {
+                if(o.mName.equalsIgnoreCase(name))
+                    return o;
+            }
+
+            return null;
+        }
+    }
+
+
+    /**
+     * @return log writing TEXT to standard out, which is left open on close.
+     */
+    public static EventLog console(Overflow overflow) {
+        return new EventLog(new OutputStreamWriter(System.out), false, Format.TEXT, DEFAULT_CAPACITY, overflow);
+    }
+
+    /**
+     * @return log writing TSV to file, which is replaced.
+     */
+    public static EventLog open(File file, Overflow overflow) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        return new EventLog(out, true, Format.TSV, DEFAULT_CAPACITY, overflow);
+    }
+
+
+    private final Writer mOut;
+    private final boolean mCloseOut;
+    private final Format mFormat;
+    private final Overflow mOverflow;
+    private final Thread mThread;
+
+    private final Event[] mRing;
+    private long mHead = 0;
+    private long mTail = 0;
+    private long mDropped = 0;
+    private long mUnreported = 0;
+    private boolean mClosed = false;
+    private IOException mError = null;
+
+
+    /**
+     * @param out      Destination. Written only by the log thread.
+     * @param closeOut If true, out is closed when the log is.
+     * @param capacity Events held before the overflow policy applies.
+     */
+    public EventLog(Writer out, boolean closeOut, Format format, int capacity, Overflow overflow) {
+        mOut = (out instanceof BufferedWriter ? out : new BufferedWriter(out, 1 << 16));
+        mCloseOut = closeOut;
+        mFormat = format;
+        mOverflow = (overflow != null ? overflow : Overflow.BLOCK);
+        mRing = new Event[Math.max(1, capacity)];
+        for(int i = 0; i < mRing.length; i++)
+            mRing[i] = new Event();
+
+        mThread = new Thread("EventLog") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+
+    /**
+     * @param mode  Mode actually used.
+     * @param bytes Size of file.
+     * @param nanos Time taken by the transfer.
+     */
+    public void transferred(File source, File target, TransferMode mode, TimeSource time, long bytes, long nanos) {
+        post(SortPlan.decisionFor(mode), mode.symbol(), source, target, time, bytes, nanos, null);
+    }
+
+    /**
+     * @param target Identical file already in place.
+     */
+    public void duplicate(File source, File target, TimeSource time) {
+        post(SortPlan.DUPLICATE, "==", source, target, time, source.length(), 0L, null);
+    }
+
+    public void failed(File source, String message) {
+        post(SortPlan.ERROR, "!!", source, null, null, -1L, 0L, message);
+    }
+
+    /**
+     * @return events posted but not yet written.
+     */
+    public synchronized int backlog() {
+        return (int)(mTail - mHead);
+    }
+
+    /**
+     * @return events discarded so far under the DROP policy.
+     */
+    public synchronized long dropped() {
+        return mDropped;
+    }
+
+    /**
+     * Writes everything posted so far and stops the log thread.
+     *
+     * @throws IOException if any write failed.
+     */
+    public void close() throws IOException {
+        synchronized(this) {
+            if(mClosed)
+                return;
+
+            mClosed = true;
+            notifyAll();
+        }
+
+        boolean interrupted = false;
+        while(true) {
+            try{
+                mThread.join();
+                break;
+            }catch(InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+
+        try{
+            if(mCloseOut) {
+                mOut.close();
+            }else{
+                mOut.flush();
+            }
+        }catch(IOException ex) {
+            if(mError == null)
+                mError = ex;
+        }
+
+        if(mError != null)
+            throw mError;
+    }
+
+
+
+    private synchronized void post(String decision,
+                                   String symbol,
+                                   File source,
+                                   File target,
+                                   TimeSource time,
+                                   long bytes,
+                                   long nanos,
+                                   String message)
+    {
+        if(mClosed)
+            return;
+
+        while(mTail - mHead >= mRing.length) {
+            if(mOverflow == Overflow.DROP) {
+                mDropped++;
+                mUnreported++;
+                return;
+            }
+
+            try{
+                wait();
+            }catch(InterruptedException ex) {
+                //Let the sort see the interrupt. This event is lost.
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if(mClosed)
+                return;
+        }
+
+        Event e = mRing[(int)(mTail % mRing.length)];
+        e.mMillis = System.currentTimeMillis();
+        e.mDecision = decision;
+        e.mSymbol = symbol;
+        e.mSource = source;
+        e.mTarget = target;
+        e.mTime = time;
+        e.mBytes = bytes;
+        e.mNanos = nanos;
+        e.mMessage = message;
+
+        if(mTail++ == mHead)
+            notifyAll();
+    }
+
+    private void writeLoop() {
+        Event[] batch = new Event[mRing.length];
+        for(int i = 0; i < batch.length; i++)
+            batch[i] = new Event();
+
+        while(true) {
+            int n;
+            long dropped;
+
+            synchronized(this) {
+                while(mTail == mHead && mUnreported == 0 && !mClosed) {
+                    try{
+                        wait();
+                    }catch(InterruptedException ex) {
+                        //Only close() may stop the log.
+                    }
+                }
+
+                if(mTail == mHead && mUnreported == 0)
+                    return;
+
+                n = (int)(mTail - mHead);
+                for(int i = 0; i < n; i++) {
+                    //Swap slots rather than copy, so the ring is free again as soon as the lock is released.
+                    int slot = (int)((mHead + i) % mRing.length);
+                    Event e = mRing[slot];
+                    mRing[slot] = batch[i];
+                    batch[i] = e;
+                }
+
+                mHead = mTail;
+                dropped = mUnreported;
+                mUnreported = 0;
+                notifyAll();
+            }
+
+            try{
+                if(dropped > 0)
+                    writeDropped(dropped);
+
+                for(int i = 0; i < n; i++) {
+                    write(batch[i]);
+                    batch[i].clear();
+                }
+
+                boolean idle;
+                synchronized(this) {
+                    idle = (mTail == mHead);
+                }
+
+                //Flush only once caught up, so a burst goes out in as few writes as possible.
+                if(idle)
+                    mOut.flush();
+            }catch(IOException ex) {
+                //Keep draining so producers never block on a dead log.
+                synchronized(this) {
+                    if(mError == null)
+                        mError = ex;
+                }
+            }
+        }
+    }
+
+    private void write(Event e) throws IOException {
+        StringBuilder s = new StringBuilder(256);
+
+        if(mFormat == Format.TEXT) {
+            s.append(e.mSource.getPath()).append(' ').append(e.mSymbol).append(' ');
+            if(e.mTarget != null) {
+                s.append(e.mTarget.getPath());
+                s.append(e.mTime == null ? "  [undated]" : "  [" + e.mTime.sourceName() + "]");
+            }
+            if(e.mMessage != null)
+                s.append(e.mMessage);
+
+        }else{
+            s.append(e.mMillis).append('\t');
+            s.append(e.mDecision).append('\t');
+            s.append(SortPlan.escape(e.mSource.getPath())).append('\t');
+            s.append(e.mTarget == null ? "-" : SortPlan.escape(e.mTarget.getPath())).append('\t');
+            s.append(e.mTime == null ? "-" : e.mTime.sourceName()).append('\t');
+            s.append(e.mBytes).append('\t');
+            s.append(e.mNanos).append('\t');
+            s.append(e.mMessage == null ? "-" : SortPlan.escape(e.mMessage));
+        }
+
+        mOut.write(s.append('\n').toString());
+    }
+
+    private void writeDropped(long n) throws IOException {
+        if(mFormat == Format.TEXT) {
+            mOut.write("[" + n + " log events dropped]\n");
+        }else{
+            mOut.write("# dropped\t" + n + "\n");
+        }
+    }
+
+
+
+    private static final class Event {
+        long mMillis;
+        String mDecision;
+        String mSymbol;
+        File mSource;
+        File mTarget;
+        TimeSource mTime;
+        long mBytes;
+        long mNanos;
+        String mMessage;
+
+        void clear() {
+            mSource = null;
+            mTarget = null;
+            mTime = null;
+            mMessage = null;
+        }
+    }
+
+}
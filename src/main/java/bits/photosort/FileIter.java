@@ -16,25 +16,66 @@ class FileIter {
     private final File mDir;
     private final String mStart;
     private final String mStop;
+    private final String mTag;
     private int mNumber = 0;
     
     
     public FileIter(File dir, String start, String stop) {
+        this(dir, start, stop, null);
+    }
+    
+    /**
+     * @param tag If not null, names after the first are start-tag, start-tag-1, start-tag-2...
+     *            The first name is still untagged, and goes to whichever file claims it first.
+     *            Given a tag derived from file contents, only the suffixed names a colliding
+     *            file receives are independent of arrival order.
+     */
+    public FileIter(File dir, String start, String stop, String tag) {
         mDir = dir;
         mStart = start;
         mStop = stop;
+        mTag = tag;
     }
     
     
     public File next() {
-        if(mNumber == 0) {
-            mNumber++;
+        return get(mNumber++);
+    }
+    
+    /**
+     * @param number Position in sequence, from 0.
+     * @return name at that position.
+     */
+    public File get(int number) {
+        if(number == 0)
             return new File(mDir, mStart + mStop);
-        }
         
-        File ret = new File(mDir, mStart + "-" + mNumber + mStop);
-        mNumber++;
-        return ret;
+        if(mTag == null)
+            return new File(mDir, mStart + "-" + number + mStop);
+        
+        if(number == 1)
+            return new File(mDir, mStart + "-" + mTag + mStop);
+        
+        return new File(mDir, mStart + "-" + mTag + "-" + (number - 1) + mStop);
+    }
+    
+    public File dir() {
+        return mDir;
+    }
+    
+    public String start() {
+        return mStart;
+    }
+    
+    public String stop() {
+        return mStop;
+    }
+    
+    /**
+     * @return tag placed in names after the first, or null if none.
+     */
+    public String tag() {
+        return mTag;
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+/**
+ * Metadata extracted from the contents of a single file. Only values that
+ * require parsing the file are held here; cheap sources such as file names
+ * and modification times are evaluated by {@link TimeChain} on demand, so
+ * cached entries stay valid regardless of how the chain is configured.
+ * <p>
+ * Instances are immutable so they may be shared freely between threads
+ * through a {@link MetadataCache}.
+ */
+public final class FileMeta {
+
+    /**
+     * Approximate heap footprint of one instance, used for cache accounting.
+     */
+    static final int BYTES = 48;
+
+    /**
+     * EXIF timestamp in micros, or Long.MIN_VALUE if none.
+     */
+    public final long mExifMicros;
+
+    /**
+     * XMP timestamp in micros, from embedded packet or sidecar, or Long.MIN_VALUE if none.
+     */
+    public final long mXmpMicros;
+
+    /**
+     * True iff <code>mHash</code> holds a content hash.
+     */
+    public final boolean mHasHash;
+
+    /**
+     * xxHash64 of file contents, computed while the file was last copied.
+     */
+    public final long mHash;
+
+
+    public FileMeta(long exifMicros, long xmpMicros) {
+        this(exifMicros, xmpMicros, false, 0L);
+    }
+
+    public FileMeta(long exifMicros, long xmpMicros, boolean hasHash, long hash) {
+        mExifMicros = exifMicros;
+        mXmpMicros = xmpMicros;
+        mHasHash = hasHash;
+        mHash = hash;
+    }
+
+
+    /**
+     * @return copy of this metadata with content hash set.
+     */
+    public FileMeta withHash(long hash) {
+        return new FileMeta(mExifMicros, mXmpMicros, true, hash);
+    }
+
+}
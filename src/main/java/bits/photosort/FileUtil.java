@@ -14,6 +14,10 @@ package bits.photosort;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /** 
@@ -37,25 +41,42 @@ public class FileUtil {
         }
     };
     
+    private static final int COPY_BUFFER_SIZE = 1 << 20;
+    
     private static final String COPY_COMMAND;
     private static final String MOVE_COMMAND;
+    private static final String[] CLONE_COMMAND;
     
     static {
         String osName = System.getProperty("os.name");
         String copyCommand;
         String moveCommand;
+        String[] cloneCommand;
         
         if(osName == null || osName.toLowerCase().contains("win")){
             copyCommand = "copy";
             moveCommand = "move";
+            cloneCommand = null;
+        }else if(osName.toLowerCase().contains("mac")) {
+            copyCommand = "cp";
+            moveCommand = "mv";
+            cloneCommand = new String[]{ "cp", "-c" };
         }else{
             copyCommand = "cp";
             moveCommand = "mv";
+            cloneCommand = new String[]{ "cp", "--reflink=always" };
         }
         
         COPY_COMMAND = copyCommand;
         MOVE_COMMAND = moveCommand;
+        CLONE_COMMAND = cloneCommand;
     }
+    
+    /**
+     * Pairs of source and target directories on which cloning has failed.
+     * Further clones between them go straight to a copy.
+     */
+    private static final Set<String> sNoClone = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
 
     
     /**
@@ -74,19 +95,59 @@ public class FileUtil {
     }
 
     public static ByteBuffer bufferFile(File file) throws IOException {
-        long size = file.length();
+        return bufferFile(file, null);
+    }
+    
+    /**
+     * @param sched Scheduler admitting the read, or null.
+     */
+    public static ByteBuffer bufferFile(File file, IoScheduler sched) throws IOException {
+        return bufferHeader(file, Integer.MAX_VALUE, sched);
+    }
+    
+    /**
+     * Reads at most <code>maxBytes</code> from the start of a file.
+     */
+    public static ByteBuffer bufferHeader(File file, int maxBytes) throws IOException {
+        return bufferHeader(file, maxBytes, null);
+    }
+    
+    /**
+     * Reads at most <code>maxBytes</code> from the start of a file.
+     * 
+     * @param sched Scheduler admitting the read, or null.
+     */
+    public static ByteBuffer bufferHeader(File file, int maxBytes, IoScheduler sched) throws IOException {
+        FlightEvents.FileStage ev = FlightEvents.beginStage();
+        IoScheduler.Permit permit = acquire(sched, file, null);
+        FileChannel chan = null;
+        long read = 0;
         
-        ByteBuffer buf = ByteBuffer.allocate((int)(size & 0x7FFFFFFF));
-        FileChannel chan = new FileInputStream(file).getChannel();
-        while(buf.remaining() > 0) {
-            int n = chan.read(buf);
-            if(n <= 0)
-                throw new IOException("Read operation failed.");
+        try{
+            chan = new FileInputStream(file).getChannel();
+            long size = Math.min(chan.size() & 0x7FFFFFFF, maxBytes);
+            ByteBuffer buf = ByteBuffer.allocate((int)size);
+            while(buf.remaining() > 0) {
+                //Read in chunks so a bandwidth cap paces the read rather than delaying it whole.
+                buf.limit(Math.min(buf.capacity(), buf.position() + COPY_BUFFER_SIZE));
+                consume(permit, buf.remaining());
+                while(buf.remaining() > 0) {
+                    int n = chan.read(buf);
+                    if(n <= 0)
+                        throw new IOException("Read operation failed.");
+                }
+            }
+            
+            buf.flip();
+            read = buf.remaining();
+            return buf;
+        }finally{
+            if(chan != null)
+                chan.close();
+            
+            release(permit);
+            FlightEvents.endStage(ev, "read", file, read);
         }
-        
-        chan.close();
-        buf.flip();
-        return buf;
     }
     
     
@@ -99,6 +160,32 @@ public class FileUtil {
      * @throws IOException if writing fails. 
      */
     public static void copyFile(File source, File target) throws IOException {
+        copyFile(source, target, null);
+    }
+    
+    /**
+     * Copies source file to target file.
+     * 
+     * @param sched Scheduler admitting the copy, or null.
+     * @throws InterruptedIOException if thread is interrupted.  Attempts to delete partial file if this occurs.
+     * @throws IOException if writing fails. 
+     */
+    public static void copyFile(File source, File target, IoScheduler sched) throws IOException {
+        FlightEvents.FileStage ev = FlightEvents.beginStage();
+        IoScheduler.Permit permit = acquire(sched, source, target);
+        long size = source.length();
+        try{
+            //The copy runs out of process, so its bytes are charged up front.
+            consume(permit, size);
+            claim(target);
+            execCopy(source, target);
+        }finally{
+            release(permit);
+            FlightEvents.endStage(ev, "copy", source, size);
+        }
+    }
+    
+    private static void execCopy(File source, File target) throws IOException {
         Process p = Runtime.getRuntime().exec(new String[]{
                 COPY_COMMAND,
                 source.getAbsolutePath(),
@@ -108,8 +195,10 @@ public class FileUtil {
         try{
             int ret = p.waitFor();
         
-            if(ret != 0)
+            if(ret != 0) {
+                target.delete();
                 throw new IOException("Failed to copy " + source.getAbsolutePath() + " to " + target.getAbsolutePath());
+            }
         
         }catch(InterruptedException ex) {
             p.destroy();
@@ -118,7 +207,253 @@ public class FileUtil {
         }
     }
     
+    /**
+     * Copies source file to target file in-process, computing an xxHash64
+     * of the contents as they stream through.
+     * 
+     * @return hash of copied bytes.
+     * @throws InterruptedIOException if thread is interrupted.  Partial file is deleted if this occurs.
+     * @throws IOException if reading or writing fails. Partial file is deleted if this occurs.
+     */
+    public static long copyFileHashed(File source, File target) throws IOException {
+        return copyFileHashed(source, target, null);
+    }
+    
+    /**
+     * Copies source file to target file in-process, computing an xxHash64
+     * of the contents as they stream through.
+     * 
+     * @param sched Scheduler admitting the copy, or null.
+     * @return hash of copied bytes.
+     * @throws InterruptedIOException if thread is interrupted.  Partial file is deleted if this occurs.
+     * @throws IOException if reading or writing fails. Partial file is deleted if this occurs.
+     */
+    public static long copyFileHashed(File source, File target, IoScheduler sched) throws IOException {
+        FlightEvents.FileStage ev = FlightEvents.beginStage();
+        long copied = 0;
+        XxHash64 hash = new XxHash64();
+        ByteBuffer buf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        IoScheduler.Permit permit = acquire(sched, source, target);
+        FileChannel in = null;
+        FileChannel out = null;
+        boolean ok = false;
+        
+        try{
+            in = new FileInputStream(source).getChannel();
+            out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            
+            while(in.read(buf) >= 0) {
+                if(Thread.interrupted())
+                    throw new InterruptedIOException();
+                
+                buf.flip();
+                consume(permit, buf.remaining());
+                copied += buf.remaining();
+                hash.update(buf);
+                while(buf.hasRemaining())
+                    out.write(buf);
+                
+                buf.clear();
+            }
+            
+            ok = true;
+        }finally{
+            if(in != null)
+                in.close();
+            if(out != null)
+                out.close();
+            
+            //Only remove target if this call created it.
+            if(!ok && out != null)
+                target.delete();
+            
+            release(permit);
+            FlightEvents.endStage(ev, "copy", source, copied);
+        }
+        
+        return hash.digest();
+    }
+    
+    /**
+     * @return xxHash64 of file contents.
+     */
+    public static long hashFile(File file) throws IOException {
+        return hashFile(file, null);
+    }
+    
+    /**
+     * @param sched Scheduler admitting the read, or null.
+     * @return xxHash64 of file contents.
+     */
+    public static long hashFile(File file, IoScheduler sched) throws IOException {
+        FlightEvents.FileStage ev = FlightEvents.beginStage();
+        long read = 0;
+        XxHash64 hash = new XxHash64();
+        ByteBuffer buf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        IoScheduler.Permit permit = acquire(sched, file, null);
+        FileChannel in = null;
+        
+        try{
+            in = new FileInputStream(file).getChannel();
+            while(in.read(buf) >= 0) {
+                if(Thread.interrupted())
+                    throw new InterruptedIOException();
+                
+                buf.flip();
+                consume(permit, buf.remaining());
+                read += buf.remaining();
+                hash.update(buf);
+                buf.clear();
+            }
+        }finally{
+            if(in != null)
+                in.close();
+            
+            release(permit);
+            FlightEvents.endStage(ev, "hash", file, read);
+        }
+        
+        return hash.digest();
+    }
+    
+    /**
+     * Hard links target to source. If the link cannot be made, typically
+     * because source and target are on different filesystems, the file is
+     * copied instead.
+     * 
+     * @return true if linked, false if copied.
+     */
+    public static boolean linkFile(File source, File target) throws IOException {
+        return linkFile(source, target, null);
+    }
+    
+    /**
+     * @param sched Scheduler admitting the operation, or null.
+     * @return true if linked, false if copied.
+     */
+    public static boolean linkFile(File source, File target, IoScheduler sched) throws IOException {
+        try{
+            FlightEvents.FileStage ev = FlightEvents.beginStage();
+            IoScheduler.Permit permit = acquire(sched, source, target);
+            try{
+                Files.createLink(target.toPath(), source.toPath());
+                return true;
+            }finally{
+                release(permit);
+                FlightEvents.endStage(ev, "link", source, 0L);
+            }
+        }catch(InterruptedIOException ex) {
+            throw ex;
+        }catch(FileAlreadyExistsException ex) {
+            throw ex;
+        }catch(IOException ex) {
+            copyFile(source, target, sched);
+            return false;
+        }catch(UnsupportedOperationException ex) {
+            copyFile(source, target, sched);
+            return false;
+        }
+    }
+    
+    /**
+     * Makes target a copy-on-write clone of source, so no data blocks are
+     * copied. Uses clonefile on macOS and reflink on Linux. If the
+     * filesystem cannot clone, the file is copied instead, and later
+     * clones between the same pair of directories skip the attempt.
+     * <p>
+     * The clone is made under a temporary name beside the target and then
+     * linked into place, since a failed clone may leave a truncated file
+     * behind. An existing target is never replaced.
+     * 
+     * @return true if cloned, false if copied.
+     * @throws FileAlreadyExistsException if target exists.
+     */
+    public static boolean cloneFile(File source, File target) throws IOException {
+        return cloneFile(source, target, null);
+    }
+    
+    /**
+     * @param sched Scheduler admitting the operation, or null.
+     * @return true if cloned, false if copied.
+     */
+    public static boolean cloneFile(File source, File target, IoScheduler sched) throws IOException {
+        String pair = source.getParent() + File.pathSeparator + target.getParent();
+        if(CLONE_COMMAND == null || sNoClone.contains(pair)) {
+            copyFile(source, target, sched);
+            return false;
+        }
+        
+        if(target.exists())
+            throw new FileAlreadyExistsException(target.getPath());
+        
+        File tmp = Files.createTempFile(target.getAbsoluteFile().getParentFile().toPath(), ".photosort-", ".clone").toFile();
+        String[] cmd = Arrays.copyOf(CLONE_COMMAND, CLONE_COMMAND.length + 2);
+        cmd[cmd.length - 2] = source.getAbsolutePath();
+        cmd[cmd.length - 1] = tmp.getAbsolutePath();
+        
+        try{
+            FlightEvents.FileStage ev = FlightEvents.beginStage();
+            IoScheduler.Permit permit = acquire(sched, source, target);
+            Process p = null;
+            boolean cloned;
+            try{
+                p = Runtime.getRuntime().exec(cmd);
+                cloned = (p.waitFor() == 0);
+            }catch(InterruptedException ex) {
+                p.destroy();
+                throw new InterruptedIOException(ex.getMessage());
+            }finally{
+                release(permit);
+                FlightEvents.endStage(ev, "clone", source, 0L);
+            }
+            
+            if(cloned) {
+                place(tmp, target);
+                return true;
+            }
+        }finally{
+            tmp.delete();
+        }
+        
+        sNoClone.add(pair);
+        copyFile(source, target, sched);
+        return false;
+    }
+    
     public static void moveFile(File source, File target) throws IOException {
+        moveFile(source, target, null);
+    }
+    
+    /**
+     * @param sched Scheduler admitting the move, or null.
+     */
+    public static void moveFile(File source, File target, IoScheduler sched) throws IOException {
+        FlightEvents.FileStage ev = FlightEvents.beginStage();
+        IoScheduler.Permit permit = acquire(sched, source, target);
+        long size = source.length();
+        try{
+            //A move within one device is a rename. Across devices, every byte is copied.
+            if(permit != null && permit.spansDevices())
+                consume(permit, size);
+            
+            Object placeholder = claim(target);
+            boolean done = false;
+            try{
+                execMove(source, target);
+                done = true;
+            }finally{
+                //Drop the placeholder, or a partial target while the source is still whole. A target
+                //that replaced the placeholder after the source went away is the only copy left.
+                if(!done && (source.exists() || isSameFile(target, placeholder)))
+                    target.delete();
+            }
+        }finally{
+            release(permit);
+            FlightEvents.endStage(ev, "move", source, size);
+        }
+    }
+    
+    private static void execMove(File source, File target) throws IOException {
         Process p = Runtime.getRuntime().exec(new String[]{
                 MOVE_COMMAND,
                 source.getAbsolutePath(),
@@ -141,6 +476,76 @@ public class FileUtil {
     
     
     
+    /**
+     * Creates target as an empty file, failing if it already exists, so
+     * that out-of-process copies and moves cannot overwrite a file placed
+     * by another process between the caller's existence check and the
+     * transfer. The transfer then replaces the placeholder.
+     * 
+     * @return key identifying the placeholder, or null if the file system provides none.
+     * @throws FileAlreadyExistsException if target exists.
+     */
+    private static Object claim(File target) throws IOException {
+        Path path = Files.createFile(target.toPath());
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+    
+    /**
+     * @return true if file is still the one identified by key. Without a key, any empty file is taken to be it.
+     */
+    private static boolean isSameFile(File file, Object key) {
+        try{
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return key != null ? key.equals(attrs.fileKey()) : attrs.size() == 0;
+        }catch(IOException ex) {
+            return false;
+        }
+    }
+    
+    /**
+     * Gives a file made under a temporary name its final name, failing
+     * rather than replacing anything already there. The temporary name
+     * may remain, for the caller to remove.
+     * 
+     * @throws FileAlreadyExistsException if target exists.
+     */
+    private static void place(File tmp, File target) throws IOException {
+        try{
+            Files.createLink(target.toPath(), tmp.toPath());
+            return;
+        }catch(FileAlreadyExistsException ex) {
+            throw ex;
+        }catch(IOException ex) {
+            //No hard links here. Fall through.
+        }catch(UnsupportedOperationException ex) {
+            //Fall through.
+        }
+        
+        //Only the placeholder made here is replaced.
+        claim(target);
+        try{
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch(IOException ex) {
+            target.delete();
+            throw ex;
+        }
+    }
+    
+    private static IoScheduler.Permit acquire(IoScheduler sched, File a, File b) throws IOException {
+        return sched == null ? null : sched.acquire(a, b);
+    }
+    
+    private static void consume(IoScheduler.Permit permit, long bytes) throws InterruptedIOException {
+        if(permit != null)
+            permit.consume(bytes);
+    }
+    
+    private static void release(IoScheduler.Permit permit) {
+        if(permit != null)
+            permit.release();
+    }
+    
+    
     public static boolean diff(File f1, File f2) throws IOException {
         if(f1 != null && !f1.exists())
             f1 = null;
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.util.*;
+import java.util.regex.*;
+
+
+/**
+ * Finds dates embedded in file names, as written by phones, messengers and
+ * screenshot tools: <code>IMG_20230412_101500.jpg</code>,
+ * <code>PXL_20230412_101500123.jpg</code>,
+ * <code>2023-04-12 10.15.00.jpg</code>,
+ * <code>Screenshot_2023-04-12-10-15-00.png</code>,
+ * <code>IMG-20230412-WA0001.jpg</code>.
+ * <p>
+ * Patterns are compiled once. Since most names hold no date at all, names
+ * with fewer than eight digits are rejected before any pattern is tried.
+ * Patterns use named groups <code>y</code>, <code>mo</code>, <code>d</code>
+ * and optionally <code>h</code>, <code>mi</code>, <code>s</code>.
+ */
+public class FilenameDateScanner {
+
+    public static final String[] DEFAULT_PATTERNS = {
+        //Date and time, with optional separators.
+        "(?<!\\d)(?<y>(?:19|20)\\d\\d)[-_.]?(?<mo>0[1-9]|1[0-2])[-_.]?(?<d>0[1-9]|[12]\\d|3[01])" +
+        "[-_. T]?(?<h>[01]\\d|2[0-3])[-_.:]?(?<mi>[0-5]\\d)[-_.:]?(?<s>[0-5]\\d)",
+
+        //Date only.
+        "(?<!\\d)(?<y>(?:19|20)\\d\\d)[-_.]?(?<mo>0[1-9]|1[0-2])[-_.]?(?<d>0[1-9]|[12]\\d|3[01])(?!\\d)"
+    };
+
+    public static final FilenameDateScanner DEFAULT = new FilenameDateScanner(Arrays.asList(DEFAULT_PATTERNS));
+
+
+    private final Pattern[] mPatterns;
+    private final boolean[] mHasTime;
+    private final boolean[] mHasSeconds;
+
+
+    public FilenameDateScanner(List<String> patterns) throws IllegalArgumentException {
+        mPatterns = new Pattern[patterns.size()];
+        mHasTime = new boolean[patterns.size()];
+        mHasSeconds = new boolean[patterns.size()];
+
+        for(int i = 0; i < mPatterns.length; i++) {
+            String p = patterns.get(i);
+            if(!p.contains("?<y>") || !p.contains("?<mo>") || !p.contains("?<d>"))
+                throw new IllegalArgumentException("Filename date pattern must define groups y, mo and d: " + p);
+
+            mPatterns[i] = Pattern.compile(p);
+            mHasTime[i] = p.contains("?<h>") && p.contains("?<mi>");
+            mHasSeconds[i] = mHasTime[i] && p.contains("?<s>");
+        }
+    }
+
+
+    /**
+     * Finds a date in file name. Dates are interpreted in the local zone.
+     *
+     * @return timestamp in micros, or Long.MIN_VALUE if none found.
+     */
+    public long scanMicros(String name) {
+        int digits = 0;
+        for(int i = 0; i < name.length() && digits < 8; i++) {
+            char c = name.charAt(i);
+            if(c >= '0' && c <= '9')
+                digits++;
+        }
+
+        if(digits < 8)
+            return Long.MIN_VALUE;
+
+        for(int i = 0; i < mPatterns.length; i++) {
+            Matcher m = mPatterns[i].matcher(name);
+            if(!m.find())
+                continue;
+
+            Calendar cal = Calendar.getInstance();
+            cal.clear();
+            cal.set(Integer.parseInt(m.group("y")),
+                    Integer.parseInt(m.group("mo")) - 1,
+                    Integer.parseInt(m.group("d")));
+
+            if(mHasTime[i]) {
+                cal.set(Calendar.HOUR_OF_DAY, Integer.parseInt(m.group("h")));
+                cal.set(Calendar.MINUTE, Integer.parseInt(m.group("mi")));
+
+                if(mHasSeconds[i] && m.group("s") != null)
+                    cal.set(Calendar.SECOND, Integer.parseInt(m.group("s")));
+            }
+
+            return cal.getTimeInMillis() * 1000L;
+        }
+
+        return Long.MIN_VALUE;
+    }
+
+}
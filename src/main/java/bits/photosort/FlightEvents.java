@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import jdk.jfr.*;
+
+
+/**
+ * Java Flight Recorder events for sorting, so that GC pauses, I/O stalls
+ * and lock contention in a recording can be tied to the files being
+ * handled at the time. Events appear under "PhotoSort" in JDK Mission
+ * Control.
+ * <p>
+ * When no recording is running, an event costs an allocation that the JIT
+ * removes and a check of a disabled flag. Fields are only filled in once
+ * an event is known to be committed, so paths are not formatted for
+ * nothing.
+ */
+final class FlightEvents {
+
+    @Name("bits.photosort.FileStage")
+    @Label("File Stage")
+    @Description("One read, parse or transfer step applied to a file")
+    @Category("PhotoSort")
+    @StackTrace(false)
+    static final class FileStage extends Event {
+        @Name("stage") @Label("Stage")
+        String mStage;
+
+        @Name("path") @Label("Path")
+        String mPath;
+
+        @Name("format") @Label("Format")
+        String mFormat;
+
+        @Name("bytes") @Label("Bytes") @DataAmount
+        long mBytes;
+    }
+
+
+    @Name("bits.photosort.SortFile")
+    @Label("Sort File")
+    @Description("Everything done to sort one file, from metadata lookup to placement")
+    @Category("PhotoSort")
+    @StackTrace(false)
+    static final class SortFile extends Event {
+        @Name("path") @Label("Path")
+        String mPath;
+
+        @Name("format") @Label("Format")
+        String mFormat;
+
+        @Name("size") @Label("Size") @DataAmount
+        long mSize;
+
+        @Name("outcome") @Label("Outcome")
+        String mOutcome;
+
+        @Name("timeSource") @Label("Time Source")
+        String mTimeSource;
+    }
+
+
+    static FileStage beginStage() {
+        FileStage e = new FileStage();
+        e.begin();
+        return e;
+    }
+
+    /**
+     * @param bytes Bytes read, written or parsed.
+     */
+    static void endStage(FileStage e, String stage, File file, long bytes) {
+        e.end();
+        if(!e.shouldCommit())
+            return;
+
+        e.mStage = stage;
+        e.mPath = file.getPath();
+        e.mFormat = formatOf(file);
+        e.mBytes = bytes;
+        e.commit();
+    }
+
+    static SortFile beginSort() {
+        SortFile e = new SortFile();
+        e.begin();
+        return e;
+    }
+
+    /**
+     * @param outcome Decision made for the file, in the words used by {@link SortPlan}.
+     * @param time    Source of the timestamp used, or null if undated or unknown.
+     */
+    static void endSort(SortFile e, File file, long size, String outcome, TimeSource time) {
+        e.end();
+        if(!e.shouldCommit())
+            return;
+
+        e.mPath = file.getPath();
+        e.mFormat = formatOf(file);
+        e.mSize = size;
+        e.mOutcome = outcome;
+        e.mTimeSource = (time == null ? null : time.sourceName());
+        e.commit();
+    }
+
+    /**
+     * Starts a recording with the JDK's "profile" settings plus the events
+     * above. The recording is written to <code>dest</code> when stopped.
+     */
+    static Recording startRecording(File dest) throws IOException {
+        Configuration config;
+        try{
+            config = Configuration.getConfiguration("profile");
+        }catch(ParseException ex) {
+            throw new IOException("Cannot read flight recorder settings: " + ex.getMessage());
+        }
+
+        Recording r = new Recording(config);
+        r.setName("PhotoSort");
+        r.enable(FileStage.class);
+        r.enable(SortFile.class);
+        r.setDestination(dest.toPath());
+        r.start();
+        return r;
+    }
+
+
+
+    private static String formatOf(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+    }
+
+
+    private FlightEvents() {}
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Admits file I/O per storage device. Paths are grouped by the
+ * {@link FileStore} they live on, and each group has its own queue depth,
+ * the number of operations allowed in flight at once, and its own
+ * bandwidth cap. A slow SD card can then be held to one or two readers
+ * while a RAID target is driven harder, instead of both getting whatever
+ * concurrency the caller happens to use.
+ * <p>
+ * An operation acquires a {@link Permit} for every device it touches,
+ * charges bytes to the permit as they move, and releases it when done.
+ * Permits for two devices are always taken in the same order, so
+ * operations copying in opposite directions cannot deadlock.
+ * <p>
+ * Limits for a device must be set before the first operation touches it.
+ * An optional {@link RateLimiter} caps bytes across all devices together
+ * and may be adjusted at any time.
+ */
+public class IoScheduler {
+
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+
+
+    /**
+     * Parses a byte count such as "512", "64k", "20m" or "1g".
+     *
+     * @throws IllegalArgumentException if string cannot be parsed.
+     */
+    public static long parseBytes(String s) {
+        s = s.trim().toLowerCase();
+        long mult = 1L;
+
+        if(s.endsWith("k")) {
+            mult = 1L << 10;
+        }else if(s.endsWith("m")) {
+            mult = 1L << 20;
+        }else if(s.endsWith("g")) {
+            mult = 1L << 30;
+        }
+
+        if(mult != 1L)
+            s = s.substring(0, s.length() - 1);
+
+        try{
+            return (long)(Double.parseDouble(s) * mult);
+        }catch(NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid byte count: " + s);
+        }
+    }
+
+
+    private final int mDefaultDepth;
+    private final long mDefaultBytesPerSec;
+
+    private final Map<FileStore,long[]> mLimits = new HashMap<FileStore,long[]>();
+    private final ConcurrentMap<FileStore,Device> mDevices = new ConcurrentHashMap<FileStore,Device>();
+    private final ConcurrentMap<String,Device> mDirs = new ConcurrentHashMap<String,Device>();
+    private volatile RateLimiter mLimiter = null;
+
+
+    /**
+     * @param defaultDepth       Queue depth for devices without their own limits.
+     * @param defaultBytesPerSec Bandwidth cap for devices without their own limits, or zero for none.
+     */
+    public IoScheduler(int defaultDepth, long defaultBytesPerSec) {
+        mDefaultDepth = Math.max(1, defaultDepth);
+        mDefaultBytesPerSec = defaultBytesPerSec;
+    }
+
+
+    /**
+     * Sets limits for the device holding <code>path</code>.
+     *
+     * @param path        Any existing file or directory on the device.
+     * @param depth       Maximum operations in flight on the device.
+     * @param bytesPerSec Bandwidth cap, or zero for none.
+     */
+    public synchronized void setLimits(File path, int depth, long bytesPerSec) throws IOException {
+        mLimits.put(storeFor(path), new long[]{ Math.max(1, depth), bytesPerSec });
+    }
+
+    /**
+     * @param limiter Overall byte limit applied on top of device limits, or null for none.
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        mLimiter = limiter;
+    }
+
+    public RateLimiter rateLimiter() {
+        return mLimiter;
+    }
+
+    /**
+     * @return device holding file. File need not exist yet.
+     */
+    public Device deviceFor(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        String key = (dir == null ? "" : dir.getPath());
+
+        Device ret = mDirs.get(key);
+        if(ret != null)
+            return ret;
+
+        FileStore store = storeFor(dir != null ? dir : file.getAbsoluteFile());
+        ret = mDevices.get(store);
+
+        if(ret == null) {
+            Device dev;
+            synchronized(this) {
+                long[] lim = mLimits.get(store);
+                dev = (lim != null ? new Device(store, (int)lim[0], lim[1])
+                                   : new Device(store, mDefaultDepth, mDefaultBytesPerSec));
+            }
+
+            ret = mDevices.putIfAbsent(store, dev);
+            if(ret == null)
+                ret = dev;
+        }
+
+        mDirs.put(key, ret);
+        return ret;
+    }
+
+    /**
+     * Blocks until an operation may start on the devices holding each file.
+     *
+     * @param a File operated on.
+     * @param b Second file operated on, such as a copy target, or null.
+     * @throws InterruptedIOException if thread is interrupted while waiting.
+     */
+    public Permit acquire(File a, File b) throws IOException {
+        Device da = deviceFor(a);
+        Device db = (b == null ? null : deviceFor(b));
+
+        Device[] devs;
+        if(db == null || db == da) {
+            devs = new Device[]{ da };
+        }else if(da.mId < db.mId) {
+            devs = new Device[]{ da, db };
+        }else{
+            devs = new Device[]{ db, da };
+        }
+
+        int held = 0;
+        try{
+            for(; held < devs.length; held++)
+                devs[held].mQueue.acquire();
+        }catch(InterruptedException ex) {
+            for(int i = 0; i < held; i++)
+                devs[i].mQueue.release();
+
+            throw new InterruptedIOException();
+        }
+
+        for(Device d: devs)
+            d.mOps.incrementAndGet();
+
+        return new Permit(devs, mLimiter);
+    }
+
+    /**
+     * @return devices touched so far.
+     */
+    public List<Device> devices() {
+        List<Device> ret = new ArrayList<Device>(mDevices.values());
+        Collections.sort(ret, new Comparator<Device>() {
+            public int compare(Device a, Device b) {
+                return a.mId < b.mId ? -1 : (a.mId == b.mId ? 0 : 1);
+            }
+        });
+        return ret;
+    }
+
+
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for(Device d: devices())
+            s.append(d.toString());
+
+        return s.toString();
+    }
+
+
+
+    private static FileStore storeFor(File file) throws IOException {
+        //Nearest existing ancestor is on the same device for all practical purposes.
+        File f = file.getAbsoluteFile();
+        while(f != null && !f.exists())
+            f = f.getParentFile();
+
+        if(f == null)
+            throw new FileNotFoundException(file.getPath());
+
+        return Files.getFileStore(f.toPath());
+    }
+
+
+
+    private static final AtomicLong sNextId = new AtomicLong(0);
+
+
+    /**
+     * One storage device and its limits.
+     */
+    public static final class Device {
+
+        final long mId = sNextId.getAndIncrement();
+        final FileStore mStore;
+        final int mDepth;
+        final Semaphore mQueue;
+        final TokenBucket mBandwidth;
+
+        final AtomicLong mOps = new AtomicLong(0);
+        final AtomicLong mBytes = new AtomicLong(0);
+
+
+        Device(FileStore store, int depth, long bytesPerSec) {
+            mStore = store;
+            mDepth = depth;
+            mQueue = new Semaphore(depth, true);
+            //Allow a quarter second's worth at once so buffers of a megabyte or so pass smoothly.
+            mBandwidth = new TokenBucket(bytesPerSec, bytesPerSec / 4.0);
+        }
+
+
+        public String name() {
+            return mStore.toString();
+        }
+
+        public int queueDepth() {
+            return mDepth;
+        }
+
+        public long bytesPerSec() {
+            return (long)mBandwidth.rate();
+        }
+
+        public long operations() {
+            return mOps.get();
+        }
+
+        public long bytes() {
+            return mBytes.get();
+        }
+
+        /**
+         * @return operations currently admitted to the device.
+         */
+        public int inFlight() {
+            return mDepth - mQueue.availablePermits();
+        }
+
+        /**
+         * @return approximate number of threads waiting for admission.
+         */
+        public int waiting() {
+            return mQueue.getQueueLength();
+        }
+
+        public String toString() {
+            return String.format("%-6d  I/O operations on %s (%.1f MB, queue depth %d%s, %.1f s throttled)\n",
+                                 mOps.get(),
+                                 name(),
+                                 mBytes.get() / (double)(1 << 20),
+                                 mDepth,
+                                 mBandwidth.isLimited() ? String.format(", %.1f MB/s cap", mBandwidth.rate() / (1 << 20)) : "",
+                                 mBandwidth.waitNanos() / 1e9);
+        }
+
+    }
+
+
+    /**
+     * Admission to one or two devices. Must be released exactly once.
+     */
+    public static final class Permit {
+
+        private final Device[] mDevices;
+        private final RateLimiter mLimiter;
+        private boolean mReleased = false;
+
+
+        Permit(Device[] devices, RateLimiter limiter) {
+            mDevices = devices;
+            mLimiter = limiter;
+        }
+
+
+        /**
+         * @return true iff operation touches two different devices.
+         */
+        public boolean spansDevices() {
+            return mDevices.length > 1;
+        }
+
+        /**
+         * Charges bytes moved to every device held, blocking as required by bandwidth caps.
+         */
+        public void consume(long bytes) throws InterruptedIOException {
+            if(mLimiter != null)
+                mLimiter.acquireBytes(bytes);
+
+            for(Device d: mDevices) {
+                d.mBandwidth.acquire(bytes);
+                d.mBytes.addAndGet(bytes);
+            }
+        }
+
+        public synchronized void release() {
+            if(mReleased)
+                return;
+
+            mReleased = true;
+            for(int i = mDevices.length - 1; i >= 0; i--)
+                mDevices[i].mQueue.release();
+        }
+
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Target directories known to exist. Thousands of files land in the same
+ * day folder, so once a directory has been seen or made, later files can
+ * skip the stat and mkdir entirely.
+ * <p>
+ * Safe for any number of threads. Making a directory that another thread
+ * or process makes at the same moment is not an error: all that matters
+ * is that it exists afterward. A directory removed while the cache holds
+ * it is noticed when a transfer into it fails, and is then forgotten.
+ */
+class KnownDirs {
+
+    /**
+     * Levels of folders below the root recorded by {@link #scan}, for
+     * when the depth of the naming patterns is not known. The default
+     * patterns place files two levels down.
+     */
+    public static final int DEFAULT_SCAN_DEPTH = 2;
+
+
+    private static final DirectoryStream.Filter<Path> DIR_FILTER = new DirectoryStream.Filter<Path>() {
+        public boolean accept(Path p) {
+            return Files.isDirectory(p);
+        }
+    };
+
+
+    private final Set<String> mKnown = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+
+    /**
+     * Makes sure a directory exists, making it and any missing parents if needed.
+     *
+     * @throws IOException if the directory does not exist and cannot be made.
+     */
+    public void ensure(File dir) throws IOException {
+        if(mKnown.contains(dir.getPath()))
+            return;
+
+        if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Failed to make output directory: " + dir.getPath());
+
+        //Parents exist too. Stop at the first one already known.
+        for(File d = dir; d != null && mKnown.add(d.getPath()); d = d.getParentFile()) {}
+    }
+
+    /**
+     * Drops a directory that may no longer exist, along with anything known beneath it.
+     */
+    public void forget(File dir) {
+        String path = dir.getPath();
+        String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+
+        mKnown.remove(path);
+        Iterator<String> iter = mKnown.iterator();
+        while(iter.hasNext()) {
+            if(iter.next().startsWith(prefix))
+                iter.remove();
+        }
+    }
+
+    /**
+     * Seeds the cache with existing directories under root. Only folders
+     * are listed, down to maxDepth levels below root. Folders at that
+     * depth are recorded but not opened, so the files sorted into them are
+     * never visited.
+     *
+     * @param maxDepth Levels of folders below root to record, typically the depth names are placed at.
+     * @return directories found, including root, or 0 if root does not exist.
+     */
+    public int scan(File root, int maxDepth) throws IOException {
+        if(!root.isDirectory())
+            return 0;
+
+        mKnown.add(root.getPath());
+        return 1 + scan(root, root.toPath(), maxDepth);
+    }
+
+    public int size() {
+        return mKnown.size();
+    }
+
+    public void clear() {
+        mKnown.clear();
+    }
+
+
+
+    private int scan(File dir, Path path, int depth) throws IOException {
+        if(depth <= 0)
+            return 0;
+
+        int count = 0;
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(path, DIR_FILTER)) {
+            for(Path p: stream) {
+                //Paths are kept in the same form that targets are built in, so lookups match.
+                File child = new File(dir, p.getFileName().toString());
+                mKnown.add(child.getPath());
+                count += 1 + scan(child, p, depth - 1);
+            }
+        }catch(AccessDeniedException ex) {
+            //Skip unreadable folders. Anything placed under them is checked as it is first used.
+        }
+
+        return count;
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+
+/**
+ * Distribution of non-negative values, such as latencies in nanoseconds,
+ * in the manner of HdrHistogram: buckets are spaced logarithmically, and
+ * each power of two is split into 16 linear sub-buckets. Any value is then
+ * reported to within 1/16th of itself, with a fixed footprint of under 8 KB,
+ * whatever the range.
+ * <p>
+ * Not thread-safe. Each thread records into its own histogram, and
+ * histograms are merged with {@link #add} for reporting.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mTotal = 0L;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0L;
+
+
+    public void record(long value) {
+        if(value < 0L)
+            value = 0L;
+
+        mCounts[indexFor(value)]++;
+        mTotal++;
+
+        if(value < mMin)
+            mMin = value;
+
+        if(value > mMax)
+            mMax = value;
+    }
+
+    public void add(LatencyHistogram h) {
+        for(int i = 0; i < BUCKETS; i++)
+            mCounts[i] += h.mCounts[i];
+
+        mTotal += h.mTotal;
+        mMin = Math.min(mMin, h.mMin);
+        mMax = Math.max(mMax, h.mMax);
+    }
+
+    public long count() {
+        return mTotal;
+    }
+
+    public long min() {
+        return mTotal == 0 ? 0L : mMin;
+    }
+
+    public long max() {
+        return mMax;
+    }
+
+    /**
+     * @param p Percentile, from 0 to 100.
+     * @return highest value equivalent to that at percentile p, or 0 if empty.
+     */
+    public long percentile(double p) {
+        if(mTotal == 0)
+            return 0L;
+
+        long rank = (long)Math.ceil(p / 100.0 * mTotal);
+        rank = Math.max(1L, Math.min(mTotal, rank));
+
+        long seen = 0L;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if(seen >= rank)
+                return Math.max(mMin, Math.min(mMax, highestEquivalent(i)));
+        }
+
+        return mMax;
+    }
+
+
+
+    private static int indexFor(long value) {
+        if(value < SUB_COUNT)
+            return (int)value;
+
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + (int)((value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    private static long highestEquivalent(int index) {
+        if(index < SUB_COUNT)
+            return index;
+
+        int shift = index / SUB_COUNT - 1;
+        long sub = index % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << shift) - 1;
+    }
+
+}
@@ -20,7 +20,7 @@ public class Main {
         JFrame frame = new JFrame();
         PhotoSortPanel panel = new PhotoSortPanel( frame );
         frame.setContentPane( panel );
-        frame.setSize( 650, 350 );
+        frame.setSize( 650, 390 );
         frame.setLocationRelativeTo( null );
         frame.setVisible(true);
         frame.setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE );
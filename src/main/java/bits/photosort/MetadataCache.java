@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+
+/**
+ * Bounded LRU cache of extracted file metadata. Entries are keyed on file
+ * identity: the device/inode pair where the platform provides one, otherwise
+ * the absolute path, combined with size and modification time. A file that
+ * is modified therefore misses the cache, while a file that is moved within
+ * the same filesystem keeps hitting it.
+ * <p>
+ * Content hashes computed while copying are stored here too, for both the
+ * source and the written target, so the cache doubles as the dedupe index.
+ * <p>
+ * The cache is bounded both by entry count and by approximate heap bytes.
+ * It may be saved to and loaded from disk so metadata survives between runs.
+ * All methods are thread-safe.
+ */
+public class MetadataCache {
+
+    public static final int  DEFAULT_MAX_ENTRIES = 200000;
+    public static final long DEFAULT_MAX_BYTES   = 64L << 20;
+
+    private static final int FILE_MAGIC   = 0x50534D43; // "PSMC"
+    private static final int FILE_VERSION = 3;
+
+    private static MetadataCache sShared = null;
+
+
+    /**
+     * @return cache instance shared by all components within this process.
+     */
+    public static synchronized MetadataCache shared() {
+        if(sShared == null)
+            sShared = new MetadataCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+
+        return sShared;
+    }
+
+
+    private final LinkedHashMap<Key,FileMeta> mMap = new LinkedHashMap<Key,FileMeta>(256, 0.75f, true);
+
+    private int mMaxEntries;
+    private long mMaxBytes;
+    private long mBytes = 0;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+
+    public MetadataCache(int maxEntries, long maxBytes) {
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+    }
+
+
+    /**
+     * @return key for file, or null if file does not exist.
+     */
+    public static Key keyFor(File file) throws IOException {
+        BasicFileAttributes attrs;
+        try{
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        }catch(NoSuchFileException ex) {
+            return null;
+        }
+
+        Object fk = attrs.fileKey();
+        String id = fk != null ? fk.toString() : file.getAbsolutePath();
+        return new Key(id, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+
+    public synchronized FileMeta get(Key key) {
+        if(key == null) {
+            mMisses++;
+            return null;
+        }
+
+        FileMeta ret = mMap.get(key);
+        if(ret == null) {
+            mMisses++;
+        }else{
+            mHits++;
+        }
+
+        return ret;
+    }
+
+    public synchronized void put(Key key, FileMeta meta) {
+        if(key == null || meta == null)
+            return;
+
+        FileMeta prev = mMap.put(key, meta);
+        if(prev == null)
+            mBytes += key.byteSize() + FileMeta.BYTES;
+
+        trim();
+    }
+
+    public synchronized void clear() {
+        mMap.clear();
+        mBytes = 0;
+    }
+
+    public synchronized void setLimits(int maxEntries, long maxBytes) {
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+    public synchronized long byteSize() {
+        return mBytes;
+    }
+
+    public synchronized long hits() {
+        return mHits;
+    }
+
+    public synchronized long misses() {
+        return mMisses;
+    }
+
+    public synchronized long evictions() {
+        return mEvictions;
+    }
+
+    public synchronized double hitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0.0 : (double)mHits / total;
+    }
+
+
+    /**
+     * Loads entries from file, if it exists. Entries in file are inserted
+     * in least-recently-used order, so the bounds remain honored.
+     */
+    public void load(File file) throws IOException {
+        if(!file.exists())
+            return;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try{
+            if(in.readInt() != FILE_MAGIC)
+                throw new IOException("Not a metadata cache file: " + file.getPath());
+            
+            //Cache from an older version is simply discarded.
+            if(in.readInt() != FILE_VERSION)
+                return;
+
+            int count = in.readInt();
+            synchronized(this) {
+                for(int i = 0; i < count; i++) {
+                    String id = in.readUTF();
+                    long size = in.readLong();
+                    long mtime = in.readLong();
+                    long exif = in.readLong();
+                    long xmp = in.readLong();
+                    boolean hasHash = in.readBoolean();
+                    long hash = in.readLong();
+                    put(new Key(id, size, mtime), new FileMeta(exif, xmp, hasHash, hash));
+                }
+            }
+        }catch(EOFException ex) {
+            throw new IOException("Truncated metadata cache file: " + file.getPath());
+        }finally{
+            in.close();
+        }
+    }
+
+    /**
+     * Writes all entries to file. The file is first written to a temporary
+     * sibling and then renamed, so a crash never leaves a partial cache.
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+        try{
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+
+            synchronized(this) {
+                out.writeInt(mMap.size());
+                for(Map.Entry<Key,FileMeta> e: mMap.entrySet()) {
+                    Key key = e.getKey();
+                    out.writeUTF(key.mId);
+                    out.writeLong(key.mSize);
+                    out.writeLong(key.mModified);
+                    out.writeLong(e.getValue().mExifMicros);
+                    out.writeLong(e.getValue().mXmpMicros);
+                    out.writeBoolean(e.getValue().mHasHash);
+                    out.writeLong(e.getValue().mHash);
+                }
+            }
+        }finally{
+            out.close();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+    public synchronized String toString() {
+        return String.format("%-6d  cache entries (%d hits, %d misses, %.1f%% hit rate, %d evicted)\n",
+                             mMap.size(), mHits, mMisses, hitRate() * 100.0, mEvictions);
+    }
+
+
+
+    private void trim() {
+        Iterator<Map.Entry<Key,FileMeta>> iter = mMap.entrySet().iterator();
+
+        while((mMap.size() > mMaxEntries || mBytes > mMaxBytes) && iter.hasNext()) {
+            Map.Entry<Key,FileMeta> e = iter.next();
+            mBytes -= e.getKey().byteSize() + FileMeta.BYTES;
+            iter.remove();
+            mEvictions++;
+        }
+    }
+
+
+
+    /**
+     * Identity of a file at a particular size and modification time.
+     */
+    public static final class Key {
+
+        final String mId;
+        final long mSize;
+        final long mModified;
+
+        private final int mHash;
+
+
+        Key(String id, long size, long modified) {
+            mId = id;
+            mSize = size;
+            mModified = modified;
+
+            int h = id.hashCode();
+            h = h * 31 + (int)(size ^ (size >>> 32));
+            h = h * 31 + (int)(modified ^ (modified >>> 32));
+            mHash = h;
+        }
+
+
+        public long size() {
+            return mSize;
+        }
+
+        public long modifiedMillis() {
+            return mModified;
+        }
+
+        public int hashCode() {
+            return mHash;
+        }
+
+        public boolean equals(Object obj) {
+            if(this == obj)
+                return true;
+
+            if(!(obj instanceof Key))
+                return false;
+
+            Key k = (Key)obj;
+            return mSize == k.mSize &&
+                   mModified == k.mModified &&
+                   mId.equals(k.mId);
+        }
+
+        int byteSize() {
+            return 64 + 2 * mId.length();
+        }
+
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import com.sun.net.httpserver.*;
+
+
+/**
+ * Serves a {@link SortMonitor} at <code>http://localhost:port/metrics</code>
+ * in the Prometheus text format. The server binds to the loopback address
+ * only, so the endpoint is never reachable from other machines. A single
+ * thread answers requests, which is plenty for a scraper polling every few
+ * seconds.
+ */
+class MetricsServer {
+
+    public static final String PATH = "/metrics";
+
+
+    public static MetricsServer start(int port, SortMonitor monitor) throws IOException {
+        return new MetricsServer(port, monitor);
+    }
+
+
+    private final HttpServer mServer;
+
+
+    private MetricsServer(int port, final SortMonitor monitor) throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        mServer.createContext(PATH, new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                try{
+                    if(!ex.getRequestMethod().equals("GET") && !ex.getRequestMethod().equals("HEAD")) {
+                        ex.sendResponseHeaders(405, -1);
+                        return;
+                    }
+
+                    byte[] body = monitor.toPrometheus().getBytes("UTF-8");
+                    ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+
+                    if(ex.getRequestMethod().equals("HEAD")) {
+                        ex.sendResponseHeaders(200, -1);
+                        return;
+                    }
+
+                    ex.sendResponseHeaders(200, body.length);
+                    OutputStream out = ex.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }finally{
+                    ex.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+
+    /**
+     * @return port actually bound, which differs from the one requested if that was 0.
+     */
+    public int port() {
+        return mServer.getAddress().getPort();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+/**
+ * Write-ahead journal for move operations. Before a file is moved, an
+ * intent record naming source, target and source size is appended; once the move
+ * completes, a completion record is appended. After a crash, every intent
+ * without a completion identifies a move that may be half done, so the
+ * archive can be reconciled from the journal alone instead of re-crawling.
+ * <p>
+ * Records are group-committed: appends go to an in-memory buffer and a
+ * flusher thread writes and fsyncs the buffer. <code>awaitDurable()</code>
+ * blocks until a given record has been synced, so the cost of an fsync is
+ * shared by everything appended while the previous one was in progress.
+ * When several threads are waiting, the flusher also holds each sync for
+ * up to the sync interval for more to join it. A lone waiter, such as the
+ * single-threaded sorter, is synced at once, since nothing else can join.
+ * <p>
+ * The journal lives in the target root. When closed with no moves
+ * outstanding, it is deleted, so it only ever holds the current run.
+ */
+public class MoveJournal {
+
+    public static final String FILE_NAME = ".photosort-journal";
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10L;
+
+    //Intents from older builds carry no size.
+    private static final byte REC_INTENT       = 1;
+    private static final byte REC_DONE         = 2;
+    private static final byte REC_INTENT_SIZED = 3;
+
+
+    /**
+     * @return journal file for target root.
+     */
+    public static File journalFile(File targetRoot) {
+        return new File(targetRoot, FILE_NAME);
+    }
+
+    /**
+     * @return true iff target root holds a journal with records in it.
+     */
+    public static boolean needsRecovery(File targetRoot) {
+        File f = journalFile(targetRoot);
+        return f.isFile() && f.length() > 0;
+    }
+
+    /**
+     * Replays the journal in target root and reconciles every move that was
+     * started but not recorded as complete:
+     * <ul>
+     * <li>Source present, target absent: move never happened. Nothing to do.</li>
+     * <li>Source absent, target present with the recorded size: move completed.</li>
+     * <li>Source absent, target present with another size: move incomplete. Target is kept, as it is all that is left.</li>
+     * <li>Both present and identical: copy completed but source was not removed. Source is deleted.</li>
+     * <li>Both present, target shorter than source: copy was cut short. Partial target is deleted.</li>
+     * <li>Both present and different otherwise: the name was taken by another file before
+     *     this move claimed it. Nothing to do.</li>
+     * </ul>
+     * The intent is synced before the target name is claimed, so a target
+     * is only deleted if it can be a partial copy of the source. The journal
+     * is deleted afterward.
+     *
+     * @param out Receives one line per reconciled move. May be null.
+     * @return Summary of recovery.
+     */
+    public static String recover(File targetRoot, PrintStream out) throws IOException {
+        File file = journalFile(targetRoot);
+        if(!file.isFile())
+            return "No journal found in " + targetRoot.getPath() + "\n";
+
+        Map<Long,Intent> pending = new LinkedHashMap<Long,Intent>();
+        int records = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try{
+            while(true) {
+                int type = in.read();
+                if(type < 0)
+                    break;
+
+                long seq = in.readLong();
+                if(type == REC_INTENT || type == REC_INTENT_SIZED) {
+                    String src = in.readUTF();
+                    String dst = in.readUTF();
+                    long size = (type == REC_INTENT_SIZED ? in.readLong() : -1L);
+                    pending.put(seq, new Intent(src, dst, size));
+                }else if(type == REC_DONE) {
+                    pending.remove(seq);
+                }else{
+                    break;
+                }
+
+                records++;
+            }
+        }catch(EOFException ex) {
+            //Torn record at tail from crash. Everything before it is intact.
+        }finally{
+            in.close();
+        }
+
+        int notMoved = 0;
+        int completed = 0;
+        int rolledBack = 0;
+        int incomplete = 0;
+        int lost = 0;
+
+        for(Intent move: pending.values()) {
+            File src = new File(move.mSource);
+            File dst = new File(move.mTarget);
+            boolean hasSrc = src.exists();
+            boolean hasDst = dst.exists();
+            String action;
+
+            if(hasSrc && !hasDst) {
+                notMoved++;
+                action = "not moved";
+            }else if(!hasSrc && hasDst) {
+                if(move.mSize < 0 || dst.length() == move.mSize) {
+                    completed++;
+                    action = "moved";
+                }else{
+                    incomplete++;
+                    action = "INCOMPLETE";
+                }
+            }else if(hasSrc) {
+                if(!FileUtil.diff(src, dst)) {
+                    if(!src.delete())
+                        throw new IOException("Failed to remove source " + src.getPath());
+
+                    completed++;
+                    action = "completed";
+                }else if(dst.length() < src.length()) {
+                    if(!dst.delete())
+                        throw new IOException("Failed to remove partial target " + dst.getPath());
+
+                    rolledBack++;
+                    action = "rolled back";
+                }else{
+                    notMoved++;
+                    action = "not moved, target taken";
+                }
+            }else{
+                lost++;
+                action = "MISSING";
+            }
+
+            if(out != null)
+                out.println(move.mSource + " m> " + move.mTarget + "  [" + action + "]");
+        }
+
+        if(!file.delete() && file.exists())
+            new FileOutputStream(file).close();
+
+        return String.format("%-6d  journal records replayed\n" +
+                             "%-6d  interrupted moves\n" +
+                             "%-6d  moves completed\n" +
+                             "%-6d  moves rolled back\n" +
+                             "%-6d  moves not started\n" +
+                             "%-6d  moves incomplete\n" +
+                             "%-6d  files missing\n",
+                             records, pending.size(), completed, rolledBack, notMoved, incomplete, lost);
+    }
+
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final long mSyncIntervalMillis;
+    private final Thread mFlusher;
+
+    private ByteArrayOutputStream mPendingBytes = new ByteArrayOutputStream(4096);
+    private DataOutputStream mPending = new DataOutputStream(mPendingBytes);
+    private long mNextSeq = 0;
+    private long mAppendedSeq = -1;
+    private long mDurableSeq = -1;
+    private int mOutstanding = 0;
+    private int mWaiters = 0;
+    private boolean mSyncRequested = false;
+    private boolean mClosed = false;
+    private IOException mError = null;
+
+
+    /**
+     * Opens journal for appending. Any leftover journal must have been
+     * recovered first.
+     */
+    public MoveJournal(File targetRoot, long syncIntervalMillis) throws IOException {
+        mFile = journalFile(targetRoot);
+        mSyncIntervalMillis = Math.max(0L, syncIntervalMillis);
+
+        if(needsRecovery(targetRoot))
+            throw new IOException("Journal " + mFile.getPath() + " holds unrecovered moves.");
+
+        mChannel = new FileOutputStream(mFile, true).getChannel();
+        mFlusher = new Thread("MoveJournal Flusher") {
+            public void run() {
+                flushLoop();
+            }
+        };
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+
+    /**
+     * Records intent to move a file.
+     *
+     * @return sequence number of record.
+     */
+    public synchronized long logIntent(File source, File target) throws IOException {
+        checkOpen();
+        long seq = mNextSeq++;
+        mPending.writeByte(REC_INTENT_SIZED);
+        mPending.writeLong(seq);
+        mPending.writeUTF(source.getAbsolutePath());
+        mPending.writeUTF(target.getAbsolutePath());
+        mPending.writeLong(source.length());
+        mAppendedSeq = seq;
+        mOutstanding++;
+        return seq;
+    }
+
+    /**
+     * Records completion of a move. Does not wait for the record to reach disk.
+     */
+    public synchronized void logDone(long seq) throws IOException {
+        checkOpen();
+        mPending.writeByte(REC_DONE);
+        mPending.writeLong(seq);
+        mOutstanding--;
+    }
+
+    /**
+     * Blocks until record <code>seq</code> has been synced to disk.
+     */
+    public synchronized void awaitDurable(long seq) throws IOException, InterruptedIOException {
+        mWaiters++;
+        try{
+            while(mDurableSeq < seq) {
+                checkOpen();
+                mSyncRequested = true;
+                notifyAll();
+
+                try{
+                    wait();
+                }catch(InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }finally{
+            mWaiters--;
+        }
+    }
+
+    /**
+     * Syncs remaining records and closes journal. If no moves are
+     * outstanding, the journal is deleted.
+     */
+    public void close() throws IOException {
+        synchronized(this) {
+            if(mClosed)
+                return;
+
+            mClosed = true;
+            notifyAll();
+        }
+
+        try{
+            mFlusher.join();
+        }catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        boolean clean;
+        try{
+            flush();
+            synchronized(this) {
+                clean = (mOutstanding == 0);
+            }
+        }finally{
+            mChannel.close();
+        }
+
+        //Nothing to recover, so leave nothing behind in the archive.
+        if(clean && !mFile.delete() && mFile.exists())
+            new FileOutputStream(mFile).close();
+    }
+
+
+
+    private void flushLoop() {
+        long lastSync = 0;
+
+        try{
+            while(true) {
+                boolean group;
+                synchronized(this) {
+                    while(!mClosed && !mSyncRequested)
+                        wait();
+
+                    if(mClosed)
+                        return;
+
+                    group = mWaiters > 1;
+                }
+
+                //With other threads waiting, more are likely to arrive. Let them accumulate until
+                //the sync interval has elapsed. A lone waiter gains nothing from the delay.
+                long wait = lastSync + mSyncIntervalMillis - System.currentTimeMillis();
+                if(group && wait > 0)
+                    Thread.sleep(wait);
+
+                flush();
+                lastSync = System.currentTimeMillis();
+            }
+        }catch(InterruptedException ex) {
+            //Exit.
+        }catch(IOException ex) {
+            synchronized(this) {
+                mError = ex;
+                notifyAll();
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        byte[] bytes;
+        long seq;
+
+        synchronized(this) {
+            mSyncRequested = false;
+            if(mPendingBytes.size() == 0 && mDurableSeq == mAppendedSeq)
+                return;
+
+            bytes = mPendingBytes.toByteArray();
+            seq = mAppendedSeq;
+            mPendingBytes.reset();
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while(buf.hasRemaining())
+            mChannel.write(buf);
+
+        mChannel.force(false);
+
+        synchronized(this) {
+            mDurableSeq = seq;
+            notifyAll();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if(mError != null)
+            throw new IOException("Journal write failed", mError);
+
+        if(mClosed)
+            throw new IOException("Journal closed");
+    }
+
+
+    private static final class Intent {
+        final String mSource;
+        final String mTarget;
+        //Source size when the move began, or -1 if not recorded.
+        final long mSize;
+
+        Intent(String source, String target, long size) {
+            mSource = source;
+            mTarget = target;
+            mSize = size;
+        }
+    }
+
+}
@@ -7,11 +7,16 @@
 package bits.photosort;
 
 import java.io.*;
+import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
 
 /** 
+ * Names target files from a pattern. The pattern is compiled into a flat
+ * array of segments, and each thread formats into its own reusable buffer
+ * and date formats, so one formatter may be shared by all threads.
+ * 
  * @author Philip DeCamp  
  */
 public class NameFormatter {
@@ -73,32 +78,174 @@ public class NameFormatter {
     }
     
     
-    private final List<String> mTokens;
-    private final List<TokenFormatter> mFormatters;
-        
+    private final Segment[] mSegments;
+    private final boolean mNeedsName;
+    private final int mDirDepth;
+    
+    private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch(mSegments);
+        }
+    };
     
+    
+    /**
+     * Flattens tokens into a fixed plan of segments. Adjacent literal text,
+     * including escaped percent signs, is merged into one segment.
+     */
     public NameFormatter(List<String> tokens, List<TokenFormatter> formatters) {
-        mTokens = tokens;
-        mFormatters = formatters;
+        List<Segment> segs = new ArrayList<Segment>(tokens.size());
+        StringBuilder text = new StringBuilder();
+        boolean needsName = false;
+        
+        for(int i = 0; i < tokens.size(); i++) {
+            TokenFormatter formatter = formatters.get(i);
+            
+            if(formatter == null || formatter == TokenFormatter.ESCAPE) {
+                text.append(formatter == null ? tokens.get(i) : "%");
+                continue;
+            }
+            
+            if(text.length() > 0) {
+                segs.add(new Segment(null, text.toString()));
+                text.setLength(0);
+            }
+            
+            segs.add(new Segment(formatter, tokens.get(i)));
+            needsName |= (formatter == TokenFormatter.FILE_NAME || formatter == TokenFormatter.FILE_EXT);
+        }
+        
+        if(text.length() > 0)
+            segs.add(new Segment(null, text.toString()));
+        
+        mSegments = segs.toArray(new Segment[segs.size()]);
+        mNeedsName = needsName;
+        
+        //Source names cannot hold separators, so folders come only from literal text and dates.
+        int depth = 0;
+        for(Segment seg: mSegments) {
+            if(seg.mFormatter == null || seg.mFormatter == TokenFormatter.DATE)
+                depth += countSeparators(seg.mText);
+        }
+        mDirDepth = depth;
+    }
+    
+    
+    /**
+     * @return levels of folders below the target that names from this pattern are placed in.
+     */
+    public int dirDepth() {
+        return mDirDepth;
     }
     
     
     public String format(File source, File targetDir, long micros) {
-        StringBuilder sb = new StringBuilder();
+        Scratch scratch = mScratch.get();
+        StringBuilder sb = scratch.mOut;
+        sb.setLength(0);
         
-        for(int i = 0; i < mTokens.size(); i++) {
-            TokenFormatter formatter = mFormatters.get(i);
-            String token = mTokens.get(i);
+        //Split the name once for all name and extension segments.
+        String name = null;
+        int dot = -1;
+        if(mNeedsName) {
+            name = source.getName();
+            dot = name.lastIndexOf('.');
+        }
+        
+        for(int i = 0; i < mSegments.length; i++) {
+            Segment seg = mSegments[i];
             
-            if(formatter == null) {
-                sb.append(token);
-            }else{
-                sb.append(formatter.format(source, token, targetDir, micros));
+            if(seg.mFormatter == null) {
+                sb.append(seg.mText);
+                continue;
+            }
+            
+            switch(seg.mFormatter) {
+            case FILE_NAME:
+                if(dot < 0) {
+                    sb.append(name);
+                }else{
+                    sb.append(name, 0, dot);
+                }
+                break;
+                
+            case FILE_EXT:
+                if(dot >= 0)
+                    sb.append(name, dot + 1, name.length());
+                break;
+                
+            case DATE:
+                scratch.mDate.setTime(micros / 1000L);
+                scratch.mDateOut.setLength(0);
+                scratch.mDateFormats[i].format(scratch.mDate, scratch.mDateOut, scratch.mField);
+                sb.append(scratch.mDateOut);
+                break;
+                
+            case PARENT:
+                File parent = source.getParentFile();
+                if(parent != null)
+                    sb.append(parent.getName());
+                break;
+                
+            default:
+                break;
             }
         }
         
-        
         return sb.toString();
     }
     
+    
+    private static int countSeparators(String s) {
+        int ret = 0;
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == File.separatorChar || c == '/')
+                ret++;
+        }
+        
+        return ret;
+    }
+    
+    
+    
+    private static final class Segment {
+        final TokenFormatter mFormatter;
+        final String mText;
+        //Parsed once, and cloned for each thread.
+        final DateFormat mDateFormat;
+        
+        /**
+         * @param formatter Formatter, or null for literal text.
+         * @param text      Literal text, or argument to formatter.
+         * @throws IllegalArgumentException if text is not a valid date pattern for a DATE segment.
+         */
+        Segment(TokenFormatter formatter, String text) {
+            mFormatter = formatter;
+            mText = text;
+            mDateFormat = (formatter == TokenFormatter.DATE ? new SimpleDateFormat(text) : null);
+        }
+    }
+    
+    
+    /**
+     * Per-thread working state, since SimpleDateFormat is not thread-safe
+     * and too costly to create for every file.
+     */
+    private static final class Scratch {
+        final StringBuilder mOut = new StringBuilder(128);
+        final StringBuffer mDateOut = new StringBuffer(32);
+        final FieldPosition mField = new FieldPosition(0);
+        final Date mDate = new Date(0L);
+        final DateFormat[] mDateFormats;
+        
+        Scratch(Segment[] segs) {
+            mDateFormats = new DateFormat[segs.length];
+            for(int i = 0; i < segs.length; i++) {
+                if(segs[i].mDateFormat != null)
+                    mDateFormats[i] = (DateFormat)segs[i].mDateFormat.clone();
+            }
+        }
+    }
+    
 }
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.File;
+import java.util.*;
+
+
+/**
+ * Names in use in target directories, grouped by base name, for resolving
+ * collisions without probing the disk one candidate at a time. Each
+ * directory is listed once, when a file is first placed in it, and each
+ * name in it is recorded against its base: <code>name-3.jpg</code> is
+ * number 3 of <code>name.jpg</code>. After that, the next free name in a
+ * sequence of candidates (name, name-1, name-2...) is one past the highest
+ * number in use, found in constant time.
+ * <p>
+ * The index also holds the size of each name, so a new file is only
+ * compared with names of the same size, which are the only ones that can be
+ * duplicates of it. Listed names are sized when their base is first used,
+ * once per run. Names claimed through the index take the size of the file
+ * placed under them, without touching the disk.
+ * <p>
+ * Names freed below the highest in use are not handed out again. A name
+ * is recorded as soon as it is claimed, so no other thread using the index
+ * is given it, and dropped again by {@link Series#release} if the transfer
+ * failed. Both steps are atomic with respect to the directory.
+ * <p>
+ * The index only knows what was on disk when a directory was listed and
+ * what has been claimed through it. Names taken by anything else since are
+ * found when the transfer to them fails, and reported with {@link Series#found}.
+ */
+class NameIndex {
+
+    public static final int DEFAULT_MAX_DIRS = 256;
+
+    private static final long UNKNOWN_SIZE = -1L;
+
+
+    private final Map<String,DirIndex> mDirs;
+
+
+    public NameIndex() {
+        this(DEFAULT_MAX_DIRS);
+    }
+
+    /**
+     * @param maxDirs Directories held at once. The least recently used is dropped
+     *                beyond this, and listed again if needed.
+     */
+    public NameIndex(final int maxDirs) {
+        mDirs = new LinkedHashMap<String,DirIndex>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,DirIndex> e) {
+                return size() > maxDirs;
+            }
+        };
+    }
+
+
+    /**
+     * @return sequence of names that iter would produce, listing iter's directory if not yet indexed.
+     */
+    public Series series(FileIter iter) {
+        DirIndex dir = dirIndex(iter.dir());
+        synchronized(dir) {
+            //Listed on first use, under the directory's lock rather than the whole index's.
+            dir.load();
+        }
+
+        return new Series(dir, iter);
+    }
+
+    public synchronized void clear() {
+        mDirs.clear();
+    }
+
+
+
+    private synchronized DirIndex dirIndex(File dir) {
+        String path = dir.getPath();
+        DirIndex ret = mDirs.get(path);
+        if(ret == null) {
+            ret = new DirIndex(dir);
+            mDirs.put(path, ret);
+        }
+
+        return ret;
+    }
+
+
+    /**
+     * @return position of the "-N" suffix in stem, or -1 if it has none.
+     *         Suffixes with leading zeros are not ones FileIter produces.
+     */
+    private static int suffixStart(String stem) {
+        int i = stem.length();
+        while(i > 0 && Character.isDigit(stem.charAt(i - 1)))
+            i--;
+
+        int digits = stem.length() - i;
+        if(digits == 0 || digits > 9 || i < 2 || stem.charAt(i - 1) != '-' || stem.charAt(i) == '0')
+            return -1;
+
+        return i;
+    }
+
+
+
+    private static final class DirIndex {
+        final File mDir;
+        final Map<String,Base> mBases = new HashMap<String,Base>();
+        private boolean mLoaded = false;
+
+        DirIndex(File dir) {
+            mDir = dir;
+        }
+
+        /**
+         * Called with this locked.
+         */
+        void load() {
+            if(mLoaded)
+                return;
+
+            mLoaded = true;
+            String[] names = mDir.list();
+            if(names == null)
+                return;
+
+            for(String name: names) {
+                int idx = name.lastIndexOf('.');
+                if(idx < 0)
+                    continue;
+
+                String stem = name.substring(0, idx);
+                String stop = name.substring(idx);
+                base(stem, stop, true).put(0, UNKNOWN_SIZE);
+
+                int suffix = suffixStart(stem);
+                if(suffix > 0)
+                    base(stem.substring(0, suffix - 1), stop, true).put(Integer.parseInt(stem.substring(suffix)), UNKNOWN_SIZE);
+            }
+        }
+
+        /**
+         * @return base, or null if none is in use and create is false.
+         */
+        Base base(String start, String stop, boolean create) {
+            String key = start + '/' + stop;
+            Base ret = mBases.get(key);
+            if(ret == null && create) {
+                ret = new Base(this, start, stop);
+                mBases.put(key, ret);
+            }
+
+            return ret;
+        }
+    }
+
+
+    /**
+     * Numbers in use under one base name, with their sizes.
+     */
+    private static final class Base {
+        final DirIndex mDir;
+        final String mStart;
+        final String mStop;
+        //Size of each number in use, or UNKNOWN_SIZE for listed names not yet examined.
+        final Map<Integer,Long> mSizes = new HashMap<Integer,Long>();
+        int mHighest = -1;
+        boolean mSized = true;
+
+        Base(DirIndex dir, String start, String stop) {
+            mDir = dir;
+            mStart = start;
+            mStop = stop;
+        }
+
+        File file(int number) {
+            return new File(mDir.mDir, number == 0 ? mStart + mStop : mStart + "-" + number + mStop);
+        }
+
+        void put(int number, long size) {
+            mSizes.put(number, size);
+            mHighest = Math.max(mHighest, number);
+            mSized &= (size != UNKNOWN_SIZE);
+        }
+
+        void remove(int number) {
+            if(mSizes.remove(number) == null || number != mHighest)
+                return;
+
+            mHighest = -1;
+            for(int n: mSizes.keySet())
+                mHighest = Math.max(mHighest, n);
+        }
+
+        /**
+         * Adds names in use of the given size to out, sizing listed names on first call.
+         *
+         * @param onlyFirst If true, only number 0 is considered.
+         */
+        void find(long size, boolean onlyFirst, List<File> out) {
+            if(onlyFirst) {
+                Long s = mSizes.get(0);
+                if(s != null && s == UNKNOWN_SIZE) {
+                    s = file(0).length();
+                    mSizes.put(0, s);
+                }
+
+                if(s != null && s == size)
+                    out.add(file(0));
+
+                return;
+            }
+
+            if(!mSized) {
+                for(Map.Entry<Integer,Long> e: mSizes.entrySet()) {
+                    if(e.getValue() == UNKNOWN_SIZE)
+                        e.setValue(file(e.getKey()).length());
+                }
+
+                mSized = true;
+            }
+
+            for(Map.Entry<Integer,Long> e: mSizes.entrySet()) {
+                if(e.getValue() == size)
+                    out.add(file(e.getKey()));
+            }
+        }
+    }
+
+
+    /**
+     * Names produced by one FileIter in one directory. A tagged sequence
+     * spans two bases: the untagged first name, then name-tag, name-tag-1...
+     */
+    static final class Series {
+        private final DirIndex mDir;
+        private final FileIter mIter;
+        private final String mTagStart;
+
+        Series(DirIndex dir, FileIter iter) {
+            mDir = dir;
+            mIter = iter;
+            mTagStart = iter.tag() == null ? null : iter.start() + "-" + iter.tag();
+        }
+
+        /**
+         * @param size Size of file to be placed.
+         * @return names already in the sequence holding files of that size.
+         */
+        public List<File> existing(long size) {
+            synchronized(mDir) {
+                List<File> ret = new ArrayList<File>(1);
+                Base base = mDir.base(mIter.start(), mIter.stop(), false);
+                if(base != null)
+                    base.find(size, mTagStart != null, ret);
+
+                Base tagged = mTagStart == null ? null : mDir.base(mTagStart, mIter.stop(), false);
+                if(tagged != null)
+                    tagged.find(size, false, ret);
+
+                return ret;
+            }
+        }
+
+        /**
+         * Reserves the next free name.
+         *
+         * @param size Size of file to be placed under it.
+         */
+        public File claim(long size) {
+            synchronized(mDir) {
+                Base base = mDir.base(mIter.start(), mIter.stop(), true);
+                int pos;
+
+                if(mTagStart == null) {
+                    pos = base.mHighest + 1;
+                    base.put(pos, size);
+                }else if(base.mHighest < 0) {
+                    pos = 0;
+                    base.put(0, size);
+                }else{
+                    Base tagged = mDir.base(mTagStart, mIter.stop(), true);
+                    pos = tagged.mHighest + 2;
+                    tagged.put(pos - 1, size);
+                }
+
+                return mIter.get(pos);
+            }
+        }
+
+        /**
+         * Records the size of a name in the sequence found taken by something outside the index.
+         */
+        public void found(File file, long size) {
+            synchronized(mDir) {
+                Base base = baseOf(file);
+                if(base != null)
+                    base.put(number(file, base), size);
+            }
+        }
+
+        /**
+         * Returns a claimed name that was not used.
+         */
+        public void release(File file) {
+            synchronized(mDir) {
+                Base base = baseOf(file);
+                if(base != null)
+                    base.remove(number(file, base));
+            }
+        }
+
+
+        private Base baseOf(File file) {
+            String stem = stem(file);
+            if(stem.equals(mIter.start()))
+                return mDir.base(mIter.start(), mIter.stop(), false);
+
+            String start = mTagStart != null && stem.startsWith(mTagStart) ? mTagStart : mIter.start();
+            return mDir.base(start, mIter.stop(), false);
+        }
+
+        private int number(File file, Base base) {
+            String stem = stem(file);
+            return stem.length() == base.mStart.length() ? 0 : Integer.parseInt(stem.substring(base.mStart.length() + 1));
+        }
+
+        private String stem(File file) {
+            String name = file.getName();
+            return name.substring(0, name.length() - mIter.stop().length());
+        }
+    }
+
+}
@@ -8,7 +8,12 @@ package bits.photosort;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.file.FileAlreadyExistsException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import jdk.jfr.Recording;
 import bits.progress.*;
 
 public class PhotoSort implements ProgressTask {
@@ -17,17 +22,187 @@ public class PhotoSort implements ProgressTask {
     public static void main( String[] args ) {
         String inputPath = null;
         String outputPath = null;
-        boolean move = false;
+        TransferMode mode = TransferMode.COPY;
         String unsortedPath = null;
         String namingPattern = null;
+        String cachePath = null;
+        String timeChain = null;
+        boolean resume = false;
+        boolean watch = false;
+        String planPath = null;
+        String statsPath = null;
+        String logPath = null;
+        int metricsPort = 0;
+        String jfrPath = null;
+        EventLog.Overflow logOverflow = null;
+        String applyPath = null;
+        String shardSpec = null;
+        Shard.By shardBy = Shard.By.PATH;
+        boolean hashNames = false;
+        Durability durability = null;
+        boolean verify = false;
+        boolean scanTarget = false;
+        IoScheduler scheduler = new IoScheduler( IoScheduler.DEFAULT_QUEUE_DEPTH, 0L );
+        List<String> ioLimits = new ArrayList<String>();
+        RateLimiter limiter = new RateLimiter();
 
         for( int i = 0; i < args.length; i++ ) {
-            if( args[i].startsWith( "-" ) ) {
+            if( args[i].equals( "--recover" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                recover( new File( args[++i] ) );
+                return;
+
+            } else if( args[i].equals( "--resume" ) ) {
+                resume = true;
+
+            } else if( args[i].equals( "--plan" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                planPath = args[++i];
+
+            } else if( args[i].equals( "--apply" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                applyPath = args[++i];
+
+            } else if( args[i].equals( "--shard" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                shardSpec = args[++i];
+
+            } else if( args[i].equals( "--shard-by" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                try {
+                    shardBy = Shard.By.valueOf( args[++i].toUpperCase() );
+                } catch( IllegalArgumentException ex ) {
+                    printUsage( true );
+                }
+
+            } else if( args[i].equals( "--stats-json" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                statsPath = args[++i];
+
+            } else if( args[i].equals( "--log" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                logPath = args[++i];
+
+            } else if( args[i].equals( "--log-overflow" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                logOverflow = EventLog.Overflow.forName( args[++i] );
+                if( logOverflow == null ) {
+                    printUsage( true );
+                }
+
+            } else if( args[i].equals( "--metrics-port" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                try {
+                    metricsPort = Integer.parseInt( args[++i] );
+                } catch( NumberFormatException ex ) {
+                    printUsage( true );
+                }
+
+            } else if( args[i].equals( "--jfr" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                jfrPath = args[++i];
+
+            } else if( args[i].equals( "--hash-names" ) ) {
+                hashNames = true;
+
+            } else if( args[i].equals( "--watch" ) ) {
+                watch = true;
+
+            } else if( args[i].equals( "--verify" ) ) {
+                verify = true;
+
+            } else if( args[i].equals( "--scan-target" ) ) {
+                scanTarget = true;
+
+            } else if( args[i].equals( "--io-default" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                long[] lim = parseIoLimit( args[++i] );
+                scheduler = new IoScheduler( (int)lim[0], lim[1] );
+
+            } else if( args[i].equals( "--io" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                ioLimits.add( args[++i] );
+
+            } else if( args[i].equals( "--max-rate" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                try {
+                    limiter.setBytesPerSec( IoScheduler.parseBytes( args[++i] ) );
+                } catch( IllegalArgumentException ex ) {
+                    printUsage( true );
+                }
+
+            } else if( args[i].equals( "--max-files" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                try {
+                    limiter.setFilesPerSec( Double.parseDouble( args[++i] ) );
+                } catch( NumberFormatException ex ) {
+                    printUsage( true );
+                }
+
+            } else if( args[i].equals( "--sync" ) ) {
+                if( i >= args.length - 1 ) {
+                    printUsage( true );
+                }
+
+                durability = Durability.forName( args[++i] );
+                if( durability == null ) {
+                    printUsage( true );
+                }
+
+            } else if( args[i].startsWith( "-" ) ) {
                 if( args[i].startsWith( "-h" ) ) {
                     printUsage( true );
 
                 } else if( args[i].startsWith( "-m" ) ) {
-                    move = true;
+                    mode = TransferMode.MOVE;
+
+                } else if( args[i].startsWith( "-l" ) ) {
+                    mode = TransferMode.HARDLINK;
+
+                } else if( args[i].startsWith( "-k" ) ) {
+                    mode = TransferMode.CLONE;
 
                 } else if( args[i].startsWith( "-u" ) ) {
                     if( i >= args.length - 1 ) {
@@ -41,6 +216,18 @@ public class PhotoSort implements ProgressTask {
                     }
 
                     namingPattern = args[++i];
+                } else if( args[i].startsWith( "-c" ) ) {
+                    if( i >= args.length - 1 ) {
+                        printUsage( true );
+                    }
+
+                    cachePath = args[++i];
+                } else if( args[i].startsWith( "-t" ) ) {
+                    if( i >= args.length - 1 ) {
+                        printUsage( true );
+                    }
+
+                    timeChain = args[++i];
                 }
 
             } else if( inputPath == null ) {
@@ -54,31 +241,252 @@ public class PhotoSort implements ProgressTask {
             }
         }
 
-        if( inputPath == null || outputPath == null ) {
+        if( applyPath == null && ( inputPath == null || outputPath == null ) ) {
             printUsage( true );
             return;
         }
 
         PhotoSort sorter = new PhotoSort();
-        sorter.setSource( new File( inputPath ) );
-        sorter.setTarget( new File( outputPath ) );
-        sorter.enableMove( move );
-        sorter.setNameFormatter( NameFormatter.compile( namingPattern ) );
-        sorter.setUndatedNameFormatter( NameFormatter.compile( NameFormatter.DEFAULT_UNDATED_PATTERN ) );
+        if( applyPath != null ) {
+            sorter.setApplyFile( new File( applyPath ) );
+        } else {
+            sorter.setSource( new File( inputPath ) );
+            sorter.setTarget( new File( outputPath ) );
+        }
+        if( planPath != null ) {
+            sorter.setPlanFile( new File( planPath ) );
+        }
+        if( shardSpec != null ) {
+            try {
+                sorter.setShard( Shard.parse( shardSpec, shardBy ) );
+            } catch( IllegalArgumentException ex ) {
+                System.out.println( ex.getMessage() );
+                System.exit( 1 );
+            }
+        }
+        sorter.setHashCollisionNames( hashNames );
+        if( statsPath != null ) {
+            sorter.setStatsFile( new File( statsPath ) );
+        }
+        if( logPath != null ) {
+            sorter.setEventLogFile( new File( logPath ) );
+        }
+        sorter.setEventLogOverflow( logOverflow );
+        sorter.setMetricsPort( metricsPort );
+        if( jfrPath != null ) {
+            sorter.setFlightRecording( new File( jfrPath ) );
+        }
+        sorter.setTransferMode( mode );
+        sorter.setResume( resume );
+        sorter.setWatch( watch );
+        sorter.setDurability( durability );
+        sorter.setVerify( verify );
+        sorter.setScanTarget( scanTarget );
+        for( String s: ioLimits ) {
+            int eq = s.lastIndexOf( '=' );
+            if( eq <= 0 ) {
+                printUsage( true );
+            }
+
+            long[] lim = parseIoLimit( s.substring( eq + 1 ) );
+            try {
+                scheduler.setLimits( new File( s.substring( 0, eq ) ), (int)lim[0], lim[1] );
+            } catch( IOException ex ) {
+                System.out.println( "Cannot set I/O limits for " + s.substring( 0, eq ) + ": " + ex.getMessage() );
+                System.exit( 1 );
+            }
+        }
+        sorter.setIoScheduler( scheduler );
+        sorter.setRateLimiter( limiter );
+        try {
+            sorter.setNameFormatter( NameFormatter.compile( namingPattern != null ? namingPattern : NameFormatter.DEFAULT_FILE_PATTERN ) );
+            sorter.setUndatedNameFormatter( NameFormatter.compile( unsortedPath != null ? unsortedPath : NameFormatter.DEFAULT_UNDATED_PATTERN ) );
+        } catch( IllegalArgumentException ex ) {
+            System.out.println( "Invalid naming pattern: " + ex.getMessage() );
+            System.exit( 1 );
+        }
+        if( timeChain != null ) {
+            sorter.setTimeChain( TimeChain.parse( timeChain ) );
+        }
+        if( cachePath != null ) {
+            sorter.setCacheFile( new File( cachePath ) );
+        }
+
+        //Without a log file, each file's fate is printed to the console, which would break up a redrawn status line.
+        ProgressPrinter printer = new ProgressPrinter( System.out, System.err, logPath != null && System.console() != null );
+        sorter.startTask( printer );
+        startRateControl( limiter );
+        addShutdownHook( sorter );
+
+        try {
+            sorter.awaitTask( 0L );
+        } catch( InterruptedException ex ) {
+            sorter.cancelTask();
+        }
+
+        System.exit( exitStatus( printer, sorter ) );
+    }
+
+    /**
+     * @return 0 if the sort completed without failures, EXIT_FAILURES if some files failed,
+     *         or EXIT_INCOMPLETE if the sort was cancelled or could not start.
+     */
+    private static int exitStatus( ProgressPrinter printer, PhotoSort sorter ) {
+        if( !printer.isFinished() ) {
+            return EXIT_INCOMPLETE;
+        }
+
+        return sorter.getMonitor().getFailures() > 0 ? EXIT_FAILURES : 0;
+    }
+
+    /**
+     * Cancels the sort when the process is told to stop, for example by Ctrl-C, and gives
+     * it time to save its checkpoint and report before the process exits.
+     */
+    private static void addShutdownHook( final PhotoSort sorter ) {
+        Runtime.getRuntime().addShutdownHook( new Thread( "Shutdown" ) {
+            public void run() {
+                sorter.cancelTask();
+                try {
+                    sorter.awaitTask( SHUTDOWN_MILLIS );
+                } catch( InterruptedException ex ) {}
+            }
+        } );
+    }
+    
+    /**
+     * Reads commands from stdin that adjust rate limits while the sort runs:
+     * "rate &lt;bytes per second&gt;" and "files &lt;files per second&gt;", where 0 is unlimited.
+     */
+    private static void startRateControl( final RateLimiter limiter ) {
+        Thread t = new Thread( "Rate Control" ) {
+            public void run() {
+                BufferedReader in = new BufferedReader( new InputStreamReader( System.in ) );
+                try {
+                    String line;
+                    while( ( line = in.readLine() ) != null ) {
+                        String[] cmd = line.trim().split( "\\s+" );
+                        if( cmd.length != 2 ) {
+                            continue;
+                        }
+
+                        try {
+                            if( cmd[0].equals( "rate" ) ) {
+                                limiter.setBytesPerSec( IoScheduler.parseBytes( cmd[1] ) );
+                            } else if( cmd[0].equals( "files" ) ) {
+                                limiter.setFilesPerSec( Double.parseDouble( cmd[1] ) );
+                            } else {
+                                System.out.println( "Unknown command: " + cmd[0] );
+                                continue;
+                            }
+                            System.out.print( limiter.toString() );
+                        } catch( IllegalArgumentException ex ) {
+                            System.out.println( "Invalid value: " + cmd[1] );
+                        }
+                    }
+                } catch( IOException ex ) {
+                    //No console.
+                }
+            }
+        };
+        t.setDaemon( true );
+        t.start();
+    }
+    
+    /**
+     * Parses "depth[:bytesPerSec]".
+     */
+    private static long[] parseIoLimit( String s ) {
+        int colon = s.indexOf( ':' );
+        try {
+            if( colon < 0 ) {
+                return new long[]{ Integer.parseInt( s ), 0L };
+            }
+
+            return new long[]{ Integer.parseInt( s.substring( 0, colon ) ), IoScheduler.parseBytes( s.substring( colon + 1 ) ) };
+        } catch( IllegalArgumentException ex ) {
+            printUsage( true );
+            return null;
+        }
+    }
 
-        sorter.startTask( null );
+    private static void recover( File target ) {
+        try {
+            System.out.print( MoveJournal.recover( target, System.out ) );
+        } catch( IOException ex ) {
+            ex.printStackTrace();
+            System.exit( 1 );
+        }
     }
     
+    /**
+     * Exit status when some files could not be sorted.
+     */
+    public static final int EXIT_FAILURES = 2;
+    
+    /**
+     * Exit status when the sort was cancelled or could not start.
+     */
+    public static final int EXIT_INCOMPLETE = 1;
+    
+    private static final long SHUTDOWN_MILLIS = 30000L;
+    
+    
     public static void printUsage(boolean exit) {
-        System.out.println("PhotoSort <input_path> <output_path> [-hm] [-u <unsorted folder>] [-n <name pattern>");
+        System.out.println("PhotoSort <input_path> <output_path> [-hmlk] [-u <unsorted folder>] [-n <name pattern>] [-c <cache file>] [-t <time sources>] [--resume] [--watch] [--sync <mode>] [--verify] [--scan-target] [--io-default <limit>] [--io <path>=<limit>]... [--max-rate <bytes/s>] [--max-files <files/s>] [--stats-json <file>] [--log <file>] [--log-overflow <policy>] [--metrics-port <port>] [--jfr <file>]");
+        System.out.println("PhotoSort <input_path> <output_path> --plan <plan file> [options]");
+        System.out.println("PhotoSort --apply <plan file> [options]");
+        System.out.println("PhotoSort --recover <output_path>");
+        System.out.println("\t--plan == work out the sort without transferring anything, and write it to <plan file> as tab-separated text");
+        System.out.println("\t--apply == carry out a plan written by --plan, without extracting metadata again");
+        System.out.println("\t--shard k/N == sort only shard k (from 0) of N, so N processes can share a source and target");
+        System.out.println("\t--shard-by == how files are divided between shards (Default: path)");
+        System.out.println("\t\tpath == by source path");
+        System.out.println("\t\tdate == by dated target folder, so competing names always fall in the same shard");
+        System.out.println("\t--hash-names == name collisions with a tag from the content hash instead of a number. Implied by --shard");
+        System.out.println("\t--recover == reconcile moves interrupted by a crash, using the journal in <output_path>");
         System.out.println("\t-h == see this helpful message");
         System.out.println("\t-m == move files instead of copying them");
+        System.out.println("\t-l == hard link files instead of copying them, where source and target share a filesystem");
+        System.out.println("\t-k == clone files copy-on-write instead of copying them, where the filesystem supports it");
         System.out.println("\t-n == specify naming pattern (Default: " + NameFormatter.DEFAULT_FILE_PATTERN + ")");
         
         for(TokenFormatter tf: TokenFormatter.values())
             System.out.format("\t\t%s == %s\n", tf.token(), tf.description());
         
         System.out.println("\t-u == specify naming pattern for files without timestamps (Default: " + NameFormatter.DEFAULT_UNDATED_PATTERN + ")");
+        System.out.println("\t-t == comma-separated sources to take timestamps from, in order (Default: " + TimeChain.DEFAULT_CHAIN + ")");
+        
+        for(TimeSource ts: TimeSource.values())
+            System.out.format("\t\t%s == %s\n", ts.sourceName(), ts.description());
+        
+        System.out.println("\t--resume == continue a cancelled or interrupted run from its last checkpoint");
+        System.out.println("\t--watch == after sorting, keep watching the input folder and sort new files once they stop changing");
+        System.out.println("\t--verify == read back each copy and check its hash against the source");
+        System.out.println("\t--scan-target == list existing folders in <output_path> up front, rather than checking each folder as it is first used");
+        System.out.println("\t--sync == when to fsync transferred files (Default: " + Durability.BATCHED.durabilityName() + ")");
+        
+        for(Durability d: Durability.values())
+            System.out.format("\t\t%s == %s\n", d.durabilityName(), d.description());
+        
+        System.out.println("\t--io-default == I/O limit for each device, as <queue depth>[:<bytes per second>] (Default: " + IoScheduler.DEFAULT_QUEUE_DEPTH + ", no bandwidth cap)");
+        System.out.println("\t\te.g. 2:20m allows two operations in flight and 20 MB/s");
+        System.out.println("\t--io == I/O limit for the device holding <path>. May be repeated");
+        System.out.println("\t--max-rate == overall cap on bytes per second across all devices, e.g. 20m");
+        System.out.println("\t--max-files == overall cap on files per second");
+        System.out.println("\t\tWhile running, type \"rate <bytes/s>\" or \"files <files/s>\" to change either cap. 0 is unlimited.");
+        System.out.println("\t--stats-json == write a JSON report to <file> when the sort ends, with counts, bytes, per-stage timings, counts by extension and failure reasons");
+        System.out.println("\t--log == write a tab-separated record of each file's fate to <file> instead of printing it");
+        System.out.println("\t--log-overflow == what to do when the log cannot keep up (Default: " + EventLog.Overflow.BLOCK.overflowName() + ")");
+        
+        for(EventLog.Overflow o: EventLog.Overflow.values())
+            System.out.format("\t\t%s == %s\n", o.overflowName(), o.description());
+        
+        System.out.println("\t--metrics-port == serve live metrics for Prometheus at http://localhost:<port>/metrics while sorting. Also available over JMX as " + SortMonitor.OBJECT_NAME);
+        System.out.println("\t--jfr == record the run with Java Flight Recorder, including per-file sort events, to <file>");
+        System.out.println("\t-c == load and save extracted metadata to this cache file between runs");
+        
+        System.out.println("Exits with 0 when every file was sorted, " + EXIT_FAILURES + " when some files failed, and " + EXIT_INCOMPLETE + " when the sort was cancelled or could not start.");
         
         if(exit) {
             System.exit( 0 );
@@ -86,12 +494,50 @@ public class PhotoSort implements ProgressTask {
     }
     
     
-    private boolean mMove = false;
-    private String mOpGerund = "Copying ";
+    private static final int PREFETCH_WINDOW = 256;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 5000L;
+    private static final long WRITER_SETTLE_MILLIS = 2000L;
+    
+    
+    private TransferMode mMode = TransferMode.COPY;
     private File mSource = null;
     private File mTarget = null;
     private NameFormatter mFormatter = null;
     private NameFormatter mUndatedFormatter = null;
+    private MetadataCache mCache = MetadataCache.shared();
+    private File mCacheFile = null;
+    private TimeChain mTimeChain = TimeChain.DEFAULT;
+    private int mReadConcurrency = BatchTimestampReader.DEFAULT_CONCURRENCY;
+    private IoScheduler mScheduler = new IoScheduler(IoScheduler.DEFAULT_QUEUE_DEPTH, 0L);
+    private RateLimiter mLimiter = new RateLimiter();
+    private long mJournalSyncMillis = MoveJournal.DEFAULT_SYNC_INTERVAL_MILLIS;
+    private MoveJournal mJournal = null;
+    private boolean mResume = false;
+    private boolean mWatch = false;
+    private File mPlanFile = null;
+    private Shard mShard = null;
+    private boolean mHashNames = false;
+    private File mApplyFile = null;
+    private File mStatsFile = null;
+    private File mEventLogFile = null;
+    private EventLog.Overflow mEventOverflow = EventLog.Overflow.BLOCK;
+    private EventLog mEventLog = null;
+    private final SortMonitor mMonitor = new SortMonitor();
+    private int mMetricsPort = 0;
+    private File mJfrFile = null;
+    private final KnownDirs mDirs = new KnownDirs();
+    private final NameIndex mNameIndex = new NameIndex();
+    private SidecarIndex mSidecars = SidecarIndex.DISK;
+    //Sidecars placed this run, by source path, with where they went.
+    private final Map<String,File> mPlacedSidecars = new HashMap<String,File>();
+    private boolean mScanTarget = false;
+    private long mWatchQuietMillis = WatchDaemon.DEFAULT_QUIET_MILLIS;
+    private boolean mVerify = false;
+    private Durability mDurability = Durability.BATCHED;
+    private long mSyncIntervalMillis = SyncFlusher.DEFAULT_INTERVAL_MILLIS;
+    private SyncFlusher mFlusher = null;
+    private long mSyncNanos = 0;
+    private int mSyncedFiles = 0;
     
     private Thread mThread = null;
     
@@ -106,8 +552,11 @@ public class PhotoSort implements ProgressTask {
     }
     
     public void enableMove(boolean move) {
-        mMove = move;
-        mOpGerund = (mMove ? "Moving " : "Copying ");
+        mMode = (move ? TransferMode.MOVE : TransferMode.COPY);
+    }
+    
+    public void setTransferMode(TransferMode mode) {
+        mMode = (mode != null ? mode : TransferMode.COPY);
     }
     
     public void setNameFormatter(NameFormatter formatter) {
@@ -118,6 +567,195 @@ public class PhotoSort implements ProgressTask {
         mUndatedFormatter = formatter;
     }
     
+    /**
+     * @param cache Cache of extracted metadata. By default, the process-wide shared cache is used.
+     */
+    public void setMetadataCache(MetadataCache cache) {
+        mCache = (cache != null ? cache : MetadataCache.shared());
+    }
+    
+    public MetadataCache getMetadataCache() {
+        return mCache;
+    }
+    
+    /**
+     * @param file File to which the metadata cache is persisted between runs, or null for none.
+     */
+    public void setCacheFile(File file) {
+        mCacheFile = file;
+    }
+    
+    /**
+     * @param chain Sources consulted for file timestamps, in order.
+     */
+    public void setTimeChain(TimeChain chain) {
+        mTimeChain = (chain != null ? chain : TimeChain.DEFAULT);
+    }
+    
+    /**
+     * @param verify If true, each copy is read back after writing and its hash checked against the source.
+     */
+    public void setVerify(boolean verify) {
+        mVerify = verify;
+    }
+    
+    /**
+     * @param durability When transferred files are forced to disk.
+     */
+    public void setDurability(Durability durability) {
+        mDurability = (durability != null ? durability : Durability.BATCHED);
+    }
+    
+    /**
+     * @param millis Maximum time a file waits in BATCHED mode before it is synced.
+     */
+    public void setSyncInterval(long millis) {
+        mSyncIntervalMillis = millis;
+    }
+    
+    /**
+     * @param resume If true, continue from the checkpoint left in the target by a cancelled or crashed run.
+     */
+    public void setResume(boolean resume) {
+        mResume = resume;
+    }
+    
+    /**
+     * @param watch If true, keep running after the source has been sorted, sorting new files as they arrive until cancelled.
+     */
+    public void setWatch(boolean watch) {
+        mWatch = watch;
+    }
+    
+    /**
+     * @param file If not null, no files are transferred. Instead, the sort is worked out and written to this file.
+     */
+    public void setPlanFile(File file) {
+        mPlanFile = file;
+    }
+    
+    /**
+     * @param shard If not null, only files in this shard are sorted, so several processes
+     *              can divide a source between them. Sharding implies content-hash collision names.
+     */
+    public void setShard(Shard shard) {
+        mShard = shard;
+    }
+    
+    /**
+     * @param hashNames If true, colliding names are suffixed with a tag derived from the file's
+     *                  content hash rather than a sequence number, so names do not depend on
+     *                  the order in which files arrive.
+     */
+    public void setHashCollisionNames(boolean hashNames) {
+        mHashNames = hashNames;
+    }
+    
+    /**
+     * @param file If not null, the plan in this file is carried out instead of sorting afresh.
+     *             Source, target and transfer mode are taken from the plan.
+     */
+    public void setApplyFile(File file) {
+        mApplyFile = file;
+    }
+    
+    /**
+     * @param file If not null, counts and per-stage timings are written to this file as JSON when the sort ends.
+     */
+    public void setStatsFile(File file) {
+        mStatsFile = file;
+    }
+    
+    /**
+     * @param file File to which a record of each file sorted is written as tab-separated text,
+     *             or null to print each file to standard out.
+     */
+    public void setEventLogFile(File file) {
+        mEventLogFile = file;
+    }
+    
+    /**
+     * @param overflow What to do with events when the event log falls behind.
+     */
+    public void setEventLogOverflow(EventLog.Overflow overflow) {
+        mEventOverflow = (overflow != null ? overflow : EventLog.Overflow.BLOCK);
+    }
+    
+    /**
+     * @param port If positive, live metrics are served on this port at http://localhost:port/metrics
+     *             in the Prometheus text format while a sort runs. Only the loopback address is bound.
+     */
+    public void setMetricsPort(int port) {
+        mMetricsPort = port;
+    }
+    
+    /**
+     * @param file If not null, a Java Flight Recorder recording including file-level sort events
+     *             is made for the duration of each sort and written to this file.
+     */
+    public void setFlightRecording(File file) {
+        mJfrFile = file;
+    }
+    
+    /**
+     * @param scan If true, existing folders in the target are listed before sorting begins, so
+     *             that no file needs to check for its folder. Otherwise, each folder is checked
+     *             once, by the first file sent to it.
+     */
+    public void setScanTarget(boolean scan) {
+        mScanTarget = scan;
+    }
+    
+    /**
+     * @return live view of the current or last sort. Registered with JMX while a sort runs.
+     */
+    public SortMonitor getMonitor() {
+        return mMonitor;
+    }
+    
+    /**
+     * @param millis Time a new file must go unchanged in watch mode before it is sorted.
+     */
+    public void setWatchQuietPeriod(long millis) {
+        mWatchQuietMillis = millis;
+    }
+    
+    /**
+     * @param millis Longest a move journal sync is held for others to join it, when several threads are waiting.
+     */
+    public void setJournalSyncInterval(long millis) {
+        mJournalSyncMillis = millis;
+    }
+    
+    /**
+     * @param concurrency Maximum number of header reads kept in flight while prefetching timestamps.
+     */
+    public void setReadConcurrency(int concurrency) {
+        mReadConcurrency = Math.max(1, concurrency);
+    }
+    
+    /**
+     * @param scheduler Admits reads and transfers per device. Limits are configured on the scheduler.
+     */
+    public void setIoScheduler(IoScheduler scheduler) {
+        mScheduler = (scheduler != null ? scheduler : new IoScheduler(IoScheduler.DEFAULT_QUEUE_DEPTH, 0L));
+    }
+    
+    public IoScheduler getIoScheduler() {
+        return mScheduler;
+    }
+    
+    /**
+     * @param limiter Overall limits on bytes and files per second. Limits may be changed while a sort runs.
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        mLimiter = (limiter != null ? limiter : new RateLimiter());
+    }
+    
+    public RateLimiter getRateLimiter() {
+        return mLimiter;
+    }
+    
     
     public void startTask(ProgressListener monitor) {
         if(monitor == null)
@@ -151,9 +789,76 @@ public class PhotoSort implements ProgressTask {
         }
     }
     
+    /**
+     * Waits for the running task, if any, to finish.
+     * 
+     * @param millis Most time to wait, or 0 to wait indefinitely.
+     */
+    public void awaitTask(long millis) throws InterruptedException {
+        Thread t;
+        synchronized(this) {
+            t = mThread;
+        }
+        
+        if(t != null)
+            t.join(millis);
+    }
+    
     
     private void executeSort(final ProgressListener monitor) {
-
+        Recording recording = null;
+        if(mJfrFile != null) {
+            try{
+                recording = FlightEvents.startRecording(mJfrFile);
+            }catch(IOException ex) {
+                monitor.addInfo("Failed to start flight recording: " + ex.getMessage() + "\n");
+            }catch(IllegalStateException ex) {
+                monitor.addInfo("Failed to start flight recording: " + ex.getMessage() + "\n");
+            }catch(SecurityException ex) {
+                monitor.addInfo("Failed to start flight recording: " + ex.getMessage() + "\n");
+            }
+        }
+        
+        try{
+            executeSortOrApply(monitor);
+        }finally{
+            if(recording != null) {
+                //Stopping writes the recording to its destination.
+                recording.stop();
+                recording.close();
+                monitor.addInfo("Flight recording written to " + mJfrFile.getPath() + "\n");
+            }
+        }
+    }
+    
+    private void executeSortOrApply(final ProgressListener monitor) {
+        SortPlan apply = null;
+        
+        if(mApplyFile != null) {
+            try{
+                apply = SortPlan.open(mApplyFile);
+            }catch(IOException ex) {
+                monitor.exceptionOccurred(ex);
+                return;
+            }
+            
+            mSource = apply.sourceRoot();
+            mTarget = apply.targetRoot();
+            mMode = apply.mode();
+        }
+        
+        try{
+            executeSort(monitor, apply);
+        }finally{
+            if(apply != null) {
+                try{
+                    apply.close();
+                }catch(IOException ex) {}
+            }
+        }
+    }
+    
+    private void executeSort(final ProgressListener monitor, SortPlan apply) {
         if(mSource == null) {
             monitor.exceptionOccurred(new Exception("No source folder specified."));
             return;
@@ -169,101 +874,912 @@ public class PhotoSort implements ProgressTask {
             return;
         }
         
-        monitor.setNote("Locating files...");
-        SortStats stats = new SortStats();
-        List<File> inList = null;
+        //Directories and names may have come and gone since the last run.
+        mDirs.clear();
+        mNameIndex.clear();
+        mSidecars = SidecarIndex.DISK;
+        mPlacedSidecars.clear();
+        if(mScanTarget) {
+            try{
+                mDirs.scan(mTarget, scanDepth());
+            }catch(IOException ex) {
+                monitor.addInfo("Failed to scan output folder: " + ex.getMessage() + "\n");
+            }
+        }
         
-        try{
-            inList = findInputFiles();
-            if(Thread.interrupted())
-                throw new InterruptedException();
-        }catch(InterruptedException ex) {
-            monitor.taskCancelled("Cancelled", stats.toString());
+        if(mCacheFile != null) {
+            try{
+                mCache.load(mCacheFile);
+            }catch(IOException ex) {
+                monitor.addInfo("Failed to load metadata cache: " + ex.getMessage() + "\n");
+            }
         }
-
-        stats.mFiles = inList.size();
-        monitor.setNote("Sorting...");
-        monitor.setMinimum(0);
-        monitor.setMaximum(inList.size());
         
-        for(int i = 0; i < inList.size(); i++) {
-            monitor.setProgress(i, mOpGerund + i + " of " + inList.size());
-            
+        if(mMode == TransferMode.MOVE && mPlanFile == null) {
             try{
-                sortFile(inList.get(i), monitor, stats);
-                if(Thread.interrupted())
-                    throw new InterruptedException();
-            }catch(InterruptedException ex) {
-                monitor.taskCancelled("Cancelled", "");
-                monitor.addInfo(stats.toString());
-                
+                openJournal(monitor);
+            }catch(IOException ex) {
+                monitor.exceptionOccurred(ex);
                 return;
             }
         }
         
-        monitor.taskFinished("Complete", "");
-        monitor.addInfo(stats.toString());
-    }
-    
-    private List<File> findInputFiles() throws InterruptedException {
-        List<File> ret = new ArrayList<File>();
-        
-        if(mSource.isFile()) {
+        try{
+            mEventLog = (mEventLogFile == null ? EventLog.console(mEventOverflow) : EventLog.open(mEventLogFile, mEventOverflow));
+        }catch(IOException ex) {
+            closeJournal(monitor);
+            monitor.exceptionOccurred(ex);
+            return;
+        }
+        
+        SortStats stats = new SortStats();
+        stats.mSourceRoot = mSource;
+        stats.mTargetRoot = mTarget;
+        stats.mMode = mMode;
+        mScheduler.setRateLimiter(mLimiter);
+        mSyncNanos = 0;
+        mSyncedFiles = 0;
+        if(mDurability == Durability.BATCHED)
+            mFlusher = new SyncFlusher(mSyncIntervalMillis, SyncFlusher.DEFAULT_BATCH_SIZE);
+        
+        MetricsServer server = startMonitor(stats, monitor);
+        
+        try{
+            boolean done;
+            if(mPlanFile != null) {
+                done = planAll(monitor, stats);
+            }else if(apply != null) {
+                done = applyAll(apply, monitor, stats);
+            }else{
+                done = (mWatch ? watch(monitor, stats) : sortAll(monitor, stats));
+            }
+            
+            //Let the log catch up before reporting the end of the task.
+            closeEventLog(monitor);
+            
+            stats.mOutcome = (done ? "completed" : "cancelled");
+            stats.mEndMillis = System.currentTimeMillis();
+            
+            if(done) {
+                saveCache(monitor);
+                monitor.taskFinished("Complete", "");
+            }else{
+                saveCache(monitor);
+                monitor.taskCancelled("Cancelled", "");
+            }
+        }finally{
+            //Flusher first: it may still have journal completions to record.
+            closeFlusher(stats);
+            closeJournal(monitor);
+            closeEventLog(monitor);
+            stopMonitor(server);
+        }
+        
+        monitor.addInfo(stats.toString());
+        saveStats(stats, monitor);
+        monitor.addInfo(mCache.toString());
+        monitor.addInfo(mScheduler.toString());
+        monitor.addInfo(mLimiter.toString());
+    }
+    
+    /**
+     * @return true if completed, false if cancelled.
+     */
+    private boolean sortAll(ProgressListener monitor, SortStats stats) {
+        SortCheckpoint checkpoint = openCheckpoint(monitor);
+        
+        monitor.setNote("Locating files...");
+        List<File> inList = null;
+        
+        try{
+            inList = findInputFiles(checkpoint.position(), stats.mMetrics);
+            if(Thread.interrupted())
+                throw new InterruptedException();
+        }catch(InterruptedException ex) {
+            return false;
+        }
+        
+        inList = filterShard(inList, stats);
+
+        stats.mFiles = inList.size();
+        monitor.setNote("Sorting...");
+        monitor.setMinimum(0);
+        monitor.setMaximum(inList.size());
+        
+        //Sizes let progress be reported by bytes, which gives a steadier ETA when file sizes vary.
+        long[] sizes = new long[inList.size()];
+        long totalBytes = 0L;
+        for(int i = 0; i < sizes.length; i++) {
+            sizes[i] = inList.get(i).length();
+            totalBytes += sizes[i];
+        }
+        long doneBytes = 0L;
+        
+        BatchTimestampReader prefetcher = new BatchTimestampReader(mReadConcurrency, mCache, mScheduler);
+        prefetcher.setMetrics(stats.mMetrics);
+        long lastSave = System.currentTimeMillis();
+        
+        for(int i = 0; i < inList.size(); i++) {
+            File file = inList.get(i);
+            monitor.setProgress(i, mMode.gerund() + i + " of " + inList.size());
+            monitor.setBytes(doneBytes, totalBytes);
+            doneBytes += sizes[i];
+            
+            try{
+                if(i % PREFETCH_WINDOW == 0) {
+                    //Everything before this window is sorted, so the crawl position can advance.
+                    //It is kept as a path, since in move mode the file will be gone on resume.
+                    if(i > 0) {
+                        checkpoint.setPosition(file.getPath());
+                        saveCheckpoint(checkpoint, monitor);
+                        lastSave = System.currentTimeMillis();
+                    }
+                    
+                    //Read headers for upcoming files in locality order so sortFile() hits the cache.
+                    //Files sorted before a resume are skipped without being read.
+                    List<File> window = new ArrayList<File>(PREFETCH_WINDOW);
+                    for(File f: inList.subList(i, Math.min(inList.size(), i + PREFETCH_WINDOW))) {
+                        if(!checkpoint.isDone(f))
+                            window.add(f);
+                    }
+                    
+                    prefetcher.readMeta(window, mSidecars);
+                }
+                
+                if(checkpoint.isDone(file)) {
+                    stats.mResumed++;
+                    continue;
+                }
+                
+                sortFile(file, monitor, stats);
+                checkpoint.markDone(file);
+                stats.fileDone();
+                
+                if(System.currentTimeMillis() - lastSave > CHECKPOINT_INTERVAL_MILLIS) {
+                    saveCheckpoint(checkpoint, monitor);
+                    lastSave = System.currentTimeMillis();
+                }
+                
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+            }catch(InterruptedException ex) {
+                saveCheckpoint(checkpoint, monitor);
+                return false;
+            }
+        }
+        
+        monitor.setProgress(inList.size(), mMode.gerund() + inList.size() + " of " + inList.size());
+        monitor.setBytes(doneBytes, totalBytes);
+        SortCheckpoint.delete(mTarget);
+        return true;
+    }
+    
+    /**
+     * Works out where every file would go and writes the result to the plan
+     * file without transferring anything. Metadata is extracted and hashed
+     * in parallel a window at a time; naming runs sequentially, since each
+     * collision depends on the names handed out before it.
+     * 
+     * @return true if completed, false if cancelled or the plan could not be written.
+     */
+    private boolean planAll(ProgressListener monitor, SortStats stats) {
+        monitor.setNote("Locating files...");
+        List<File> inList = null;
+        
+        try{
+            inList = findInputFiles(null, stats.mMetrics);
+            if(Thread.interrupted())
+                throw new InterruptedException();
+        }catch(InterruptedException ex) {
+            return false;
+        }
+        
+        inList = filterShard(inList, stats);
+        stats.mFiles = inList.size();
+        monitor.setNote("Planning...");
+        monitor.setMinimum(0);
+        monitor.setMaximum(inList.size());
+        
+        BatchTimestampReader prefetcher = new BatchTimestampReader(mReadConcurrency, mCache, mScheduler);
+        prefetcher.setMetrics(stats.mMetrics);
+        Map<String,long[]> planned = new HashMap<String,long[]>();
+        SortPlan plan = null;
+        
+        try{
+            plan = SortPlan.create(mPlanFile, mSource, mTarget, mMode, inList.size());
+            
+            for(int i = 0; i < inList.size(); i += PREFETCH_WINDOW) {
+                List<File> window = inList.subList(i, Math.min(inList.size(), i + PREFETCH_WINDOW));
+                FileMeta[] metas = prefetcher.readMeta(window, mSidecars);
+                hashAll(window, metas, stats.mMetrics);
+                
+                for(int j = 0; j < metas.length; j++) {
+                    monitor.setProgress(i + j, "Planning " + (i + j) + " of " + inList.size());
+                    SortPlan.Entry e = planFile(window.get(j), metas[j], planned, monitor, stats);
+                    if(e != null)
+                        plan.append(e);
+                    
+                    stats.fileDone();
+                    if(Thread.interrupted())
+                        throw new InterruptedException();
+                }
+            }
+            
+            plan.close();
+            plan = null;
+            monitor.addInfo("Plan written to " + mPlanFile.getPath() + "\n");
+            return true;
+            
+        }catch(InterruptedIOException ex) {
+            return false;
+        }catch(InterruptedException ex) {
+            return false;
+        }catch(IOException ex) {
+            monitor.addInfo("Failed to write plan: " + ex.getMessage() + "\n");
+            return false;
+        }finally{
+            if(plan != null)
+                plan.abandon();
+        }
+    }
+    
+    /**
+     * Fills in content hashes for metadata that lacks them, reading files in parallel.
+     * Hashes are stored in the cache.
+     */
+    private void hashAll(final List<File> files, final FileMeta[] metas, final SortMetrics metrics) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger(0);
+        int threads = Math.min(mReadConcurrency, files.size());
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        
+        try{
+            List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+            
+            for(int t = 0; t < threads; t++) {
+                futures.add(exec.submit(new Runnable() {
+                    public void run() {
+                        for(int i = next.getAndIncrement(); i < metas.length; i = next.getAndIncrement()) {
+                            if(Thread.currentThread().isInterrupted())
+                                return;
+                            
+                            if(metas[i] == null || metas[i].mHasHash)
+                                continue;
+                            
+                            try{
+                                File file = files.get(i);
+                                MetadataCache.Key key = MetadataCache.keyFor(file);
+                                long t = SortMetrics.start();
+                                metas[i] = metas[i].withHash(FileUtil.hashFile(file, mScheduler));
+                                metrics.record(SortMetrics.Stage.READ, t, key == null ? 0L : key.size());
+                                mCache.put(key, metas[i]);
+                            }catch(IOException ex) {
+                                //Planned without a hash.
+                            }
+                        }
+                    }
+                }));
+            }
+            
+            for(Future<?> f: futures) {
+                try{
+                    f.get();
+                }catch(ExecutionException ex) {
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+        }finally{
+            exec.shutdownNow();
+        }
+    }
+    
+    /**
+     * @param planned Targets handed out so far, mapped to {size, has hash, hash}.
+     * @return plan entry, or null if file belongs to another shard.
+     */
+    private SortPlan.Entry planFile(File source, FileMeta meta, Map<String,long[]> planned, ProgressListener monitor, SortStats stats) {
+        SortPlan.Entry e = new SortPlan.Entry();
+        e.mSource = source;
+        e.mDecision = SortPlan.ERROR;
+        
+        try{
+            MetadataCache.Key key = MetadataCache.keyFor(source);
+            stats.sourceFound(source, key != null ? key.size() : 0L);
+            if(key == null)
+                throw new FileNotFoundException("File disappeared");
+            
+            e.mSize = key.size();
+            e.mModified = key.modifiedMillis();
+            
+            if(meta == null)
+                throw new IOException("Could not read metadata");
+            
+            e.mHasHash = meta.mHasHash;
+            e.mHash = meta.mHash;
+            
+            long t = SortMetrics.start();
+            TimeChain.Result time = mTimeChain.resolve(source, meta);
+            e.mTimeSource = time.mSource;
+            stats.mMetrics.record(SortMetrics.Stage.PARSE, t, 0L);
+            
+            t = SortMetrics.start();
+            File target = initialTarget(source, time.mMicros);
+            if(!inShard(source, target, time)) {
+                stats.mOtherShard++;
+                return null;
+            }
+            
+            String[] parts = splitFile(target.getName());
+            FileIter iter = new FileIter(target.getParentFile(), parts[0], parts[1], collisionTag(meta));
+            stats.mMetrics.record(SortMetrics.Stage.NAME, t, 0L);
+            
+            while(true) {
+                t = SortMetrics.start();
+                target = iter.next();
+                
+                long[] p = planned.get(target.getPath());
+                if(p != null) {
+                    if(meta.mHasHash && p[1] != 0 && p[0] == e.mSize && p[2] == meta.mHash) {
+                        e.mDecision = SortPlan.DUPLICATE;
+                        e.mTarget = target;
+                        stats.mDuplicates++;
+                        return e;
+                    }
+                    
+                    continue;
+                }
+                
+                boolean exists = target.exists();
+                stats.mMetrics.record(SortMetrics.Stage.PROBE, t, 0L);
+                if(!exists)
+                    break;
+                
+                if(isDuplicate(source, meta, null, target, stats.mMetrics)) {
+                    e.mDecision = SortPlan.DUPLICATE;
+                    e.mTarget = target;
+                    stats.mDuplicates++;
+                    return e;
+                }
+            }
+            
+            planned.put(target.getPath(), new long[]{ e.mSize, meta.mHasHash ? 1 : 0, meta.mHash });
+            e.mDecision = SortPlan.decisionFor(mMode);
+            e.mTarget = target;
+            stats.mPlanned++;
+            
+            if(time.mSource == null) {
+                stats.mUndated++;
+            }else{
+                stats.mSources[time.mSource.ordinal()]++;
+            }
+            
+        }catch(IOException ex) {
+            stats.failed(source, ex);
+            String msg = ex.getMessage();
+            if(msg == null)
+                msg = ex.getClass().getName();
+            
+            monitor.addInfo("Failed to plan \"" + source.getPath() + "\": " + msg + "\n");
+            
+        }catch(RuntimeException ex) {
+            stats.failed(source, ex);
+            monitor.addInfo("Failed to plan \"" + source.getPath() + "\": " + ex + "\n");
+        }
+        
+        return e;
+    }
+    
+    /**
+     * Carries out a plan written by planAll(). No metadata is extracted:
+     * each source is only checked to be unchanged since planning, by size
+     * and modification time, and sent to its planned target.
+     * 
+     * @return true if completed, false if cancelled.
+     */
+    private boolean applyAll(SortPlan plan, ProgressListener monitor, SortStats stats) {
+        int total = Math.max(0, plan.fileCount());
+        monitor.setNote("Applying plan...");
+        monitor.setMinimum(0);
+        monitor.setMaximum(total);
+        
+        try{
+            int i = 0;
+            long doneBytes = 0L;
+            for(SortPlan.Entry e = plan.next(); e != null; e = plan.next(), i++) {
+                monitor.setProgress(i, mMode.gerund() + i + " of " + total);
+                monitor.setBytes(doneBytes, -1L);
+                doneBytes += Math.max(0L, e.mSize);
+                stats.mFiles++;
+                stats.sourceFound(e.mSource, Math.max(0L, e.mSize));
+                
+                if(mShard != null && !mShard.accepts(plan.sourceRoot(), e.mSource, plan.targetRoot(), e.mTarget, e.mTimeSource != null)) {
+                    stats.mOtherShard++;
+                }else if(e.mDecision.equals(SortPlan.DUPLICATE)) {
+                    stats.mDuplicates++;
+                }else if(SortPlan.modeFor(e.mDecision) == null || e.mTarget == null) {
+                    stats.failed(e.mSource, "NotPlanned", "No target was planned");
+                    monitor.addInfo("Not planned: \"" + e.mSource.getPath() + "\"\n");
+                }else{
+                    applyEntry(e, monitor, stats);
+                }
+                
+                stats.fileDone();
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            
+            monitor.setProgress(i, mMode.gerund() + i + " of " + total);
+            monitor.setBytes(doneBytes, -1L);
+            return true;
+            
+        }catch(InterruptedIOException ex) {
+            return false;
+        }catch(InterruptedException ex) {
+            return false;
+        }catch(IOException ex) {
+            monitor.addInfo("Failed to read plan: " + ex.getMessage() + "\n");
+            return false;
+        }
+    }
+    
+    private void applyEntry(SortPlan.Entry e, ProgressListener monitor, SortStats stats) throws InterruptedException {
+        File source = e.mSource;
+        File target = e.mTarget;
+        
+        try{
+            mLimiter.acquireFile();
+            MetadataCache.Key key = MetadataCache.keyFor(source);
+            if(key == null)
+                throw new FileNotFoundException("Source no longer exists");
+            
+            if(key.size() != e.mSize || key.modifiedMillis() != e.mModified)
+                throw new IOException("Source changed since plan was made");
+            
+            //Cached metadata carries the content hash, if known, against which the copy is checked.
+            FileMeta meta = mCache.get(key);
+            
+            //Another process may have taken the planned name since. If so, it is resolved as a fresh sort would.
+            String[] parts = splitFile(target.getName());
+            String tag = (e.mHasHash && (mHashNames || mShard != null) ? hashTag(e.mHash) : null);
+            FileIter iter = new FileIter(target.getParentFile(), parts[0], parts[1], tag);
+            
+            if(!place(source, meta, null, iter, e.mTimeSource, monitor, stats)) {
+                stats.mDuplicates++;
+                return;
+            }
+            
+            if(e.mTimeSource == null) {
+                stats.mUndated++;
+            }else{
+                stats.mSources[e.mTimeSource.ordinal()]++;
+            }
+            
+        }catch(InterruptedIOException ex) {
+            throw new InterruptedException();
+            
+        }catch(IOException ex) {
+            if(Thread.interrupted())
+                throw new InterruptedException();
+            
+            stats.failed(source, ex);
+            String msg = ex.getMessage();
+            if(msg == null)
+                msg = ex.getClass().getName();
+            
+            monitor.addInfo("Failed to sort \"" + source.getPath() + "\": " + msg + "\n");
+            mEventLog.failed(source, msg);
+            
+        }catch(RuntimeException ex) {
+            stats.failed(source, ex);
+            monitor.addInfo("Failed to sort \"" + source.getPath() + "\": " + ex + "\n");
+            mEventLog.failed(source, ex.toString());
+        }
+    }
+    
+    /**
+     * Sorts existing files, then sorts new files as they settle until cancelled.
+     * 
+     * @return false, since watching ends only when cancelled.
+     */
+    private boolean watch(final ProgressListener monitor, final SortStats stats) {
+        if(!mSource.isDirectory()) {
+            monitor.addInfo("Watch mode needs a source folder.\n");
+            return false;
+        }
+        
+        WatchDaemon daemon = new WatchDaemon(mSource, mTarget, PREFETCH_WINDOW, mWatchQuietMillis, WatchDaemon.DEFAULT_MAX_PENDING);
+        
+        try{
+            //Register before the initial pass, so files arriving during it are queued rather than missed.
+            daemon.open();
+            if(!sortAll(monitor, stats))
+                return false;
+            
+            saveCache(monitor);
+            monitor.setNote("Watching " + daemon.watchedDirs() + " folders...");
+            
+            final BatchTimestampReader prefetcher = new BatchTimestampReader(mReadConcurrency, mCache, mScheduler);
+            prefetcher.setMetrics(stats.mMetrics);
+            final long[] lastSave = { System.currentTimeMillis() };
+            
+            daemon.run(new WatchDaemon.BatchHandler() {
+                public void sortBatch(List<File> files) throws InterruptedException {
+                    PhotoSort.this.sortBatch(files, prefetcher, monitor, stats);
+                    
+                    if(System.currentTimeMillis() - lastSave[0] > CHECKPOINT_INTERVAL_MILLIS) {
+                        saveCache(monitor);
+                        lastSave[0] = System.currentTimeMillis();
+                    }
+                }
+            });
+        }catch(InterruptedException ex) {
+            //Stopped.
+        }catch(IOException ex) {
+            monitor.addInfo("Watch failed: " + ex.getMessage() + "\n");
+        }finally{
+            try{
+                daemon.close();
+            }catch(IOException ex) {}
+        }
+        
+        return false;
+    }
+    
+    private void sortBatch(List<File> files, BatchTimestampReader prefetcher, ProgressListener monitor, SortStats stats) throws InterruptedException {
+        //Each folder holding a new sidecar is listed once. Images elsewhere may still have older sidecars on disk.
+        SidecarIndex sidecars = new SidecarIndex(true);
+        for(File f: files) {
+            if(XmpScanner.isSidecar(f))
+                sidecars.addListing(f.getParentFile());
+        }
+        
+        List<File> batch = new ArrayList<File>(files.size());
+        for(File f: files) {
+            //Sidecars travel with their image.
+            if(!XmpScanner.isSidecar(f) || !sidecars.hasImage(f))
+                batch.add(f);
+        }
+        
+        if(batch.isEmpty())
+            return;
+        
+        int done = stats.mFiles;
+        stats.mFiles += batch.size();
+        monitor.setMaximum(stats.mFiles);
+        mSidecars = sidecars;
+        mPlacedSidecars.clear();
+        prefetcher.readMeta(batch, sidecars);
+        
+        for(File f: batch) {
+            monitor.setProgress(done, mMode.gerund() + done + " of " + stats.mFiles);
+            sortFile(f, monitor, stats);
+            stats.fileDone();
+            done++;
+            if(Thread.interrupted())
+                throw new InterruptedException();
+        }
+        
+        monitor.setNote("Watching for new files...");
+    }
+    
+    /**
+     * @return checkpoint to resume from if resuming, otherwise an empty checkpoint.
+     */
+    private SortCheckpoint openCheckpoint(ProgressListener monitor) {
+        if(mResume) {
+            SortCheckpoint ret = SortCheckpoint.load(mTarget);
+            
+            if(ret != null && ret.sourcePath().equals(mSource.getPath()))
+                return ret;
+            
+            monitor.addInfo("No checkpoint to resume for \"" + mSource.getPath() + "\". Starting from the beginning.\n");
+        }
+        
+        return new SortCheckpoint(mSource.getPath());
+    }
+    
+    private void saveCheckpoint(SortCheckpoint checkpoint, ProgressListener monitor) {
+        try{
+            //Never let the checkpoint claim files that could still be lost to a power failure.
+            if(mFlusher != null)
+                mFlusher.drain();
+            
+            mDirs.ensure(mTarget);
+            checkpoint.save(mTarget);
+        }catch(IOException ex) {
+            monitor.addInfo("Failed to save checkpoint: " + ex.getMessage() + "\n");
+        }
+    }
+    
+    /**
+     * Reconciles moves left over from an interrupted run, then opens a fresh journal.
+     */
+    private void openJournal(ProgressListener monitor) throws IOException {
+        mDirs.ensure(mTarget);
+        
+        if(MoveJournal.needsRecovery(mTarget)) {
+            monitor.setNote("Recovering interrupted moves...");
+            monitor.addInfo(MoveJournal.recover(mTarget, System.out));
+        }
+        
+        mJournal = new MoveJournal(mTarget, mJournalSyncMillis);
+    }
+    
+    private void closeFlusher(SortStats stats) {
+        if(mFlusher != null) {
+            mFlusher.close();
+            mSyncNanos += mFlusher.syncNanos();
+            mSyncedFiles += mFlusher.syncedFiles();
+            stats.failed("SyncFailed", mFlusher.failures());
+            mFlusher = null;
+        }
+        
+        stats.mSynced = mSyncedFiles;
+        stats.mSyncNanos = mSyncNanos;
+    }
+    
+    private void closeJournal(ProgressListener monitor) {
+        if(mJournal == null)
+            return;
+        
+        try{
+            mJournal.close();
+        }catch(IOException ex) {
+            monitor.addInfo("Failed to close move journal: " + ex.getMessage() + "\n");
+        }
+        
+        mJournal = null;
+    }
+    
+    /**
+     * Registers the monitor for this run with JMX and starts the metrics endpoint, if enabled.
+     * 
+     * @return metrics server, or null if not enabled or it could not be started.
+     */
+    private MetricsServer startMonitor(SortStats stats, ProgressListener monitor) {
+        mMonitor.attach(stats, mCache, mScheduler, mFlusher, mEventLog);
+        
+        try{
+            mMonitor.register();
+        }catch(JMException ex) {
+            monitor.addInfo("Failed to register JMX monitor: " + ex.getMessage() + "\n");
+        }
+        
+        if(mMetricsPort <= 0)
+            return null;
+        
+        try{
+            return MetricsServer.start(mMetricsPort, mMonitor);
+        }catch(IOException ex) {
+            monitor.addInfo("Failed to start metrics endpoint on port " + mMetricsPort + ": " + ex.getMessage() + "\n");
+            return null;
+        }
+    }
+    
+    private void stopMonitor(MetricsServer server) {
+        if(server != null)
+            server.stop();
+        
+        mMonitor.detach();
+        mMonitor.unregister();
+    }
+    
+    private void closeEventLog(ProgressListener monitor) {
+        if(mEventLog == null)
+            return;
+        
+        try{
+            mEventLog.close();
+        }catch(IOException ex) {
+            monitor.addInfo("Failed to write event log: " + ex.getMessage() + "\n");
+        }
+        
+        if(mEventLog.dropped() > 0)
+            monitor.addInfo(mEventLog.dropped() + " log events dropped while the log was behind.\n");
+        
+        mEventLog = null;
+    }
+    
+    private void saveStats(SortStats stats, ProgressListener monitor) {
+        if(mStatsFile == null)
+            return;
+        
+        try{
+            Writer out = new OutputStreamWriter(new FileOutputStream(mStatsFile), "UTF-8");
+            try{
+                out.write(stats.toJson());
+            }finally{
+                out.close();
+            }
+        }catch(IOException ex) {
+            monitor.addInfo("Failed to write stats: " + ex.getMessage() + "\n");
+        }
+    }
+    
+    private void saveCache(ProgressListener monitor) {
+        if(mCacheFile == null)
+            return;
+        
+        try{
+            mCache.save(mCacheFile);
+        }catch(IOException ex) {
+            monitor.addInfo("Failed to save metadata cache: " + ex.getMessage() + "\n");
+        }
+    }
+    
+    /**
+     * @return folder levels below the target that names are placed at, which is as deep as a target scan need go.
+     */
+    private int scanDepth() {
+        if(mFormatter == null || mUndatedFormatter == null)
+            return KnownDirs.DEFAULT_SCAN_DEPTH;
+        
+        return Math.max(mFormatter.dirDepth(), mUndatedFormatter.dirDepth());
+    }
+    
+        /**
+     * Crawls the source, and indexes the sidecars found for {@link #mSidecars}.
+     * 
+     * @param start   Path of file at which to begin crawl, which need not exist, or null to crawl all files.
+     * @param metrics Receives the time taken to find each file.
+     */
+    private List<File> findInputFiles(String start, SortMetrics metrics) throws InterruptedException {
+        List<File> ret = new ArrayList<File>();
+        
+        if(mSource.isFile()) {
+            mSidecars = SidecarIndex.DISK;
             if(FileUtil.ALL_FILTER.accept(mSource))
                 ret.add(mSource);
             
             return ret;
         }
         
+        //Every folder holding sorted files is crawled, so folders the index has no sidecars for have none.
+        SidecarIndex sidecars = new SidecarIndex(false);
+        mSidecars = sidecars;
+        
         DirSpider spider = new DirSpider(mSource, FileUtil.ALL_FILTER);
+        //Set when resuming in the folder of a file that has been moved away: files in that folder before it are done.
+        File skipBefore = null;
+        
+        if(start != null) {
+            //The spider can only go to a file that exists. Otherwise, it goes to the nearest folder that does.
+            File startFile = new File(start);
+            File pos = startFile;
+            while(pos != null && !pos.exists())
+                pos = pos.getParentFile();
+            
+            if(pos != null && pos.toPath().startsWith(mSource.toPath())) {
+                spider.gotoFile(pos);
+                if(pos != startFile && pos.equals(startFile.getParentFile()))
+                    skipBefore = startFile;
+                
+                //Sidecars ahead of the start position in its folder are skipped by the crawl.
+                sidecars.addListing(startFile.getParentFile());
+            }
+        }
+        
+        boolean anySidecars = false;
+        
+        long t = SortMetrics.start();
         for(File f = spider.getNextFile(true); f != null; f = spider.getNextFile(true)) {
+            metrics.record(SortMetrics.Stage.CRAWL, t, 0L);
+            
+            if(skipBefore != null && f.getParentFile().equals(skipBefore.getParentFile()) &&
+               DirSpider.ALPHA_COMPARATOR.compare(f, skipBefore) < 0)
+            {
+                t = SortMetrics.start();
+                continue;
+            }
+            
             ret.add(f);
+            if(XmpScanner.isSidecar(f)) {
+                sidecars.add(f);
+                anySidecars = true;
+            }
+            
+            t = SortMetrics.start();
         }
         
-        return ret;
+        if(!anySidecars)
+            return ret;
+        
+        //Sidecars that belong to an image travel with that image rather than being sorted on their own.
+        Set<String> attached = new HashSet<String>();
+        for(File f: ret) {
+            if(XmpScanner.isSidecar(f))
+                continue;
+            
+            File sidecar = sidecars.find(f);
+            if(sidecar != null)
+                attached.add(sidecar.getPath());
+        }
+        
+        if(attached.isEmpty())
+            return ret;
+        
+        List<File> images = new ArrayList<File>(ret.size() - attached.size());
+        for(File f: ret) {
+            if(!attached.contains(f.getPath()))
+                images.add(f);
+        }
+        
+        return images;
     }
     
     private void sortFile(File source, ProgressListener monitor, SortStats stats) throws InterruptedException {
         ByteBuffer in = null;
         ByteBuffer out = null;
+        FlightEvents.SortFile ev = FlightEvents.beginSort();
+        String outcome = SortPlan.ERROR;
+        TimeSource timeSource = null;
+        long size = 0;
         
         try{
-            in = FileUtil.bufferFile(source);
-            long micros = TimestampReader.readJpegTimestampMicros(in);
-            NameFormatter format = null;
+            mLimiter.acquireFile();
+            MetadataCache.Key key = MetadataCache.keyFor(source);
+            FileMeta meta = mCache.get(key);
+            if(key != null)
+                size = key.size();
             
-            if(micros != Long.MIN_VALUE) {
-                if(mFormatter == null)
-                    mFormatter = NameFormatter.compile(NameFormatter.DEFAULT_FILE_PATTERN);
+            stats.sourceFound(source, size);
+            
+            long t;
+            if(meta == null) {
+                t = SortMetrics.start();
+                in = FileUtil.bufferFile(source, mScheduler);
+                stats.mMetrics.record(SortMetrics.Stage.READ, t, in.remaining());
                 
-                format = mFormatter;
-            }else{
-                if(mUndatedFormatter == null)
-                    mUndatedFormatter = NameFormatter.compile(NameFormatter.DEFAULT_UNDATED_PATTERN);
+                t = SortMetrics.start();
+                meta = TimestampReader.readFileMeta(source, in, mSidecars);
+                mCache.put(key, meta);
+                stats.mMetrics.record(SortMetrics.Stage.PARSE, t, 0L);
+            }
+            
+            t = SortMetrics.start();
+            TimeChain.Result time = mTimeChain.resolve(source, meta);
+            timeSource = time.mSource;
+            stats.mMetrics.record(SortMetrics.Stage.PARSE, t, 0L);
+            
+            t = SortMetrics.start();
+            File target = initialTarget(source, time.mMicros);
+            stats.mMetrics.record(SortMetrics.Stage.NAME, t, 0L);
+            if(!inShard(source, target, time)) {
+                stats.mOtherShard++;
+                outcome = "other-shard";
+                return;
+            }
+            
+            if((mHashNames || mShard != null) && !meta.mHasHash) {
+                XxHash64 hash = new XxHash64();
+                if(in != null) {
+                    hash.update(in);
+                    meta = meta.withHash(hash.digest());
+                }else{
+                    t = SortMetrics.start();
+                    meta = meta.withHash(FileUtil.hashFile(source, mScheduler));
+                    stats.mMetrics.record(SortMetrics.Stage.READ, t, key.size());
+                }
                 
-                format = mUndatedFormatter;
+                mCache.put(key, meta);
             }
             
-            File target = new File(mTarget, format.format(source, mTarget, micros));
-            File targetDir = target.getParentFile();
+            t = SortMetrics.start();
             String[] parts = splitFile(target.getName());
-            FileIter iter = new FileIter(targetDir, parts[0], parts[1]);
+            FileIter iter = new FileIter(target.getParentFile(), parts[0], parts[1], collisionTag(meta));
+            stats.mMetrics.record(SortMetrics.Stage.NAME, t, 0L);
             
-            while(true) {
-                target = iter.next();
-                
-                if(!target.exists())
-                    break;
-                
-                if(!FileUtil.diff(target, in)) {
-                    stats.mDuplicates++;
-                    return;
-                }
+            if(!place(source, meta, in, iter, time.mSource, monitor, stats)) {
+                stats.mDuplicates++;
+                outcome = SortPlan.DUPLICATE;
+                return;
             }
             
-            transferFile(source, target, monitor, stats);
-            if(micros == Long.MIN_VALUE)
+            outcome = SortPlan.decisionFor(mMode);
+            if(time.mSource == null) {
                 stats.mUndated++;
+            }else{
+                stats.mSources[time.mSource.ordinal()]++;
+            }
             
         }catch(InterruptedIOException ex) {
             throw new InterruptedException();
@@ -272,31 +1788,385 @@ public class PhotoSort implements ProgressTask {
             if(Thread.interrupted())
                 throw new InterruptedException();
             
-            stats.mFailed++;
+            stats.failed(source, ex);
             String msg = ex.getMessage();
             if(msg == null)
                 msg = ex.getClass().getName();
             
             monitor.addInfo("Failed to sort \"" + source.getPath() + "\": " + msg + "\n");
+            mEventLog.failed(source, msg);
+            
+        }catch(RuntimeException ex) {
+            //A malformed file must never take down the rest of the run.
+            stats.failed(source, ex);
+            monitor.addInfo("Failed to sort \"" + source.getPath() + "\": " + ex + "\n");
+            mEventLog.failed(source, ex.toString());
+        }finally{
+            FlightEvents.endSort(ev, source, size, outcome, timeSource);
+        }
+    }
+    
+    /**
+     * Transfers source to the first name from <code>iter</code> not taken by
+     * a different file. Names are claimed exclusively when the transfer
+     * starts, so if another process takes a name between the check and the
+     * transfer, that name is simply examined again.
+     * 
+     * @return true if transferred, false if an identical file is already in place.
+     */
+    private boolean place(File source, FileMeta meta, ByteBuffer in, FileIter iter, TimeSource timeSource, ProgressListener monitor, SortStats stats) throws IOException {
+        //Other shards write to the same folders, so only the disk can be trusted to say which names are free.
+        if(mShard == null)
+            return placeIndexed(source, meta, in, iter, timeSource, monitor, stats);
+        
+        long t = SortMetrics.start();
+        File target = iter.next();
+        
+        while(true) {
+            boolean exists = target.exists();
+            stats.mMetrics.record(SortMetrics.Stage.PROBE, t, 0L);
+            
+            if(exists) {
+                awaitWriter(target, source.length());
+                
+                if(isDuplicate(source, meta, in, target, stats.mMetrics)) {
+                    mEventLog.duplicate(source, target, timeSource);
+                    return false;
+                }
+                
+                t = SortMetrics.start();
+                target = iter.next();
+                continue;
+            }
+            
+            try{
+                transferFile(source, meta, target, timeSource, monitor, stats);
+                return true;
+            }catch(FileAlreadyExistsException ex) {
+                //Lost the name to another process.
+                t = SortMetrics.start();
+            }
+        }
+    }
+    
+    /**
+     * Waits while a shorter target is still being written, presumably by
+     * another shard, so that a duplicate is not mistaken for a different
+     * file just because it is incomplete.
+     */
+    private static void awaitWriter(File target, long size) throws IOException {
+        while(target.length() < size && System.currentTimeMillis() - target.lastModified() < WRITER_SETTLE_MILLIS) {
+            try{
+                Thread.sleep(20L);
+            }catch(InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+    
+    private boolean inShard(File source, File target, TimeChain.Result time) {
+        return mShard == null || mShard.accepts(mSource, source, mTarget, target, time.mSource != null);
+    }
+    
+    /**
+     * Drops files belonging to other shards, where that can be decided before reading them.
+     */
+    private List<File> filterShard(List<File> files, SortStats stats) {
+        if(mShard == null || !mShard.bySourcePath())
+            return files;
+        
+        List<File> ret = new ArrayList<File>(files.size() / mShard.count() + 16);
+        for(File f: files) {
+            if(mShard.acceptsSource(mSource, f)) {
+                ret.add(f);
+            }else{
+                stats.mOtherShard++;
+            }
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * @return tag for collision names, or null to number collisions in order.
+     */
+    private String collisionTag(FileMeta meta) {
+        if((!mHashNames && mShard == null) || !meta.mHasHash)
+            return null;
+        
+        return hashTag(meta.mHash);
+    }
+    
+    private static String hashTag(long hash) {
+        return String.format("%08x", hash >>> 32);
+    }
+    
+    /**
+     * Does the work of place() using the name index, so that a name is
+     * found without probing each candidate on disk, and only candidates of
+     * the same size are compared against the source.
+     */
+    private boolean placeIndexed(File source, FileMeta meta, ByteBuffer in, FileIter iter, TimeSource timeSource, ProgressListener monitor, SortStats stats) throws IOException {
+        long t = SortMetrics.start();
+        long size = source.length();
+        NameIndex.Series series = mNameIndex.series(iter);
+        List<File> same = series.existing(size);
+        stats.mMetrics.record(SortMetrics.Stage.PROBE, t, 0L);
+        
+        for(File candidate: same) {
+            if(isDuplicate(source, meta, in, candidate, stats.mMetrics)) {
+                mEventLog.duplicate(source, candidate, timeSource);
+                return false;
+            }
+        }
+        
+        while(true) {
+            t = SortMetrics.start();
+            File target = series.claim(size);
+            stats.mMetrics.record(SortMetrics.Stage.PROBE, t, 0L);
+            boolean settled = false;
+            
+            try{
+                transferFile(source, meta, target, timeSource, monitor, stats);
+                settled = true;
+                return true;
+            }catch(FileAlreadyExistsException ex) {
+                //Taken since the folder was indexed. The name stays in use, and the next claim moves past it.
+                long taken = target.length();
+                series.found(target, taken);
+                settled = true;
+                if(taken == size && isDuplicate(source, meta, in, target, stats.mMetrics)) {
+                    mEventLog.duplicate(source, target, timeSource);
+                    return false;
+                }
+            }finally{
+                if(!settled)
+                    series.release(target);
+            }
+        }
+    }
+    
+    /**
+     * @return target for source before collisions are resolved.
+     */
+    private File initialTarget(File source, long micros) {
+        NameFormatter format = null;
+        
+        if(micros != Long.MIN_VALUE) {
+            if(mFormatter == null)
+                mFormatter = NameFormatter.compile(NameFormatter.DEFAULT_FILE_PATTERN);
+            
+            format = mFormatter;
+        }else{
+            if(mUndatedFormatter == null)
+                mUndatedFormatter = NameFormatter.compile(NameFormatter.DEFAULT_UNDATED_PATTERN);
+            
+            format = mUndatedFormatter;
         }
+        
+        return new File(mTarget, format.format(source, mTarget, micros));
     }
     
-    private void transferFile(File source, File target, ProgressListener monitor, SortStats stats) throws IOException {
+    /**
+     * Compares source against an existing file in the target. Content
+     * hashes from the cache settle the question when both are known;
+     * otherwise the files are compared byte by byte.
+     */
+    private boolean isDuplicate(File source, FileMeta meta, ByteBuffer in, File candidate, SortMetrics metrics) throws IOException {
+        long t = SortMetrics.start();
+        
+        if(meta != null && meta.mHasHash) {
+            FileMeta other = mCache.get(MetadataCache.keyFor(candidate));
+            if(other != null && other.mHasHash) {
+                boolean ret = other.mHash == meta.mHash && candidate.length() == source.length();
+                metrics.record(SortMetrics.Stage.DIFF, t, 0L);
+                return ret;
+            }
+        }
+        
+        boolean ret = in != null ? !FileUtil.diff(candidate, in) : !FileUtil.diff(candidate, source);
+        metrics.record(SortMetrics.Stage.DIFF, t, candidate.length());
+        return ret;
+    }
+    
+    private void transferFile(File source, FileMeta meta, File target, TimeSource timeSource, ProgressListener monitor, SortStats stats) throws IOException {
         File targetDir = target.getParentFile();
-        if(!targetDir.exists()) {
-            if(!targetDir.mkdirs())
-                throw new IOException("Failed to make output directory");
+        mDirs.ensure(targetDir);
+        
+        long size = source.length();
+        long t = SortMetrics.start();
+        TransferMode done;
+        
+        stats.mInFlightBytes = size;
+        try{
+            done = transfer(source, meta, target);
+        }catch(IOException ex) {
+            //The directory may have been removed since it was cached. If so, the next file makes it again.
+            if(!targetDir.isDirectory())
+                mDirs.forget(targetDir);
+            
+            throw ex;
+        }finally{
+            stats.mInFlightBytes = 0;
         }
         
-        if(mMove) {
-            FileUtil.moveFile(source, target);
-            System.out.println(source.getPath() + " m> " + target.getPath());
+        long nanos = System.nanoTime() - t;
+        stats.mMetrics.record(SortMetrics.Stage.TRANSFER, t, size);
+        stats.mBytesTransferred += size;
+        mEventLog.transferred(source, target, done, timeSource, size, nanos);
+        
+        switch(done) {
+        case MOVE:
             stats.mMoved++;
-        }else{
-            FileUtil.copyFile(source, target);
-            System.out.println(source.getPath() + " c> " + target.getPath());
+            break;
+        case HARDLINK:
+            stats.mLinked++;
+            break;
+        case CLONE:
+            stats.mCloned++;
+            break;
+        default:
             stats.mCopied++;
-        }        
+            break;
+        }
+        
+        File sidecar = mSidecars.find(source);
+        if(sidecar != null)
+            transferSidecar(sidecar, target, monitor);
+    }
+    
+    /**
+     * Places an image's sidecar beside it. Images that share a stem share
+     * <code>name.xmp</code>, which goes with the first of them to be placed.
+     * The image is already placed, so failures are reported, not thrown.
+     */
+    private void transferSidecar(File sidecar, File target, ProgressListener monitor) throws InterruptedIOException {
+        File placed = mPlacedSidecars.get(sidecar.getPath());
+        if(placed != null) {
+            monitor.addInfo("Sidecar \"" + sidecar.getPath() + "\" is shared and was placed with \"" + placed.getPath() + "\"\n");
+            return;
+        }
+        
+        String[] parts = splitFile(target.getName());
+        File sidecarTarget = new File(target.getParentFile(), parts[0] + ".xmp");
+        
+        try{
+            if(sidecarTarget.exists())
+                throw new FileAlreadyExistsException(sidecarTarget.getPath());
+            
+            transfer(sidecar, null, sidecarTarget);
+            mPlacedSidecars.put(sidecar.getPath(), sidecarTarget);
+        }catch(FileAlreadyExistsException ex) {
+            monitor.addInfo("Sidecar target already exists: \"" + sidecarTarget.getPath() + "\"\n");
+        }catch(InterruptedIOException ex) {
+            throw ex;
+        }catch(IOException ex) {
+            monitor.addInfo("Failed to transfer sidecar \"" + sidecar.getPath() + "\": " + ex.getMessage() + "\n");
+        }
+    }
+    
+    /**
+     * @return mode actually used, which is COPY if link or clone fell back to copying.
+     */
+    private TransferMode transfer(File source, FileMeta meta, File target) throws IOException {
+        switch(mMode) {
+        case MOVE:
+            journaledMove(source, target);
+            return TransferMode.MOVE;
+            
+        case HARDLINK:
+            if(FileUtil.linkFile(source, target, mScheduler)) {
+                //A new link only adds a directory entry. The data is already wherever it is.
+                makeDurable(target, false, null);
+                return TransferMode.HARDLINK;
+            }
+            
+            makeDurable(target, true, null);
+            return TransferMode.COPY;
+            
+        case CLONE:
+            TransferMode ret = FileUtil.cloneFile(source, target, mScheduler) ? TransferMode.CLONE : TransferMode.COPY;
+            makeDurable(target, true, null);
+            return ret;
+            
+        default:
+            long hash = FileUtil.copyFileHashed(source, target, mScheduler);
+            if(meta != null && meta.mHasHash && meta.mHash != hash) {
+                target.delete();
+                throw new IOException("Source contents changed since they were last hashed");
+            }
+            
+            if(mVerify && FileUtil.hashFile(target, mScheduler) != hash) {
+                target.delete();
+                throw new IOException("Copy does not match source");
+            }
+            
+            //Source and copy share a hash, which later runs use to settle duplicates without reading either.
+            if(meta != null) {
+                FileMeta hashed = meta.withHash(hash);
+                mCache.put(MetadataCache.keyFor(source), hashed);
+                mCache.put(MetadataCache.keyFor(target), hashed);
+            }
+            
+            makeDurable(target, true, null);
+            return TransferMode.COPY;
+        }
+    }
+    
+    private void journaledMove(File source, File target) throws IOException {
+        final long seq = mJournal.logIntent(source, target);
+        mJournal.awaitDurable(seq);
+        
+        try{
+            FileUtil.moveFile(source, target, mScheduler);
+        }catch(IOException ex) {
+            //Nothing moved, or the failed move was undone. Recovery must not mistake another file for a partial move.
+            if(ex instanceof FileAlreadyExistsException || !target.exists())
+                mJournal.logDone(seq);
+            
+            throw ex;
+        }
+        
+        //Completion is only recorded once the target is durable, so recovery never trusts a truncated file.
+        makeDurable(target, true, new Runnable() {
+            public void run() {
+                try{
+                    mJournal.logDone(seq);
+                }catch(IOException ex) {
+                    //Journal failed. The move will be re-examined on recovery.
+                }
+            }
+        });
+    }
+    
+    /**
+     * Forces transferred file to disk according to durability setting.
+     * 
+     * @param syncData If false, only the directory entry needs syncing.
+     * @param onDurable Run once file is durable. May be null.
+     */
+    private void makeDurable(File target, boolean syncData, Runnable onDurable) throws IOException {
+        switch(mDurability) {
+        case BATCHED:
+            mFlusher.submit(target, syncData, onDurable);
+            return;
+            
+        case FILE:
+            long t0 = System.nanoTime();
+            if(syncData)
+                SyncFlusher.syncFile(target);
+            
+            SyncFlusher.syncDir(target.getAbsoluteFile().getParentFile());
+            mSyncNanos += System.nanoTime() - t0;
+            mSyncedFiles++;
+            break;
+            
+        default:
+            break;
+        }
+        
+        if(onDurable != null)
+            onDurable.run();
     }
     
     private String[] splitFile(String name) {
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.InterruptedIOException;
+
+
+/**
+ * Overall limits on bytes and files per second, shared by every thread of
+ * a sort regardless of device. Where {@link IoScheduler} keeps devices from
+ * being overdriven, this keeps a backlog ingest from taking more of a
+ * shared machine than it is allowed. Limits may be changed while a sort
+ * runs, and take effect immediately.
+ * <p>
+ * A limit of zero means unlimited. All methods are thread-safe.
+ */
+public class RateLimiter {
+
+    /**
+     * Seconds of traffic that may pass at once after the limiter has been idle.
+     */
+    private static final double BURST_SECONDS = 0.25;
+
+
+    private final TokenBucket mBytes = new TokenBucket(0.0, 0.0);
+    private final TokenBucket mFiles = new TokenBucket(0.0, 0.0);
+
+
+    public RateLimiter() {}
+
+    public RateLimiter(long bytesPerSec, double filesPerSec) {
+        setBytesPerSec(bytesPerSec);
+        setFilesPerSec(filesPerSec);
+    }
+
+
+    public void setBytesPerSec(long bytesPerSec) {
+        mBytes.setRate(bytesPerSec, bytesPerSec * BURST_SECONDS);
+    }
+
+    public long bytesPerSec() {
+        return (long)mBytes.rate();
+    }
+
+    public void setFilesPerSec(double filesPerSec) {
+        mFiles.setRate(filesPerSec, Math.max(1.0, filesPerSec * BURST_SECONDS));
+    }
+
+    public double filesPerSec() {
+        return mFiles.rate();
+    }
+
+    /**
+     * Blocks until <code>n</code> more bytes may be moved.
+     */
+    public void acquireBytes(long n) throws InterruptedIOException {
+        mBytes.acquire(n);
+    }
+
+    /**
+     * Blocks until another file may be processed.
+     */
+    public void acquireFile() throws InterruptedIOException {
+        mFiles.acquire(1L);
+    }
+
+    /**
+     * @return total time threads have spent held back by either limit, in nanoseconds.
+     */
+    public long waitNanos() {
+        return mBytes.waitNanos() + mFiles.waitNanos();
+    }
+
+
+    public String toString() {
+        String bytes = mBytes.isLimited() ? String.format("%.1f MB/s", mBytes.rate() / (1 << 20)) : "unlimited MB/s";
+        String files = mFiles.isLimited() ? String.format("%.1f files/s", mFiles.rate()) : "unlimited files/s";
+        return String.format("%-6.1f  seconds throttled by rate limits (%s, %s)\n", waitNanos() / 1e9, bytes, files);
+    }
+
+}
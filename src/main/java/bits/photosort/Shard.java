@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.File;
+
+
+/**
+ * One of N partitions of a sort, so that several processes, possibly on
+ * different machines, can each sort their share of a source into a shared
+ * target without coordinating.
+ * <p>
+ * Files are assigned by hashing a key:
+ * <ul>
+ * <li>PATH: the source path relative to the source root. Shards are
+ * balanced, but files from different shards may compete for the same
+ * target names.</li>
+ * <li>DATE: the target folder relative to the target root, which for a
+ * dated naming pattern is a date range such as a day or month. Every file
+ * that could compete for a target name is then in the same shard. Undated
+ * files fall back to PATH.</li>
+ * </ul>
+ * Keys use '/' separators and are relative, so shards agree across
+ * machines that mount the source and target at different places. DATE
+ * shards also assume the machines share a time zone, since folder names
+ * are formatted in local time.
+ */
+public class Shard {
+
+    public enum By {
+        PATH,
+        DATE
+    }
+
+
+    /**
+     * Parses "k/N", where shards are numbered from 0.
+     *
+     * @throws IllegalArgumentException if spec is invalid.
+     */
+    public static Shard parse(String spec, By by) {
+        int slash = spec.indexOf('/');
+        if(slash < 0)
+            throw new IllegalArgumentException("Shard must be given as k/N: " + spec);
+
+        try{
+            return new Shard(Integer.parseInt(spec.substring(0, slash).trim()),
+                             Integer.parseInt(spec.substring(slash + 1).trim()),
+                             by);
+        }catch(NumberFormatException ex) {
+            throw new IllegalArgumentException("Shard must be given as k/N: " + spec);
+        }
+    }
+
+
+    private final int mIndex;
+    private final int mCount;
+    private final By mBy;
+
+
+    public Shard(int index, int count, By by) {
+        if(count < 1 || index < 0 || index >= count)
+            throw new IllegalArgumentException("Shard " + index + "/" + count + " out of range.");
+
+        mIndex = index;
+        mCount = count;
+        mBy = (by != null ? by : By.PATH);
+    }
+
+
+    public int index() {
+        return mIndex;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    public By by() {
+        return mBy;
+    }
+
+    /**
+     * @return true iff shard membership can be decided from the source path alone.
+     */
+    public boolean bySourcePath() {
+        return mBy == By.PATH;
+    }
+
+    /**
+     * @param dated True iff file has a timestamp, so its target folder is a date range.
+     * @return true iff file belongs to this shard.
+     */
+    public boolean accepts(File sourceRoot, File source, File targetRoot, File target, boolean dated) {
+        if(mBy == By.DATE && dated && target != null)
+            return acceptsKey(relativeKey(targetRoot, target.getParentFile()));
+
+        return acceptsKey(relativeKey(sourceRoot, source));
+    }
+
+    /**
+     * @return true iff source belongs to this shard. Only valid when sharding by path.
+     */
+    public boolean acceptsSource(File sourceRoot, File source) {
+        return acceptsKey(relativeKey(sourceRoot, source));
+    }
+
+
+    public String toString() {
+        return mIndex + "/" + mCount + " by " + mBy.name().toLowerCase();
+    }
+
+
+
+    private boolean acceptsKey(String key) {
+        long h = SortCheckpoint.pathHash(key);
+        return (h >>> 1) % mCount == mIndex;
+    }
+
+    private static String relativeKey(File root, File file) {
+        String r = root.getPath();
+        String f = file.getPath();
+
+        if(f.startsWith(r)) {
+            f = f.substring(r.length());
+            while(f.startsWith(File.separator))
+                f = f.substring(1);
+        }
+
+        return f.replace(File.separatorChar, '/');
+    }
+
+}
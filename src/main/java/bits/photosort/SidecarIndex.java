@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.File;
+import java.util.*;
+
+
+/**
+ * XMP sidecars by directory, so that an image's sidecar is found with a
+ * lookup rather than a stat of every candidate name. Built once per crawl,
+ * from the files the crawl returns, or from a single listing of each
+ * directory that needs it.
+ * <p>
+ * Directories the index knows nothing about are either taken to hold no
+ * sidecars, for an index built from a complete crawl, or probed on disk
+ * as {@link XmpScanner} does.
+ * <p>
+ * Not safe to modify from more than one thread, but safe to read from any
+ * number once built.
+ */
+class SidecarIndex {
+
+    /**
+     * Index that knows no directories and probes the disk for every lookup.
+     */
+    public static final SidecarIndex DISK = new SidecarIndex(true);
+
+
+    private final boolean mProbeUnknown;
+    private final Map<String,Dir> mDirs = new HashMap<String,Dir>();
+
+
+    /**
+     * @param probeUnknown If true, lookups in directories not in the index probe the disk.
+     *                     If false, such directories are taken to hold no sidecars.
+     */
+    public SidecarIndex(boolean probeUnknown) {
+        mProbeUnknown = probeUnknown;
+    }
+
+
+    /**
+     * Records a file found by a crawl. Only sidecars are kept.
+     */
+    public void add(File file) {
+        if(XmpScanner.isSidecar(file))
+            dir(file.getParent()).mSidecars.put(file.getName(), file);
+    }
+
+    /**
+     * Lists a directory, recording all sidecars in it and the images that sidecars may belong to.
+     */
+    public void addListing(File dir) {
+        Dir d = dir(dir.getPath());
+        if(d.mStems != null)
+            return;
+
+        d.mStems = new HashSet<String>();
+        String[] names = dir.list();
+        if(names == null)
+            return;
+
+        for(String name: names) {
+            if(name.toLowerCase().endsWith(".xmp")) {
+                d.mSidecars.put(name, new File(dir, name));
+            }else{
+                d.mNames.add(name);
+                int idx = name.lastIndexOf('.');
+                if(idx > 0)
+                    d.mStems.add(name.substring(0, idx));
+            }
+        }
+    }
+
+    /**
+     * Equivalent to {@link XmpScanner#findSidecar}.
+     *
+     * @return sidecar file, or null if none exists.
+     */
+    public File find(File image) {
+        Dir d = mDirs.get(image.getParent());
+        if(d == null)
+            return mProbeUnknown ? XmpScanner.findSidecar(image) : null;
+
+        for(String name: XmpScanner.sidecarNames(image.getName())) {
+            File f = d.mSidecars.get(name);
+            if(f != null)
+                return f;
+        }
+
+        return null;
+    }
+
+    /**
+     * Equivalent to {@link XmpScanner#hasImage}. Probes the disk unless the sidecar's directory was listed.
+     */
+    public boolean hasImage(File sidecar) {
+        Dir d = mDirs.get(sidecar.getParent());
+        if(d == null || d.mStems == null)
+            return XmpScanner.hasImage(sidecar);
+
+        String name = sidecar.getName();
+        String base = name.substring(0, name.length() - 4);
+
+        //name.ext.xmp, then name.xmp
+        return base.indexOf('.') > 0 && d.mNames.contains(base) || d.mStems.contains(base);
+    }
+
+
+
+    private Dir dir(String path) {
+        Dir ret = mDirs.get(path);
+        if(ret == null) {
+            ret = new Dir();
+            mDirs.put(path, ret);
+        }
+
+        return ret;
+    }
+
+
+    private static final class Dir {
+        final Map<String,File> mSidecars = new HashMap<String,File>();
+        //Other names, and those names without extensions, once listed. Stems are null until then.
+        final Set<String> mNames = new HashSet<String>();
+        Set<String> mStems = null;
+    }
+
+}
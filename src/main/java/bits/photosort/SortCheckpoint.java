@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Progress of a sort job, saved so a cancelled or crashed job can continue
+ * where it left off. A checkpoint holds the crawl position, as the path of
+ * the first file that may not have been sorted, plus the set of files past
+ * that position that have been sorted already. Files are recorded as
+ * 64-bit path hashes to keep the state file small.
+ * <p>
+ * The position is a path rather than a file that must exist. In move mode
+ * the file at the position is usually gone by the time the job resumes, so
+ * the crawl resumes from the nearest folder above it that remains.
+ */
+class SortCheckpoint {
+
+    public static final String FILE_NAME = ".photosort-state";
+
+    private static final int FILE_MAGIC   = 0x50534350; // "PSCP"
+    private static final int FILE_VERSION = 1;
+
+
+    public static File stateFile(File targetRoot) {
+        return new File(targetRoot, FILE_NAME);
+    }
+
+    /**
+     * @return checkpoint saved in target root, or null if none exists or it cannot be read.
+     */
+    public static SortCheckpoint load(File targetRoot) {
+        File file = stateFile(targetRoot);
+        if(!file.isFile())
+            return null;
+
+        try{
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try{
+                if(in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+                    return null;
+
+                SortCheckpoint ret = new SortCheckpoint(in.readUTF());
+                if(in.readBoolean())
+                    ret.mPosition = in.readUTF();
+
+                int count = in.readInt();
+                for(int i = 0; i < count; i++)
+                    ret.mDone.add(in.readLong());
+
+                return ret;
+            }finally{
+                in.close();
+            }
+        }catch(IOException ex) {
+            return null;
+        }
+    }
+
+    public static void delete(File targetRoot) {
+        stateFile(targetRoot).delete();
+    }
+
+    static long pathHash(String path) {
+        //64-bit FNV-1a.
+        long h = 0xCBF29CE484222325L;
+        for(int i = 0; i < path.length(); i++) {
+            h ^= path.charAt(i);
+            h *= 0x100000001B3L;
+        }
+
+        return h;
+    }
+
+
+    private final String mSource;
+    private String mPosition = null;
+    private final Set<Long> mDone = new HashSet<Long>();
+
+
+    public SortCheckpoint(String sourcePath) {
+        mSource = sourcePath;
+    }
+
+
+    public String sourcePath() {
+        return mSource;
+    }
+
+    /**
+     * @return path of first file that may not have been sorted, or null to start from the beginning.
+     */
+    public String position() {
+        return mPosition;
+    }
+
+    /**
+     * Moves crawl position forward and forgets completed files behind it.
+     *
+     * @param path Path of first file that may not have been sorted, or null for the beginning.
+     */
+    public void setPosition(String path) {
+        mPosition = path;
+        mDone.clear();
+    }
+
+    public void markDone(File file) {
+        mDone.add(pathHash(file.getPath()));
+    }
+
+    public boolean isDone(File file) {
+        return mDone.contains(pathHash(file.getPath()));
+    }
+
+    /**
+     * Writes checkpoint to a temporary file and renames it over the previous
+     * checkpoint, so a crash during save leaves the older checkpoint intact.
+     */
+    public void save(File targetRoot) throws IOException {
+        File file = stateFile(targetRoot);
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+
+        try{
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(mSource);
+            out.writeBoolean(mPosition != null);
+            if(mPosition != null)
+                out.writeUTF(mPosition);
+
+            out.writeInt(mDone.size());
+            for(Long h: mDone)
+                out.writeLong(h);
+        }finally{
+            out.close();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
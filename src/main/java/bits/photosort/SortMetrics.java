@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.util.*;
+
+
+/**
+ * Time and bytes spent in each stage of a sort, for telling whether a slow
+ * run is bound by I/O, parsing or something else.
+ * <p>
+ * Every thread records into its own accumulator, so recording takes no
+ * locks and shares no cache lines. Accumulators are merged only when a
+ * report is made. Accumulators of threads that have finished are folded
+ * together as new threads arrive, so the short-lived pools used for
+ * prefetching do not make memory grow with the length of a run.
+ * <p>
+ * Reports are exact once the recording threads have finished, and
+ * approximate while they are still running.
+ */
+class SortMetrics {
+
+    enum Stage {
+        CRAWL    ("crawl"),
+        READ     ("read"),
+        PARSE    ("parse"),
+        NAME     ("name"),
+        PROBE    ("collision probe"),
+        DIFF     ("diff"),
+        TRANSFER ("transfer");
+
+        private final String mName;
+
+        Stage(String name) {
+            mName = name;
+        }
+
+        public String stageName() {
+            return mName;
+        }
+    }
+
+
+    private static final int STAGES = Stage.values().length;
+
+    /**
+     * @return start time to pass to {@link #record}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+
+    private final List<Recorder> mRecorders = new ArrayList<Recorder>();
+    private final Recorder mRetired = new Recorder(null);
+
+    private final ThreadLocal<Recorder> mLocal = new ThreadLocal<Recorder>() {
+        protected Recorder initialValue() {
+            Recorder r = new Recorder(Thread.currentThread());
+            synchronized(mRecorders) {
+                retireFinished();
+                mRecorders.add(r);
+            }
+            return r;
+        }
+    };
+
+
+    /**
+     * Records one pass through a stage that began at <code>startNanos</code> and ends now.
+     *
+     * @param bytes Bytes read or written in the stage.
+     */
+    public void record(Stage stage, long startNanos, long bytes) {
+        mLocal.get().record(stage.ordinal(), System.nanoTime() - startNanos, bytes);
+    }
+
+    /**
+     * @return totals for each stage, indexed by ordinal.
+     */
+    public Summary[] summarize() {
+        Recorder all = new Recorder(null);
+        synchronized(mRecorders) {
+            all.add(mRetired);
+            for(Recorder r: mRecorders)
+                all.add(r);
+        }
+
+        Summary[] ret = new Summary[STAGES];
+        for(Stage s: Stage.values()) {
+            int i = s.ordinal();
+            LatencyHistogram h = all.mHist[i] != null ? all.mHist[i] : new LatencyHistogram();
+            ret[i] = new Summary(s, all.mCount[i], all.mNanos[i], all.mBytes[i], h);
+        }
+
+        return ret;
+    }
+
+
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("%-16s %9s %10s %9s %9s %9s %9s %9s\n",
+                               "stage", "count", "total s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+
+        for(Summary m: summarize()) {
+            if(m.mCount == 0)
+                continue;
+
+            s.append(String.format("%-16s %9d %10.2f %9s %9.3f %9.3f %9.3f %9.3f\n",
+                                   m.mStage.stageName(),
+                                   m.mCount,
+                                   m.mNanos / 1e9,
+                                   m.mBytes > 0 ? String.format("%.1f", m.bytesPerSec() / (1 << 20)) : "-",
+                                   m.mHist.percentile(50) / 1e6,
+                                   m.mHist.percentile(90) / 1e6,
+                                   m.mHist.percentile(99) / 1e6,
+                                   m.mHist.max() / 1e6));
+        }
+
+        return s.toString();
+    }
+
+    /**
+     * @return stages as a JSON object keyed by stage name, with times in nanoseconds.
+     */
+    public String toJson() {
+        StringBuilder s = new StringBuilder("{");
+        boolean first = true;
+
+        for(Summary m: summarize()) {
+            if(!first)
+                s.append(',');
+
+            first = false;
+            s.append("\n    \"").append(m.mStage.name().toLowerCase()).append("\": {");
+            s.append("\"count\": ").append(m.mCount);
+            s.append(", \"nanos\": ").append(m.mNanos);
+            s.append(", \"bytes\": ").append(m.mBytes);
+            s.append(", \"p50_nanos\": ").append(m.mHist.percentile(50));
+            s.append(", \"p90_nanos\": ").append(m.mHist.percentile(90));
+            s.append(", \"p99_nanos\": ").append(m.mHist.percentile(99));
+            s.append(", \"p999_nanos\": ").append(m.mHist.percentile(99.9));
+            s.append(", \"max_nanos\": ").append(m.mHist.max());
+            s.append('}');
+        }
+
+        return s.append("\n  }").toString();
+    }
+
+
+
+    /**
+     * Folds accumulators of threads that have ended into mRetired. Seeing
+     * a thread as no longer alive guarantees its writes are visible.
+     */
+    private void retireFinished() {
+        Iterator<Recorder> iter = mRecorders.iterator();
+        while(iter.hasNext()) {
+            Recorder r = iter.next();
+            if(!r.mThread.isAlive()) {
+                mRetired.add(r);
+                iter.remove();
+            }
+        }
+    }
+
+
+
+    /**
+     * Totals for one stage.
+     */
+    static final class Summary {
+        final Stage mStage;
+        final long mCount;
+        final long mNanos;
+        final long mBytes;
+        final LatencyHistogram mHist;
+
+        Summary(Stage stage, long count, long nanos, long bytes, LatencyHistogram hist) {
+            mStage = stage;
+            mCount = count;
+            mNanos = nanos;
+            mBytes = bytes;
+            mHist = hist;
+        }
+
+        /**
+         * @return bytes per second of time spent in the stage, summed over threads.
+         */
+        public double bytesPerSec() {
+            return mNanos == 0 ? 0.0 : mBytes * 1e9 / mNanos;
+        }
+    }
+
+
+    private static final class Recorder {
+        final Thread mThread;
+        final long[] mCount = new long[STAGES];
+        final long[] mNanos = new long[STAGES];
+        final long[] mBytes = new long[STAGES];
+        //Allocated on first use, since most threads only pass through one or two stages.
+        final LatencyHistogram[] mHist = new LatencyHistogram[STAGES];
+
+        Recorder(Thread thread) {
+            mThread = thread;
+        }
+
+        void record(int stage, long nanos, long bytes) {
+            mCount[stage]++;
+            mNanos[stage] += nanos;
+            mBytes[stage] += bytes;
+
+            if(mHist[stage] == null)
+                mHist[stage] = new LatencyHistogram();
+
+            mHist[stage].record(nanos);
+        }
+
+        void add(Recorder r) {
+            for(int i = 0; i < STAGES; i++) {
+                mCount[i] += r.mCount[i];
+                mNanos[i] += r.mNanos[i];
+                mBytes[i] += r.mBytes[i];
+
+                LatencyHistogram h = r.mHist[i];
+                if(h != null) {
+                    if(mHist[i] == null)
+                        mHist[i] = new LatencyHistogram();
+
+                    mHist[i].add(h);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.*;
+
+
+/**
+ * Exposes a running sort to monitoring. Registered as an MXBean under
+ * {@link #OBJECT_NAME} while a sort runs, and rendered in the Prometheus
+ * text format by {@link #toPrometheus()} for the local metrics endpoint.
+ * <p>
+ * Everything here is read from other threads while the sort runs, and
+ * reflects the sort's state at about the time of the call.
+ */
+public class SortMonitor implements SortMonitorMXBean {
+
+    public static final String OBJECT_NAME = "bits.photosort:type=Sort";
+
+
+    private volatile SortStats mStats = new SortStats();
+    private volatile MetadataCache mCache = null;
+    private volatile IoScheduler mScheduler = null;
+    private volatile SyncFlusher mFlusher = null;
+    private volatile EventLog mEventLog = null;
+    private volatile boolean mRunning = false;
+
+    private ObjectName mName = null;
+
+
+    /**
+     * Starts reporting on a run. Any argument but stats may be null.
+     */
+    void attach(SortStats stats, MetadataCache cache, IoScheduler scheduler, SyncFlusher flusher, EventLog log) {
+        mStats = stats;
+        mCache = cache;
+        mScheduler = scheduler;
+        mFlusher = flusher;
+        mEventLog = log;
+        mRunning = true;
+    }
+
+    /**
+     * Ends run. Counts remain readable until the next run.
+     */
+    void detach() {
+        mRunning = false;
+        mFlusher = null;
+        mEventLog = null;
+    }
+
+    /**
+     * Registers with the platform MBean server. If another monitor already
+     * holds {@link #OBJECT_NAME}, an instance number is added.
+     */
+    public synchronized void register() throws JMException {
+        if(mName != null)
+            return;
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(int i = 1; ; i++) {
+            ObjectName name = new ObjectName(i == 1 ? OBJECT_NAME : OBJECT_NAME + ",instance=" + i);
+            try{
+                server.registerMBean(this, name);
+                mName = name;
+                return;
+            }catch(InstanceAlreadyExistsException ex) {
+                //Try the next name.
+            }
+        }
+    }
+
+    public synchronized void unregister() {
+        if(mName == null)
+            return;
+
+        try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mName);
+        }catch(JMException ex) {
+            //Already gone.
+        }
+
+        mName = null;
+    }
+
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public int getFilesFound() {
+        return mStats.mFiles;
+    }
+
+    public int getFilesCopied() {
+        return mStats.mCopied;
+    }
+
+    public int getFilesMoved() {
+        return mStats.mMoved;
+    }
+
+    public int getFilesLinked() {
+        return mStats.mLinked;
+    }
+
+    public int getFilesCloned() {
+        return mStats.mCloned;
+    }
+
+    public int getFilesPlanned() {
+        return mStats.mPlanned;
+    }
+
+    public int getFilesResumed() {
+        return mStats.mResumed;
+    }
+
+    public int getFilesInOtherShards() {
+        return mStats.mOtherShard;
+    }
+
+    public int getDuplicates() {
+        return mStats.mDuplicates;
+    }
+
+    public int getFailures() {
+        return mStats.mFailed;
+    }
+
+    public int getUndated() {
+        return mStats.mUndated;
+    }
+
+    public double getSecondsSinceProgress() {
+        return (System.currentTimeMillis() - mStats.mLastFileMillis) / 1000.0;
+    }
+
+    public long getInFlightBytes() {
+        return mStats.mInFlightBytes;
+    }
+
+    public long getSyncQueueLength() {
+        SyncFlusher f = mFlusher;
+        return f == null ? 0L : f.pending();
+    }
+
+    public int getEventLogBacklog() {
+        EventLog log = mEventLog;
+        return log == null ? 0 : log.backlog();
+    }
+
+    public int getIoInFlight() {
+        IoScheduler s = mScheduler;
+        if(s == null)
+            return 0;
+
+        int ret = 0;
+        for(IoScheduler.Device d: s.devices())
+            ret += d.inFlight();
+
+        return ret;
+    }
+
+    public int getIoWaiting() {
+        IoScheduler s = mScheduler;
+        if(s == null)
+            return 0;
+
+        int ret = 0;
+        for(IoScheduler.Device d: s.devices())
+            ret += d.waiting();
+
+        return ret;
+    }
+
+    public long getCacheHits() {
+        MetadataCache c = mCache;
+        return c == null ? 0L : c.hits();
+    }
+
+    public long getCacheMisses() {
+        MetadataCache c = mCache;
+        return c == null ? 0L : c.misses();
+    }
+
+    public double getCacheHitRate() {
+        MetadataCache c = mCache;
+        return c == null ? 0.0 : c.hitRate();
+    }
+
+    public List<StageStats> getStages() {
+        List<StageStats> ret = new ArrayList<StageStats>();
+        for(SortMetrics.Summary m: mStats.mMetrics.summarize()) {
+            ret.add(new StageStats(m.mStage.name().toLowerCase(),
+                                   m.mCount,
+                                   m.mNanos / 1e6,
+                                   m.mBytes,
+                                   m.mHist.percentile(50) / 1e6,
+                                   m.mHist.percentile(90) / 1e6,
+                                   m.mHist.percentile(99) / 1e6,
+                                   m.mHist.max() / 1e6));
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return current values in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        SortStats st = mStats;
+        StringBuilder s = new StringBuilder(4096);
+
+        gauge(s, "photosort_running", "1 while a sort is running", mRunning ? 1 : 0);
+        gauge(s, "photosort_files_found", "Files found in the source", st.mFiles);
+
+        s.append("# HELP photosort_files_total Files by outcome\n");
+        s.append("# TYPE photosort_files_total counter\n");
+        sample(s, "photosort_files_total", "outcome", "copied", st.mCopied);
+        sample(s, "photosort_files_total", "outcome", "moved", st.mMoved);
+        sample(s, "photosort_files_total", "outcome", "linked", st.mLinked);
+        sample(s, "photosort_files_total", "outcome", "cloned", st.mCloned);
+        sample(s, "photosort_files_total", "outcome", "planned", st.mPlanned);
+        sample(s, "photosort_files_total", "outcome", "duplicate", st.mDuplicates);
+        sample(s, "photosort_files_total", "outcome", "failed", st.mFailed);
+        sample(s, "photosort_files_total", "outcome", "resumed", st.mResumed);
+        sample(s, "photosort_files_total", "outcome", "other_shard", st.mOtherShard);
+
+        counter(s, "photosort_undated_total", "Files without a timestamp", st.mUndated);
+        gauge(s, "photosort_seconds_since_progress", "Seconds since the last file was dealt with", getSecondsSinceProgress());
+        gauge(s, "photosort_inflight_bytes", "Size of the file being transferred", st.mInFlightBytes);
+        gauge(s, "photosort_sync_queue", "Files transferred but not yet synced", getSyncQueueLength());
+        gauge(s, "photosort_event_log_backlog", "Events waiting to be logged", getEventLogBacklog());
+        counter(s, "photosort_cache_hits_total", "Metadata cache hits", getCacheHits());
+        counter(s, "photosort_cache_misses_total", "Metadata cache misses", getCacheMisses());
+
+        IoScheduler sched = mScheduler;
+        if(sched != null) {
+            List<IoScheduler.Device> devices = sched.devices();
+
+            s.append("# HELP photosort_io_inflight I/O operations admitted per device\n");
+            s.append("# TYPE photosort_io_inflight gauge\n");
+            for(IoScheduler.Device d: devices)
+                sample(s, "photosort_io_inflight", "device", d.name(), d.inFlight());
+
+            s.append("# HELP photosort_io_waiting Threads waiting for I/O admission per device\n");
+            s.append("# TYPE photosort_io_waiting gauge\n");
+            for(IoScheduler.Device d: devices)
+                sample(s, "photosort_io_waiting", "device", d.name(), d.waiting());
+
+            s.append("# HELP photosort_io_bytes_total Bytes moved per device\n");
+            s.append("# TYPE photosort_io_bytes_total counter\n");
+            for(IoScheduler.Device d: devices)
+                sample(s, "photosort_io_bytes_total", "device", d.name(), d.bytes());
+        }
+
+        SortMetrics.Summary[] stages = st.mMetrics.summarize();
+
+        s.append("# HELP photosort_stage_seconds Time spent per pass through each stage\n");
+        s.append("# TYPE photosort_stage_seconds summary\n");
+        for(SortMetrics.Summary m: stages) {
+            String stage = m.mStage.name().toLowerCase();
+            for(double q: new double[]{ 0.5, 0.9, 0.99 }) {
+                s.append("photosort_stage_seconds{stage=\"").append(stage).append("\",quantile=\"").append(q).append("\"} ");
+                s.append(m.mHist.percentile(q * 100.0) / 1e9).append('\n');
+            }
+            sample(s, "photosort_stage_seconds_sum", "stage", stage, m.mNanos / 1e9);
+            sample(s, "photosort_stage_seconds_count", "stage", stage, m.mCount);
+        }
+
+        s.append("# HELP photosort_stage_bytes_total Bytes read or written per stage\n");
+        s.append("# TYPE photosort_stage_bytes_total counter\n");
+        for(SortMetrics.Summary m: stages)
+            sample(s, "photosort_stage_bytes_total", "stage", m.mStage.name().toLowerCase(), m.mBytes);
+
+        return s.toString();
+    }
+
+
+
+    private static void gauge(StringBuilder s, String name, String help, double value) {
+        s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        s.append("# TYPE ").append(name).append(" gauge\n");
+        s.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void counter(StringBuilder s, String name, String help, double value) {
+        s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        s.append("# TYPE ").append(name).append(" counter\n");
+        s.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void sample(StringBuilder s, String name, String label, String value, double v) {
+        s.append(name).append('{').append(label).append("=\"");
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '\\' || c == '"') {
+                s.append('\\').append(c);
+            }else if(c == '\n') {
+                s.append("\\n");
+            }else{
+                s.append(c);
+            }
+        }
+        s.append("\"} ").append(format(v)).append('\n');
+    }
+
+    private static String format(double v) {
+        return v == Math.rint(v) && Math.abs(v) < 1e15 ? Long.toString((long)v) : Double.toString(v);
+    }
+
+
+
+    /**
+     * Totals for one stage of the sort, with times in milliseconds.
+     */
+    public static final class StageStats {
+        private final String mName;
+        private final long mCount;
+        private final double mTotalMillis;
+        private final long mBytes;
+        private final double mP50Millis;
+        private final double mP90Millis;
+        private final double mP99Millis;
+        private final double mMaxMillis;
+
+        @ConstructorProperties({ "name", "count", "totalMillis", "bytes", "p50Millis", "p90Millis", "p99Millis", "maxMillis" })
+        public StageStats(String name,
+                          long count,
+                          double totalMillis,
+                          long bytes,
+                          double p50Millis,
+                          double p90Millis,
+                          double p99Millis,
+                          double maxMillis)
+        {
+            mName = name;
+            mCount = count;
+            mTotalMillis = totalMillis;
+            mBytes = bytes;
+            mP50Millis = p50Millis;
+            mP90Millis = p90Millis;
+            mP99Millis = p99Millis;
+            mMaxMillis = maxMillis;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public double getTotalMillis() {
+            return mTotalMillis;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public double getP50Millis() {
+            return mP50Millis;
+        }
+
+        public double getP90Millis() {
+            return mP90Millis;
+        }
+
+        public double getP99Millis() {
+            return mP99Millis;
+        }
+
+        public double getMaxMillis() {
+            return mMaxMillis;
+        }
+    }
+
+}
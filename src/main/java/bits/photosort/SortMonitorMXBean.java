@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.util.List;
+
+
+/**
+ * Live view of a sort, for JMX clients and monitoring agents. Counts are
+ * for the current run, or the last one if no sort is running.
+ */
+public interface SortMonitorMXBean {
+
+    boolean isRunning();
+
+    int getFilesFound();
+    int getFilesCopied();
+    int getFilesMoved();
+    int getFilesLinked();
+    int getFilesCloned();
+    int getFilesPlanned();
+    int getFilesResumed();
+    int getFilesInOtherShards();
+    int getDuplicates();
+    int getFailures();
+    int getUndated();
+
+    /**
+     * @return seconds since the last file was dealt with. A value that keeps growing while running indicates a stall.
+     */
+    double getSecondsSinceProgress();
+
+    /**
+     * @return size of the file currently being transferred, or 0.
+     */
+    long getInFlightBytes();
+
+    /**
+     * @return files transferred but not yet synced to disk.
+     */
+    long getSyncQueueLength();
+
+    /**
+     * @return events waiting to be written to the event log.
+     */
+    int getEventLogBacklog();
+
+    /**
+     * @return I/O operations admitted, summed over devices.
+     */
+    int getIoInFlight();
+
+    /**
+     * @return threads waiting for I/O admission, summed over devices.
+     */
+    int getIoWaiting();
+
+    long getCacheHits();
+    long getCacheMisses();
+    double getCacheHitRate();
+
+    List<SortMonitor.StageStats> getStages();
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+
+
+/**
+ * A sort worked out in advance, written by <code>--plan</code> and carried
+ * out by <code>--apply</code>. The plan is a tab-separated text file with
+ * one line per source file, so it can be read, diffed and sorted with
+ * ordinary tools:
+ * <pre>
+ * decision  size  mtime  hash  time-source  source  target
+ * </pre>
+ * The decision is the transfer mode in lower case, <code>duplicate</code>
+ * if an identical file is already in place, in which case the target names
+ * that file, or <code>error</code> if the file could not be read. Size and
+ * modification time let <code>--apply</code> detect sources that changed
+ * after planning. The hash is the xxHash64 of the contents, in hex.
+ * <p>
+ * Lines starting with '#' form the header, which records the source and
+ * target roots and the transfer mode. Tabs, newlines and backslashes in
+ * paths are escaped with a backslash.
+ * <p>
+ * Plans are streamed in both directions so memory does not grow with the
+ * number of files.
+ */
+class SortPlan {
+
+    public static final String DUPLICATE = "duplicate";
+    public static final String ERROR     = "error";
+
+    private static final String MAGIC = "# photosort-plan 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+    /**
+     * Opens plan for writing. The header is written immediately.
+     */
+    public static SortPlan create(File file, File source, File target, TransferMode mode, int files) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        SortPlan ret = new SortPlan(file, source, target, mode, files);
+        ret.mTmp = tmp;
+        ret.mOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+        ret.mOut.write(MAGIC + "\n");
+        ret.mOut.write("# source\t" + escape(source.getPath()) + "\n");
+        ret.mOut.write("# target\t" + escape(target.getPath()) + "\n");
+        ret.mOut.write("# mode\t" + decisionFor(mode) + "\n");
+        ret.mOut.write("# files\t" + files + "\n");
+        ret.mOut.write("#decision\tsize\tmtime\thash\ttime\tsource\ttarget\n");
+        return ret;
+    }
+
+    /**
+     * Opens plan for reading and parses its header.
+     */
+    public static SortPlan open(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        boolean ok = false;
+
+        try{
+            if(!MAGIC.equals(in.readLine()))
+                throw new IOException("Not a plan file: " + file.getPath());
+
+            File source = null;
+            File target = null;
+            TransferMode mode = null;
+            int files = -1;
+            int lines = 1;
+
+            in.mark(1 << 16);
+            for(String line = in.readLine(); line != null && line.startsWith("#"); line = in.readLine()) {
+                String[] f = line.split("\t", -1);
+                if(f[0].equals("# source")) {
+                    source = new File(unescape(f[1]));
+                }else if(f[0].equals("# target")) {
+                    target = new File(unescape(f[1]));
+                }else if(f[0].equals("# mode")) {
+                    mode = modeFor(f[1]);
+                }else if(f[0].equals("# files")) {
+                    files = Integer.parseInt(f[1]);
+                }
+
+                in.mark(1 << 16);
+                lines++;
+            }
+
+            in.reset();
+
+            if(source == null || target == null || mode == null)
+                throw new IOException("Incomplete plan header: " + file.getPath());
+
+            SortPlan ret = new SortPlan(file, source, target, mode, files);
+            ret.mIn = in;
+            ret.mLine = lines;
+            ok = true;
+            return ret;
+        }catch(NumberFormatException ex) {
+            throw new IOException("Invalid plan header: " + file.getPath());
+        }finally{
+            if(!ok)
+                in.close();
+        }
+    }
+
+    public static String decisionFor(TransferMode mode) {
+        return mode.name().toLowerCase();
+    }
+
+    /**
+     * @return mode for decision, or null if decision is not a transfer.
+     */
+    public static TransferMode modeFor(String decision) {
+        for(TransferMode m: TransferMode.values()) {
+            if(decisionFor(m).equals(decision))
+                return m;
+        }
+
+        return null;
+    }
+
+
+    private final File mFile;
+    private final File mSource;
+    private final File mTarget;
+    private final TransferMode mMode;
+    private final int mFiles;
+
+    private File mTmp = null;
+    private Writer mOut = null;
+    private BufferedReader mIn = null;
+    private int mLine = 0;
+
+
+    private SortPlan(File file, File source, File target, TransferMode mode, int files) {
+        mFile = file;
+        mSource = source;
+        mTarget = target;
+        mMode = mode;
+        mFiles = files;
+    }
+
+
+    public File sourceRoot() {
+        return mSource;
+    }
+
+    public File targetRoot() {
+        return mTarget;
+    }
+
+    public TransferMode mode() {
+        return mMode;
+    }
+
+    /**
+     * @return number of files planned, or -1 if unknown.
+     */
+    public int fileCount() {
+        return mFiles;
+    }
+
+    public void append(Entry e) throws IOException {
+        StringBuilder s = new StringBuilder(256);
+        s.append(e.mDecision).append('\t');
+        s.append(e.mSize).append('\t');
+        s.append(e.mModified).append('\t');
+        s.append(e.mHasHash ? String.format("%016x", e.mHash) : "-").append('\t');
+        s.append(e.mTimeSource == null ? "-" : e.mTimeSource.sourceName()).append('\t');
+        s.append(escape(e.mSource.getPath())).append('\t');
+        s.append(e.mTarget == null ? "-" : escape(e.mTarget.getPath())).append('\n');
+        mOut.write(s.toString());
+    }
+
+    /**
+     * @return next entry, or null at end of plan.
+     */
+    public Entry next() throws IOException {
+        String line;
+        do {
+            line = mIn.readLine();
+            mLine++;
+            if(line == null)
+                return null;
+        } while(line.length() == 0 || line.startsWith("#"));
+
+        String[] f = line.split("\t", -1);
+        if(f.length != 7)
+            throw new IOException("Malformed plan line " + mLine + " in " + mFile.getPath());
+
+        try{
+            Entry e = new Entry();
+            e.mDecision = f[0];
+            e.mSize = Long.parseLong(f[1]);
+            e.mModified = Long.parseLong(f[2]);
+            if(!f[3].equals("-")) {
+                e.mHasHash = true;
+                e.mHash = parseHash(f[3]);
+            }
+            e.mTimeSource = (f[4].equals("-") ? null : TimeSource.forName(f[4]));
+            e.mSource = new File(unescape(f[5]));
+            e.mTarget = (f[6].equals("-") ? null : new File(unescape(f[6])));
+            return e;
+        }catch(NumberFormatException ex) {
+            throw new IOException("Malformed plan line " + mLine + " in " + mFile.getPath());
+        }
+    }
+
+    /**
+     * Finishes plan. A plan being written only replaces the file once complete.
+     */
+    public void close() throws IOException {
+        if(mIn != null) {
+            mIn.close();
+            mIn = null;
+        }
+
+        if(mOut != null) {
+            mOut.close();
+            mOut = null;
+            Files.move(mTmp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Closes plan being written without replacing the file.
+     */
+    public void abandon() {
+        try{
+            if(mOut != null)
+                mOut.close();
+        }catch(IOException ex) {}
+
+        mOut = null;
+        if(mTmp != null)
+            mTmp.delete();
+    }
+
+
+
+    private static long parseHash(String s) {
+        if(s.length() != 16)
+            throw new NumberFormatException(s);
+
+        return Long.parseLong(s.substring(0, 8), 16) << 32 | Long.parseLong(s.substring(8), 16);
+    }
+
+    static String escape(String s) {
+        if(s.indexOf('\\') < 0 && s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0)
+            return s;
+
+        StringBuilder b = new StringBuilder(s.length() + 8);
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+            case '\\': b.append("\\\\"); break;
+            case '\t': b.append("\\t"); break;
+            case '\n': b.append("\\n"); break;
+            case '\r': b.append("\\r"); break;
+            default:   b.append(c); break;
+            }
+        }
+
+        return b.toString();
+    }
+
+    private static String unescape(String s) {
+        if(s.indexOf('\\') < 0)
+            return s;
+
+        StringBuilder b = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c != '\\' || i == s.length() - 1) {
+                b.append(c);
+                continue;
+            }
+
+            c = s.charAt(++i);
+            switch(c) {
+            case 't': b.append('\t'); break;
+            case 'n': b.append('\n'); break;
+            case 'r': b.append('\r'); break;
+            default:  b.append(c); break;
+            }
+        }
+
+        return b.toString();
+    }
+
+
+
+    /**
+     * One planned file.
+     */
+    static final class Entry {
+        String mDecision;
+        long mSize;
+        long mModified;
+        boolean mHasHash;
+        long mHash;
+        TimeSource mTimeSource;
+        File mSource;
+        File mTarget;
+    }
+
+}
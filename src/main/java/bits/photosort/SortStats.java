@@ -6,35 +6,276 @@
 
 package bits.photosort;
 
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
 /** 
  * @author Philip DeCamp  
  */
 class SortStats {
+    
+    /**
+     * Failed files listed individually in the JSON report. Beyond this, failures are only counted by reason.
+     */
+    static final int MAX_LISTED_FAILURES = 100;
+    
 
-    int mFiles = 0;
-    int mCopied = 0;
-    int mMoved = 0;
-    int mFailed = 0;
-    int mDuplicates = 0;
-    int mUndated = 0;
+    //Written only by the sorting thread. Volatile so that monitors can read them while a sort runs.
+    volatile int mFiles = 0;
+    volatile int mCopied = 0;
+    volatile int mMoved = 0;
+    volatile int mLinked = 0;
+    volatile int mCloned = 0;
+    volatile int mFailed = 0;
+    volatile int mDuplicates = 0;
+    volatile int mUndated = 0;
+    volatile int mResumed = 0;
+    volatile int mPlanned = 0;
+    volatile int mOtherShard = 0;
+    volatile int mSynced = 0;
+    volatile long mSyncNanos = 0;
+    int[] mSources = new int[TimeSource.values().length];
+    volatile long mInFlightBytes = 0;
+    volatile long mLastFileMillis = System.currentTimeMillis();
+    volatile long mBytesFound = 0;
+    volatile long mBytesTransferred = 0;
+    final SortMetrics mMetrics = new SortMetrics();
+    
+    //Describe the run, for the report.
+    final long mStartMillis = System.currentTimeMillis();
+    long mEndMillis = 0;
+    File mSourceRoot = null;
+    File mTargetRoot = null;
+    TransferMode mMode = null;
+    String mOutcome = null;
+    
+    private final Map<String,long[]> mExtensions = new TreeMap<String,long[]>();
+    private final Map<String,Integer> mFailureReasons = new TreeMap<String,Integer>();
+    private final List<String[]> mFailures = new ArrayList<String[]>();
+    
+    
+    /**
+     * Counts a source file examined by the sort, by extension.
+     */
+    void sourceFound(File source, long bytes) {
+        String name = source.getName();
+        int dot = name.lastIndexOf('.');
+        String ext = (dot > 0 && dot < name.length() - 1 ? name.substring(dot + 1).toLowerCase() : "");
+        
+        long[] c = mExtensions.get(ext);
+        if(c == null) {
+            c = new long[2];
+            mExtensions.put(ext, c);
+        }
+        
+        c[0]++;
+        c[1] += bytes;
+        mBytesFound += bytes;
+    }
+    
+    void failed(File source, Exception ex) {
+        String msg = ex.getMessage();
+        failed(source, ex.getClass().getSimpleName(), msg != null ? msg : ex.getClass().getName());
+    }
+    
+    /**
+     * @param reason  Kind of failure, by which failures are counted.
+     * @param message Details, or null.
+     */
+    void failed(File source, String reason, String message) {
+        failed(reason, 1);
+        if(mFailures.size() < MAX_LISTED_FAILURES)
+            mFailures.add(new String[]{ source.getPath(), reason, message });
+    }
+    
+    /**
+     * Counts failures not listed by file.
+     */
+    void failed(String reason, int count) {
+        if(count <= 0)
+            return;
+        
+        mFailed += count;
+        Integer n = mFailureReasons.get(reason);
+        mFailureReasons.put(reason, n == null ? count : n + count);
+    }
+    
+    
+    /**
+     * Notes that a file has been dealt with, for stall detection.
+     */
+    void fileDone() {
+        mLastFileMillis = System.currentTimeMillis();
+    }
     
     public String toString() {
         StringBuilder s = new StringBuilder();
         
         s.append(String.format("%-6d  files found\n", mFiles));
+        if(mResumed > 0)
+            s.append(String.format("%-6d  files already sorted by previous run\n", mResumed));
+        
+        if(mOtherShard > 0)
+            s.append(String.format("%-6d  files left to other shards\n", mOtherShard));
+        
         s.append("\n");
         
-        if(mCopied > 0 || mMoved == 0)
+        if(mPlanned > 0)
+            s.append(String.format("%-6d  files planned\n", mPlanned));
+        
+        if(mCopied > 0 || mMoved + mLinked + mCloned + mPlanned == 0)
             s.append(String.format("%-6d  files copied\n", mCopied));
         
         if(mMoved > 0)
             s.append(String.format("%-6d  files moved\n", mMoved));
         
+        if(mLinked > 0)
+            s.append(String.format("%-6d  files hard linked\n", mLinked));
+        
+        if(mCloned > 0)
+            s.append(String.format("%-6d  files cloned\n", mCloned));
+        
         s.append(String.format("%-6d  duplicates found\n", mDuplicates));
+        for(TimeSource src: TimeSource.values()) {
+            if(mSources[src.ordinal()] > 0)
+                s.append(String.format("%-6d  dated by %s\n", mSources[src.ordinal()], src.sourceName()));
+        }
+        
         s.append(String.format("%-6d  missing timestamps\n", mUndated));
+        if(mSynced > 0)
+            s.append(String.format("%-6d  files synced to disk (%.2f s)\n", mSynced, mSyncNanos / 1000000000.0));
+        
         s.append(String.format("%-6d  failures\n", mFailed));
+        s.append("\n");
+        s.append(mMetrics.toString());
             
         return s.toString();
     }
     
+    /**
+     * @return report of the run, with counts, bytes, per-stage metrics and failures, as a JSON object.
+     */
+    public String toJson() {
+        long end = (mEndMillis > 0 ? mEndMillis : System.currentTimeMillis());
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        
+        StringBuilder s = new StringBuilder("{\n");
+        s.append("  \"outcome\": ").append(quote(mOutcome)).append(",\n");
+        s.append("  \"source\": ").append(quote(mSourceRoot == null ? null : mSourceRoot.getPath())).append(",\n");
+        s.append("  \"target\": ").append(quote(mTargetRoot == null ? null : mTargetRoot.getPath())).append(",\n");
+        s.append("  \"mode\": ").append(quote(mMode == null ? null : SortPlan.decisionFor(mMode))).append(",\n");
+        s.append("  \"started\": ").append(quote(iso.format(new Date(mStartMillis)))).append(",\n");
+        s.append("  \"finished\": ").append(quote(iso.format(new Date(end)))).append(",\n");
+        s.append("  \"elapsed_millis\": ").append(end - mStartMillis).append(",\n");
+        s.append("  \"files\": ").append(mFiles).append(",\n");
+        s.append("  \"resumed\": ").append(mResumed).append(",\n");
+        s.append("  \"other_shard\": ").append(mOtherShard).append(",\n");
+        s.append("  \"planned\": ").append(mPlanned).append(",\n");
+        s.append("  \"copied\": ").append(mCopied).append(",\n");
+        s.append("  \"moved\": ").append(mMoved).append(",\n");
+        s.append("  \"linked\": ").append(mLinked).append(",\n");
+        s.append("  \"cloned\": ").append(mCloned).append(",\n");
+        s.append("  \"duplicates\": ").append(mDuplicates).append(",\n");
+        s.append("  \"undated\": ").append(mUndated).append(",\n");
+        s.append("  \"failed\": ").append(mFailed).append(",\n");
+        s.append("  \"synced\": ").append(mSynced).append(",\n");
+        s.append("  \"sync_nanos\": ").append(mSyncNanos).append(",\n");
+        s.append("  \"bytes_found\": ").append(mBytesFound).append(",\n");
+        s.append("  \"bytes_transferred\": ").append(mBytesTransferred).append(",\n");
+        s.append("  \"dated_by\": {");
+        
+        boolean first = true;
+        for(TimeSource src: TimeSource.values()) {
+            if(!first)
+                s.append(", ");
+            
+            first = false;
+            s.append('"').append(src.sourceName()).append("\": ").append(mSources[src.ordinal()]);
+        }
+        
+        s.append("},\n");
+        s.append("  \"extensions\": {");
+        
+        first = true;
+        for(Map.Entry<String,long[]> e: mExtensions.entrySet()) {
+            if(!first)
+                s.append(',');
+            
+            first = false;
+            s.append("\n    ").append(quote(e.getKey()));
+            s.append(": {\"files\": ").append(e.getValue()[0]).append(", \"bytes\": ").append(e.getValue()[1]).append('}');
+        }
+        
+        s.append(first ? "},\n" : "\n  },\n");
+        s.append("  \"failure_reasons\": {");
+        
+        first = true;
+        for(Map.Entry<String,Integer> e: mFailureReasons.entrySet()) {
+            if(!first)
+                s.append(", ");
+            
+            first = false;
+            s.append(quote(e.getKey())).append(": ").append(e.getValue());
+        }
+        
+        s.append("},\n");
+        s.append("  \"failures\": [");
+        
+        for(int i = 0; i < mFailures.size(); i++) {
+            String[] f = mFailures.get(i);
+            s.append(i == 0 ? "\n    " : ",\n    ");
+            s.append("{\"path\": ").append(quote(f[0]));
+            s.append(", \"reason\": ").append(quote(f[1]));
+            s.append(", \"message\": ").append(quote(f[2])).append('}');
+        }
+        
+        s.append(mFailures.isEmpty() ? "],\n" : "\n  ],\n");
+        s.append("  \"stages\": ").append(mMetrics.toJson()).append("\n");
+        return s.append("}\n").toString();
+    }
+    
+    
+    
+    /**
+     * @return s as a quoted JSON string, or null.
+     */
+    private static String quote(String s) {
+        if(s == null)
+            return "null";
+        
+        StringBuilder ret = new StringBuilder(s.length() + 2);
+        ret.append('"');
+        
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+            case '"':
+                ret.append("\\\"");
+                break;
+            case '\\':
+                ret.append("\\\\");
+                break;
+            case '\n':
+                ret.append("\\n");
+                break;
+            case '\r':
+                ret.append("\\r");
+                break;
+            case '\t':
+                ret.append("\\t");
+                break;
+            default:
+                if(c < 0x20) {
+                    ret.append(String.format("\\u%04x", (int)c));
+                }else{
+                    ret.append(c);
+                }
+            }
+        }
+        
+        return ret.append('"').toString();
+    }
+    
 }
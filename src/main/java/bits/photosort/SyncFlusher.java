@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+
+/**
+ * Forces transferred files and their directory entries to disk in groups.
+ * Files are queued with <code>submit()</code>, and a dedicated thread
+ * syncs whatever has accumulated once per interval, or sooner when the
+ * queue reaches its batch size. Each directory is synced once per group no
+ * matter how many files landed in it, which is where most of the saving
+ * over per-file syncing comes from when thousands of files share a day
+ * folder.
+ * <p>
+ * A callback may be attached to each file, run once the file is durable.
+ * The move journal uses this to record completion only after the data is
+ * safely on disk.
+ */
+public class SyncFlusher {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000L;
+    public static final int DEFAULT_BATCH_SIZE = 512;
+
+
+    /**
+     * Forces file contents and metadata to disk.
+     */
+    public static void syncFile(File file) throws IOException {
+        FileChannel chan = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try{
+            chan.force(true);
+        }finally{
+            chan.close();
+        }
+    }
+
+    /**
+     * Forces directory entries to disk. Not every platform can open a
+     * directory for syncing; where it cannot, this does nothing.
+     */
+    public static void syncDir(File dir) {
+        try{
+            FileChannel chan = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try{
+                chan.force(true);
+            }finally{
+                chan.close();
+            }
+        }catch(IOException ex) {
+            //Unsupported on this platform.
+        }
+    }
+
+
+    private final long mIntervalMillis;
+    private final int mBatchSize;
+    private final Thread mThread;
+
+    private List<Entry> mQueue = new ArrayList<Entry>();
+    private long mSubmitted = 0;
+    private long mCompleted = 0;
+    private int mDrainWaiters = 0;
+    private boolean mClosed = false;
+
+    private long mSyncNanos = 0;
+    private int mSyncedFiles = 0;
+    private int mSyncedDirs = 0;
+    private int mFailures = 0;
+
+
+    public SyncFlusher(long intervalMillis, int batchSize) {
+        mIntervalMillis = intervalMillis;
+        mBatchSize = Math.max(1, batchSize);
+        mThread = new Thread("SyncFlusher") {
+            public void run() {
+                flushLoop();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+
+    /**
+     * Queues a file to be synced along with its parent directory.
+     *
+     * @param file File to sync.
+     * @param syncData If false, only the directory entry is synced. Use for hard links and renames.
+     * @param onDurable Run on flusher thread once file is durable. May be null.
+     */
+    public synchronized void submit(File file, boolean syncData, Runnable onDurable) {
+        mQueue.add(new Entry(file, syncData, onDurable));
+        mSubmitted++;
+        //Wake the flusher to start the interval for a new group, or to flush a full one.
+        if(mQueue.size() == 1 || mQueue.size() >= mBatchSize)
+            notifyAll();
+    }
+
+    /**
+     * Blocks until everything submitted before this call has been synced.
+     */
+    public synchronized void drain() throws InterruptedIOException {
+        long target = mSubmitted;
+        mDrainWaiters++;
+        notifyAll();
+
+        try{
+            while(mCompleted < target && !mClosed)
+                wait();
+        }catch(InterruptedException ex) {
+            throw new InterruptedIOException();
+        }finally{
+            mDrainWaiters--;
+        }
+    }
+
+    /**
+     * Syncs everything outstanding and stops flusher thread.
+     */
+    public void close() {
+        synchronized(this) {
+            if(mClosed)
+                return;
+
+            mClosed = true;
+            notifyAll();
+        }
+
+        boolean interrupted = false;
+        while(true) {
+            try{
+                mThread.join();
+                break;
+            }catch(InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return files submitted but not yet synced.
+     */
+    public synchronized long pending() {
+        return mSubmitted - mCompleted;
+    }
+
+    public synchronized long syncNanos() {
+        return mSyncNanos;
+    }
+
+    public synchronized int syncedFiles() {
+        return mSyncedFiles;
+    }
+
+    public synchronized int syncedDirs() {
+        return mSyncedDirs;
+    }
+
+    public synchronized int failures() {
+        return mFailures;
+    }
+
+
+
+    private void flushLoop() {
+        while(true) {
+            List<Entry> batch;
+
+            synchronized(this) {
+                long deadline = -1L;
+
+                while(!mClosed && mQueue.size() < mBatchSize && (mDrainWaiters == 0 || mQueue.isEmpty())) {
+                    try{
+                        if(mQueue.isEmpty()) {
+                            deadline = -1L;
+                            wait();
+                            continue;
+                        }
+
+                        //Interval is measured from the oldest queued file.
+                        long now = System.currentTimeMillis();
+                        if(deadline < 0L)
+                            deadline = now + mIntervalMillis;
+
+                        if(now >= deadline)
+                            break;
+
+                        wait(deadline - now);
+                    }catch(InterruptedException ex) {
+                        //Only close() may stop the flusher.
+                    }
+                }
+
+                if(mQueue.isEmpty() && mClosed)
+                    return;
+
+                batch = mQueue;
+                mQueue = new ArrayList<Entry>();
+            }
+
+            flush(batch);
+        }
+    }
+
+    private void flush(List<Entry> batch) {
+        long t0 = System.nanoTime();
+        Set<File> dirs = new LinkedHashSet<File>();
+        int files = 0;
+        int failures = 0;
+
+        for(Entry e: batch) {
+            if(e.mSyncData) {
+                try{
+                    syncFile(e.mFile);
+                    files++;
+                }catch(IOException ex) {
+                    e.mFailed = true;
+                    failures++;
+                }
+            }
+
+            File dir = e.mFile.getAbsoluteFile().getParentFile();
+            if(dir != null)
+                dirs.add(dir);
+        }
+
+        for(File dir: dirs)
+            syncDir(dir);
+
+        long dt = System.nanoTime() - t0;
+
+        for(Entry e: batch) {
+            if(e.mOnDurable != null && !e.mFailed)
+                e.mOnDurable.run();
+        }
+
+        synchronized(this) {
+            mSyncNanos += dt;
+            mSyncedFiles += files;
+            mSyncedDirs += dirs.size();
+            mFailures += failures;
+            mCompleted += batch.size();
+            notifyAll();
+        }
+    }
+
+
+
+    private static final class Entry {
+
+        final File mFile;
+        final boolean mSyncData;
+        final Runnable mOnDurable;
+        boolean mFailed = false;
+
+        Entry(File file, boolean syncData, Runnable onDurable) {
+            mFile = file;
+            mSyncData = syncData;
+            mOnDurable = onDurable;
+        }
+
+    }
+
+}
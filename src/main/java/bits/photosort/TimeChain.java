@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.File;
+import java.util.*;
+
+
+/**
+ * Ordered list of sources consulted for a file timestamp. The first source
+ * that yields a timestamp wins.
+ */
+public class TimeChain {
+
+    public static final String DEFAULT_CHAIN = "exif,xmp,name";
+
+    public static final TimeChain DEFAULT = parse(DEFAULT_CHAIN);
+
+    private static final Result UNDATED = new Result(Long.MIN_VALUE, null);
+
+
+    /**
+     * @param chain Comma-separated source names, eg. "exif,xmp,name,mtime".
+     */
+    public static TimeChain parse(String chain) throws IllegalArgumentException {
+        List<TimeSource> list = new ArrayList<TimeSource>();
+
+        for(String name: chain.split(",")) {
+            name = name.trim();
+            if(name.length() == 0)
+                continue;
+
+            TimeSource s = TimeSource.forName(name);
+            if(s == null)
+                throw new IllegalArgumentException("Unknown time source: " + name);
+
+            if(!list.contains(s))
+                list.add(s);
+        }
+
+        return new TimeChain(list);
+    }
+
+
+    private final TimeSource[] mSources;
+
+
+    public TimeChain(List<TimeSource> sources) {
+        mSources = sources.toArray(new TimeSource[sources.size()]);
+    }
+
+
+    public Result resolve(File file, FileMeta meta) {
+        for(TimeSource s: mSources) {
+            long t = s.micros(file, meta);
+            if(t != Long.MIN_VALUE)
+                return new Result(t, s);
+        }
+
+        return UNDATED;
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for(int i = 0; i < mSources.length; i++) {
+            if(i > 0)
+                s.append(',');
+
+            s.append(mSources[i].sourceName());
+        }
+
+        return s.toString();
+    }
+
+
+    /**
+     * Timestamp of a file and the source it was taken from.
+     */
+    public static final class Result {
+
+        /**
+         * Timestamp in micros, or Long.MIN_VALUE if undated.
+         */
+        public final long mMicros;
+
+        /**
+         * Source of timestamp, or null if undated.
+         */
+        public final TimeSource mSource;
+
+        Result(long micros, TimeSource source) {
+            mMicros = micros;
+            mSource = source;
+        }
+
+    }
+
+}
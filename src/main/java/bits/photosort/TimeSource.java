@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.File;
+
+/**
+ * Places a file timestamp may be taken from.
+ */
+public enum TimeSource {
+
+    EXIF     ("exif", "EXIF DateTimeOriginal or MakerNote timestamp") {
+        long micros(File file, FileMeta meta) {
+            return meta.mExifMicros;
+        }
+    },
+
+    XMP      ("xmp", "XMP creation date, embedded or in sidecar") {
+        long micros(File file, FileMeta meta) {
+            return meta.mXmpMicros;
+        }
+    },
+
+    FILENAME ("name", "Date embedded in file name (eg. IMG_20230412_101500.jpg)") {
+        long micros(File file, FileMeta meta) {
+            return FilenameDateScanner.DEFAULT.scanMicros(file.getName());
+        }
+    },
+
+    MTIME    ("mtime", "File modification time") {
+        long micros(File file, FileMeta meta) {
+            long t = file.lastModified();
+            return t <= 0L ? Long.MIN_VALUE : t * 1000L;
+        }
+    };
+
+
+    private final String mName;
+    private final String mDescription;
+
+    TimeSource(String name, String description) {
+        mName = name;
+        mDescription = description;
+    }
+
+
+    public String sourceName() {
+        return mName;
+    }
+
+    public String description() {
+        return mDescription;
+    }
+
+    public static TimeSource forName(String name) {
+        for(TimeSource s: values()) {
+            if(s.mName.equalsIgnoreCase(name))
+                return s;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return timestamp in micros from this source, or Long.MIN_VALUE if unavailable.
+     */
+    abstract long micros(File file, FileMeta meta);
+
+}
@@ -9,11 +9,23 @@ package bits.photosort;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
-import java.text.*;
+import java.util.Calendar;
 
 
 public class TimestampReader {
 
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+    
+    /**
+     * Upper bound on entries scanned in a single IFD. Real IFDs hold well
+     * under a hundred; anything above this is corrupt.
+     */
+    static final int MAX_IFD_ENTRIES = 512;
+    
+    /**
+     * Upper bound on IFDs entered while looking for a timestamp.
+     */
+    static final int MAX_IFD_HOPS = 8;
     
     public static void main(String[] args) {
         try{
@@ -83,51 +95,155 @@ public class TimestampReader {
         if(buf == null)
             return Long.MIN_VALUE;
         
-        int offset = findIfdTagOffset(buf, 0x8769);
-        if(offset < 0)
+        buf = openTiff(buf);
+        if(buf == null)
             return Long.MIN_VALUE;
         
-        int off2 = findIfdTagOffset(buf, 0x9003, offset);
-        if(off2 >= 0) {
-            if(buf.position() + off2 + 20 > buf.limit())
-                return -1;
-            
-            DateFormat format = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
-            buf.position(buf.position() + off2);
-            byte[] bytes = new byte[20];
-            buf.get(bytes);
-            String dateString = new String(bytes);
-            
-            try{
-                return format.parse(dateString).getTime() * 1000L;
-            }catch(ParseException ex) {
-                return Long.MIN_VALUE;
-            }
-        }
+        IfdPath path = new IfdPath();
+        int ifd0 = toOffset(buf, buf.getInt(4));
+        if(!path.enter(ifd0))
+            return Long.MIN_VALUE;
         
-        offset = findIfdTagOffset(buf, 0x927C, offset);
-        if(offset < 0)
+        int subIfd = toOffset(buf, findIfdTagValue(buf, ifd0, 0x8769));
+        if(!path.enter(subIfd))
             return Long.MIN_VALUE;
         
-        offset = findIfdTagOffset(buf, 0xFDE8, offset);
-        if(offset < 0)
+        int dateOff = toOffset(buf, findIfdTagValue(buf, subIfd, 0x9003));
+        if(dateOff >= 0)
+            return parseExifDate(buf, dateOff);
+        
+        int makerIfd = toOffset(buf, findIfdTagValue(buf, subIfd, 0x927C));
+        if(!path.enter(makerIfd))
             return Long.MIN_VALUE;
         
-        if(offset + 8 > buf.remaining())
+        int off = toOffset(buf, findIfdTagValue(buf, makerIfd, 0xFDE8));
+        if(off < 0 || off > buf.limit() - 8)
             return Long.MIN_VALUE;
         
-        buf.position(buf.position() + offset);
-        int sec = buf.getInt();
-        int usec = buf.getInt();
+        int sec = buf.getInt(off);
+        int usec = buf.getInt(off + 4);
         
         return sec * 1000000L + usec;
     }
     
+    /**
+     * Extracts all embedded timestamps from an image file.
+     * 
+     * @param file Image file, used to locate an XMP sidecar if the image has no embedded XMP date.
+     * @param buf Buffer containing at least the head of <code>file</code>.
+     */
+    public static FileMeta readFileMeta(File file, ByteBuffer buf) throws IOException {
+        return readFileMeta(file, buf, SidecarIndex.DISK);
+    }
+    
+    /**
+     * Extracts all embedded timestamps from an image file.
+     * 
+     * @param file Image file, used to locate an XMP sidecar if the image has no embedded XMP date.
+     * @param buf Buffer containing at least the head of <code>file</code>.
+     * @param sidecars Index in which to look up the sidecar.
+     */
+    static FileMeta readFileMeta(File file, ByteBuffer buf, SidecarIndex sidecars) throws IOException {
+        FlightEvents.FileStage ev = FlightEvents.beginStage();
+        long bytes = buf.remaining();
+        
+        try{
+            long exif = readJpegTimestampMicros(buf);
+            long xmp = readXmpTimestampMicros(buf);
+            
+            if(xmp == Long.MIN_VALUE) {
+                File sidecar = sidecars.find(file);
+                if(sidecar != null)
+                    xmp = XmpScanner.readSidecarMicros(sidecar);
+            }
+            
+            return new FileMeta(exif, xmp);
+        }finally{
+            FlightEvents.endStage(ev, "parse", file, bytes);
+        }
+    }
+    
+    /**
+     * Checks whether the head of a file is enough to find its metadata. JPEG
+     * metadata segments all precede the image data, but may be preceded by
+     * others of any size, such as ICC profiles split over many APP2 segments.
+     * 
+     * @param buf Buffer containing the first bytes of a file.
+     * @return true if buf holds a JPEG whose segments run past the end of buf before the image data begins.
+     */
+    public static boolean isHeadTruncated(ByteBuffer buf) {
+        int pos = buf.position();
+        int lim = buf.limit();
+        
+        //Only JPEGs are parsed as segments. Anything else is scanned as is.
+        if(lim - pos < 2 || (buf.get(pos) & 0xFF) != 0xFF || (buf.get(pos + 1) & 0xFF) != 0xD8)
+            return false;
+        
+        pos += 2;
+        while(true) {
+            //Skip fill bytes before the marker ID.
+            while(pos < lim && (buf.get(pos) & 0xFF) == 0xFF && pos + 1 < lim && (buf.get(pos + 1) & 0xFF) == 0xFF)
+                pos++;
+            
+            if(pos + 2 > lim)
+                return true;
+            
+            if((buf.get(pos) & 0xFF) != 0xFF)
+                return false;
+            
+            int b = buf.get(pos + 1) & 0xFF;
+            pos += 2;
+            
+            //StartOfScan or EndOfImage: no metadata follows.
+            if(b == 0xDA || b == 0xD9)
+                return false;
+            
+            //Markers without a length.
+            if(b == 0x01 || b >= 0xD0 && b <= 0xD8)
+                continue;
+            
+            if(pos + 2 > lim)
+                return true;
+            
+            int length = buf.getShort(pos) & 0xFFFF;
+            if(length < 2)
+                return false;
+            
+            pos += length;
+            if(pos > lim)
+                return true;
+        }
+    }
+    
+    /**
+     * @param buf Buffer containing JPEG.
+     * @return timestamp micros from embedded XMP packet, or Long.MIN_VALUE if not found.
+     */
+    public static long readXmpTimestampMicros(ByteBuffer buf) {
+        buf = readApp1Segment(buf, XmpScanner.APP1_HEADER);
+        if(buf == null)
+            return Long.MIN_VALUE;
+        
+        return XmpScanner.findDateMicros(buf);
+    }
+    
     /**
      * @param buf Buffer containing JPEG.
      * @return buffer containing EXIF segment.
      */
     private static ByteBuffer readExifSegment(ByteBuffer buf) {
+        return readApp1Segment(buf, EXIF_HEADER);
+    }
+    
+    /**
+     * A JPEG may hold several APP1 segments, typically EXIF followed by XMP,
+     * so segments are matched on their payload header.
+     * 
+     * @param buf Buffer containing JPEG.
+     * @param header Expected prefix of segment payload.
+     * @return buffer containing first APP1 segment that begins with header.
+     */
+    private static ByteBuffer readApp1Segment(ByteBuffer buf, byte[] header) {
         buf = buf.duplicate();
         
         //Loop through each byte in JPEG and find markers.
@@ -147,16 +263,20 @@ public class TimestampReader {
                 if(b == 0xFF || b == 0x00 || b == 0xD8 || b == 0xD9)
                     continue;
                 
+                //0xDA is StartOfScan. Only entropy-coded data follows, so there is no metadata left to find.
+                if(b == 0xDA)
+                    return null;
+                
                 //After the marker (0xFF + one-byte ID), the next two bytes indicate the segment length.
                 //The segment length includes itself (two bytes), but not the two-byte marker.
                 int length = (buf.getShort() & 0xFFFF) - 2;
                 
                 //Check if we have all the data.
-                if(length > buf.remaining())
+                if(length < 0 || length > buf.remaining())
                     return null;
                 
-                //Check if this is the exif segment.
-                if(b == 0xE1) {
+                //Check if this is the requested segment.
+                if(b == 0xE1 && length >= header.length && startsWith(buf, header)) {
                     buf.limit(buf.position() + length);
                     return buf;
                 }
@@ -167,6 +287,19 @@ public class TimestampReader {
         
         return null;
     }
+    
+    private static boolean startsWith(ByteBuffer buf, byte[] prefix) {
+        if(buf.remaining() < prefix.length)
+            return false;
+        
+        int p = buf.position();
+        for(int i = 0; i < prefix.length; i++) {
+            if(buf.get(p + i) != prefix[i])
+                return false;
+        }
+        
+        return true;
+    }
 
     /**
      * @param buf Buffer containing EXIF segment.
@@ -188,104 +321,152 @@ public class TimestampReader {
     }
      
     /**
-     * @param buf Buffer containing IFD0
-     * @return timestamp micros, or Long.MIN_VALUE if not found.
+     * Validates TIFF header and sets byte order.
+     * 
+     * @param buf Buffer positioned at TIFF header.
+     * @return buffer containing TIFF structure, with index 0 at start of TIFF header, or null if invalid.
      */
-    private static long findTimestampMicros(ByteBuffer buf) {
-        int offset = findIfdTagOffset(buf, 0x8769);
-        if(offset < 0)
-            return Long.MIN_VALUE;
+    private static ByteBuffer openTiff(ByteBuffer buf) {
+        if(buf.remaining() < 8)
+            return null;
         
-        offset = findIfdTagOffset(buf, 0x927C, offset);
-        if(offset < 0)
-            return Long.MIN_VALUE;
+        buf = buf.slice();
         
-        offset = findIfdTagOffset(buf, 0xFDE8, offset);
-        if(offset < 0)
-            return Long.MIN_VALUE;
+        //2-byte indicator of byte alignment indicator.  
+        //MM means Motoral (Big-Endian).  
+        //II means Intel (Little-Endian).
+        byte order = buf.get(0);
+        if(order != buf.get(1))
+            return null;
         
-        if(offset + 8 > buf.remaining())
-            return Long.MIN_VALUE;
+        if(order == (byte)0x4D) {
+            buf.order(ByteOrder.BIG_ENDIAN);
+        }else if(order == (byte)0x49) {
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        }else{
+            return null;
+        }
         
-        buf = buf.duplicate();
-        buf.position(buf.position() + offset);
-        int sec = buf.getInt();
-        int usec = buf.getInt();
+        //2-byte constant.
+        if((buf.getShort(2) & 0xFFFF) != 0x002A)
+            return null;
         
-        return sec * 1000000L + usec;
+        return buf;
     }
     
     /**
-     * @param buf Buffer containing IFD0
+     * Searches a single IFD for a tag. Work is bounded by MAX_IFD_ENTRIES
+     * regardless of what the entry count claims.
+     * 
+     * @param buf Buffer returned by <code>openTiff</code>.
+     * @param ifd Offset of IFD within buf, or -1.
      * @param tag Tag of entry to locate.
-     * @return offset of entry, or -1 if not found.
+     * @return raw 4-byte value/offset field of entry, or -1 if not found.
      */
-    private static int findIfdTagOffset(ByteBuffer buf, int tag) {
-        return findIfdTagOffset(buf, tag, -1);
+    private static long findIfdTagValue(ByteBuffer buf, int ifd, int tag) {
+        if(ifd < 0 || ifd > buf.limit() - 2)
+            return -1;
+        
+        int entryCount = (buf.getShort(ifd) & 0xFFFF);
+        if(entryCount > MAX_IFD_ENTRIES)
+            return -1;
+        
+        //Check length validity.
+        int start = ifd + 2;
+        if(buf.limit() - start < 12 * entryCount)
+            return -1;
+        
+        for(int i = 0; i < entryCount; i++) {
+            int p = start + i * 12;
+            if((buf.getShort(p) & 0xFFFF) == tag)
+                return buf.getInt(p + 8) & 0xFFFFFFFFL;
+        }
+        
+        return -1;
     }
     
     /**
-     * @param buf Buffer containing IFD0
-     * @param tag Tag of entry to locate.
-     * @param offset Offset of index to use, or -1 if first index should be used.
-     * @return offset to entry, or -1 if not found.
+     * @return value as offset into buf, or -1 if value is missing or out of bounds.
      */
-    private static int findIfdTagOffset(ByteBuffer buf, int tag, int offset) {
-        if(buf.remaining() < 8)
+    private static int toOffset(ByteBuffer buf, long value) {
+        if(value < 0 || value >= buf.limit())
             return -1;
         
-        buf = buf.duplicate();
-        int start = buf.position();
-        int length = buf.remaining();
+        return (int)value;
+    }
+    
+    /**
+     * Parses an EXIF date string of the form "yyyy:MM:dd HH:mm:ss" in local time.
+     * Digits must appear at fixed positions; separators are not checked since
+     * some writers deviate from the colons required by the spec.
+     * 
+     * @return timestamp in micros, or Long.MIN_VALUE if invalid.
+     */
+    private static long parseExifDate(ByteBuffer buf, int off) {
+        if(off > buf.limit() - 19)
+            return Long.MIN_VALUE;
         
-        //2-byte indicator of byte alignment indicator.  
-        //MM means Motoral (Big-Endian).  
-        //II means Intel (Little-Endian).
+        int year  = parseDigits(buf, off, 4);
+        int month = parseDigits(buf, off + 5, 2);
+        int day   = parseDigits(buf, off + 8, 2);
+        int hour  = parseDigits(buf, off + 11, 2);
+        int min   = parseDigits(buf, off + 14, 2);
+        int sec   = parseDigits(buf, off + 17, 2);
+        
+        if(year < 1 || month < 1 || month > 12 || day < 1 || day > 31 ||
+           hour < 0 || hour > 23 || min < 0 || min > 59 || sec < 0 || sec > 60) 
         {
-            byte order = buf.get();
-            if(order != buf.get())
+            return Long.MIN_VALUE;
+        }
+        
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(year, month - 1, day, hour, min, sec);
+        return cal.getTimeInMillis() * 1000L;
+    }
+    
+    /**
+     * @return parsed non-negative value, or -1 if any byte is not a digit.
+     */
+    private static int parseDigits(ByteBuffer buf, int off, int len) {
+        int v = 0;
+        for(int i = 0; i < len; i++) {
+            int c = buf.get(off + i);
+            if(c < '0' || c > '9')
                 return -1;
             
-            if(order == (byte)0x4D) {
-                buf.order(ByteOrder.BIG_ENDIAN);
-            }else if(order == (byte)0x49) {
-                buf.order(ByteOrder.LITTLE_ENDIAN);
-            }else{
-                return -1;
-            }
+            v = v * 10 + (c - '0');
         }
         
-        //2-byte constant.
-        if((buf.getShort() & 0xFFFF) != 0x002A)
-            return -1;
-        
-        //If no offset is given, use 4-byte offset to SubIFD tag.
-        if(offset < 0) 
-            offset = buf.getInt();
-        
-        //Check offset validity.
-        if(offset < 0 || length < offset + 2)
-            return -1;
-        
-        //Get number of entries.
-        buf.position(start + offset);
-        int entryCount = (buf.getShort() & 0xFFFF);
+        return v;
+    }
+    
+    
+    /**
+     * Records the IFDs entered while descending through a TIFF structure,
+     * bounding the number of hops and rejecting pointers that loop back.
+     */
+    private static final class IfdPath {
         
-        //Check length validity.
-        if(length < offset + 2 + 12 * entryCount)
-            return -1;
+        private final int[] mVisited = new int[MAX_IFD_HOPS];
+        private int mCount = 0;
         
-        //Find the entry.
-        for(int i = 0; i < entryCount; i++) {
-            buf.position(start + offset + 2 + i * 12);
-            if((buf.getShort() & 0xFFFF) == tag) {
-                buf.position(start + offset + 2 + i * 12 + 8);
-                return buf.getInt();
+        /**
+         * @return true if IFD may be entered.
+         */
+        boolean enter(int ifd) {
+            if(ifd < 0 || mCount >= mVisited.length)
+                return false;
+            
+            for(int i = 0; i < mCount; i++) {
+                if(mVisited[i] == ifd)
+                    return false;
             }
+            
+            mVisited[mCount++] = ifd;
+            return true;
         }
         
-        return -1;
     }
     
-    
-}
\ No newline at end of file
+}
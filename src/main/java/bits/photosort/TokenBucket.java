@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits the rate at which some quantity, such as bytes or files, is
+ * consumed. Up to one burst may be taken at once; beyond that, callers
+ * block until the bucket has refilled.
+ * <p>
+ * The bucket is kept as a virtual clock: each acquisition pushes the time
+ * at which the bucket is next empty forward by <code>n / rate</code>, and
+ * the caller sleeps until its own share has been paid for. Callers are
+ * therefore served in the order they arrive, and a request larger than the
+ * burst is allowed through without starving. Changing the rate releases
+ * all waiting callers so they are not held to the old rate.
+ * <p>
+ * A rate of zero or less means unlimited. All methods are thread-safe.
+ */
+public class TokenBucket {
+
+    private double mRate;
+    private double mBurst;
+    private long mNextNanos = Long.MIN_VALUE;
+    private int mGeneration = 0;
+    private long mWaitNanos = 0;
+
+
+    /**
+     * @param rate  Tokens per second, or zero for unlimited.
+     * @param burst Tokens that may be taken at once after the bucket has been idle.
+     */
+    public TokenBucket(double rate, double burst) {
+        setRate(rate, burst);
+    }
+
+
+    public synchronized double rate() {
+        return mRate;
+    }
+
+    public synchronized double burst() {
+        return mBurst;
+    }
+
+    public synchronized boolean isLimited() {
+        return mRate > 0.0;
+    }
+
+    /**
+     * Changes rate. Callers blocked under the previous rate are released.
+     */
+    public synchronized void setRate(double rate, double burst) {
+        mRate = rate;
+        mBurst = Math.max(0.0, burst);
+        mNextNanos = Long.MIN_VALUE;
+        mGeneration++;
+        notifyAll();
+    }
+
+    /**
+     * @return total time callers have spent blocked, in nanoseconds.
+     */
+    public synchronized long waitNanos() {
+        return mWaitNanos;
+    }
+
+    /**
+     * Takes <code>n</code> tokens, blocking until they are available.
+     *
+     * @throws InterruptedIOException if thread is interrupted while waiting.
+     */
+    public synchronized void acquire(long n) throws InterruptedIOException {
+        if(n <= 0 || mRate <= 0.0)
+            return;
+
+        long now = System.nanoTime();
+        long floor = now - (long)(mBurst / mRate * 1e9);
+        if(mNextNanos == Long.MIN_VALUE || mNextNanos < floor)
+            mNextNanos = floor;
+
+        mNextNanos += (long)(n / mRate * 1e9);
+
+        final long deadline = mNextNanos;
+        final int gen = mGeneration;
+
+        try{
+            while(gen == mGeneration) {
+                long wait = deadline - System.nanoTime();
+                if(wait <= 0)
+                    break;
+
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+        }catch(InterruptedException ex) {
+            throw new InterruptedIOException();
+        }finally{
+            mWaitNanos += Math.max(0L, System.nanoTime() - now);
+        }
+    }
+
+}
@@ -6,60 +6,19 @@
 
 package bits.photosort;
 
-import java.io.File;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 /** 
+ * Tokens that may appear in a naming pattern. Formatting itself is done
+ * by {@link NameFormatter}, from segments compiled once per pattern.
+ * 
  * @author Philip DeCamp  
  */
 enum TokenFormatter {
     
-    FILE_NAME    ("%n", false, "Name of source file (without extension)") {
-        String format(File source, String pattern, File targetDir, long micros) {
-            String name = source.getName();
-            int idx = name.lastIndexOf('.');
-            if(idx < 0)
-                return name;
-            
-            return name.substring(0, idx);
-        }
-    },
-    
-    FILE_EXT     ("%e", false, "Extension of source file (eg. jpg, png)") {
-        String format(File source, String pattern, File targetDir, long micros) {
-            String name = source.getName();
-            int idx = name.lastIndexOf('.');
-            if(idx < 0)
-                return "";
-            
-            return name.substring(idx + 1);
-        }
-    },
-    
-    DATE         ("%d", true, "Date pattern a la SimpleDateFormat.  (eg. %d(YYYY-mm-dd_HHmmss))") {
-        String format(File source, String pattern, File targetDir, long micros) {
-            DateFormat f = new SimpleDateFormat(pattern);
-            return f.format(new Date(micros / 1000L));
-        }
-    },
-    
-    PARENT       ("%p", false, "Parent directory of source file") {
-        String format(File source, String pattern, File targetDir, long micros) {
-            File parent = source.getParentFile();
-            if(parent == null)
-                return "";
-            
-            return parent.getName();
-        }
-    },
-    
-    ESCAPE       ("%%", false, "Percent sign") {
-        String format(File source, String pattern, File targetDir, long micros) {
-            return "%";
-        }
-    };
+    FILE_NAME    ("%n", false, "Name of source file (without extension)"),
+    FILE_EXT     ("%e", false, "Extension of source file (eg. jpg, png)"),
+    DATE         ("%d", true, "Date pattern a la SimpleDateFormat.  (eg. %d(YYYY-mm-dd_HHmmss))"),
+    PARENT       ("%p", false, "Parent directory of source file"),
+    ESCAPE       ("%%", false, "Percent sign");
     
     
     private final String mToken;
@@ -85,6 +44,4 @@ enum TokenFormatter {
         return mNeedsArg;
     }
     
-    abstract String format(File input, String pattern, File targetDir, long micros);
-    
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+/**
+ * How files are placed into the target tree.
+ */
+public enum TransferMode {
+
+    COPY     ("Copying ", "c>", "Copy files"),
+    MOVE     ("Moving ", "m>", "Move files"),
+    HARDLINK ("Linking ", "h>", "Hard link files, or copy if source and target are on different filesystems"),
+    CLONE    ("Cloning ", "r>", "Clone files copy-on-write (reflink), or copy if the filesystem cannot");
+
+
+    private final String mGerund;
+    private final String mSymbol;
+    private final String mDescription;
+
+    TransferMode(String gerund, String symbol, String description) {
+        mGerund = gerund;
+        mSymbol = symbol;
+        mDescription = description;
+    }
+
+
+    public String gerund() {
+        return mGerund;
+    }
+
+    /**
+     * @return short symbol printed between source and target paths.
+     */
+    public String symbol() {
+        return mSymbol;
+    }
+
+    public String description() {
+        return mDescription;
+    }
+
+}
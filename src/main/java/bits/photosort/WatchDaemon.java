@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Watches a source tree for new files and hands them off in batches once
+ * they have stopped changing.
+ * <p>
+ * Every directory under the root is registered with a single
+ * {@link WatchService}, and events are drained on the calling thread, so
+ * the thread count does not grow with the number of watched directories.
+ * Repeated events for a file are coalesced into a single pending entry. A
+ * pending file becomes ready once its size and modification time have not
+ * changed for the quiet period, which keeps half-written files from being
+ * sorted while a camera or card reader is still copying them.
+ * <p>
+ * Memory is bounded by the number of pending entries. Once the limit is
+ * reached, further events are dropped and the tree is rescanned later,
+ * one limit's worth of files at a time. The same rescan handles event
+ * overflow reported by the platform.
+ */
+class WatchDaemon {
+
+    public static final long DEFAULT_QUIET_MILLIS = 2000L;
+    public static final int DEFAULT_MAX_PENDING = 10000;
+
+    private static final long POLL_MILLIS = 500L;
+
+
+    /**
+     * Receives batches of files that are ready to sort.
+     */
+    interface BatchHandler {
+        void sortBatch(List<File> files) throws InterruptedException;
+    }
+
+
+    private final File mRootFile;
+    private final Path mRoot;
+    private final Path mExclude;
+    private final int mBatchSize;
+    private final long mQuietMillis;
+    private final int mMaxPending;
+
+    private WatchService mService = null;
+    private final Map<WatchKey,Path> mKeys = new HashMap<WatchKey,Path>();
+    private final Map<Path,Pending> mPending = new HashMap<Path,Pending>();
+
+    private boolean mRescan = false;
+    private File mRescanFrom = null;
+
+
+    /**
+     * @param root        Directory to watch, including all subdirectories.
+     * @param exclude     Directory to ignore, such as a sort target nested inside the source. May be null.
+     * @param batchSize   Maximum files handed off at once.
+     * @param quietMillis Time a file must go unchanged before it is ready.
+     * @param maxPending  Maximum files tracked at once.
+     */
+    public WatchDaemon(File root, File exclude, int batchSize, long quietMillis, int maxPending) {
+        mRootFile = root;
+        mRoot = root.getAbsoluteFile().toPath().normalize();
+        mExclude = (exclude == null ? null : exclude.getAbsoluteFile().toPath().normalize());
+        mBatchSize = Math.max(1, batchSize);
+        mQuietMillis = quietMillis;
+        mMaxPending = Math.max(1, maxPending);
+    }
+
+
+    /**
+     * Registers the tree. Events that occur between open() and run() are
+     * queued, so files can be sorted in between without any being missed.
+     */
+    public void open() throws IOException {
+        if(mService != null)
+            return;
+
+        mService = mRoot.getFileSystem().newWatchService();
+        registerTree(mRoot, false);
+    }
+
+    /**
+     * Watches until interrupted.
+     *
+     * @throws InterruptedException when interrupted, which is the normal way to stop.
+     */
+    public void run(BatchHandler handler) throws IOException, InterruptedException {
+        open();
+        long lastCheck = 0L;
+        List<File> ready = new ArrayList<File>();
+
+        while(true) {
+            WatchKey key = mService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            while(key != null) {
+                handleKey(key);
+                key = mService.poll();
+            }
+
+            if(Thread.interrupted())
+                throw new InterruptedException();
+
+            long now = System.currentTimeMillis();
+            if(now - lastCheck < POLL_MILLIS)
+                continue;
+
+            lastCheck = now;
+            if(mRescan && mPending.size() < mMaxPending / 2)
+                rescan();
+
+            collectReady(now, ready);
+            for(int i = 0; i < ready.size(); i += mBatchSize)
+                handler.sortBatch(new ArrayList<File>(ready.subList(i, Math.min(ready.size(), i + mBatchSize))));
+
+            ready.clear();
+        }
+    }
+
+    public void close() throws IOException {
+        if(mService != null) {
+            mService.close();
+            mService = null;
+        }
+
+        mKeys.clear();
+        mPending.clear();
+    }
+
+    /**
+     * @return number of directories being watched.
+     */
+    public int watchedDirs() {
+        return mKeys.size();
+    }
+
+
+
+    private void handleKey(WatchKey key) throws IOException {
+        Path dir = mKeys.get(key);
+
+        for(WatchEvent<?> ev: key.pollEvents()) {
+            if(ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                mRescan = true;
+                continue;
+            }
+
+            if(dir == null)
+                continue;
+
+            Path path = dir.resolve((Path)ev.context());
+            if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                //Files may land in a new directory before it is registered, so pick those up too.
+                if(ev.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+                    registerTree(path, true);
+            }else{
+                note(path);
+            }
+        }
+
+        if(!key.reset())
+            mKeys.remove(key);
+    }
+
+    private void registerTree(Path start, final boolean noteFiles) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if(mExclude != null && dir.startsWith(mExclude))
+                    return FileVisitResult.SKIP_SUBTREE;
+
+                WatchKey key = dir.register(mService,
+                                            StandardWatchEventKinds.ENTRY_CREATE,
+                                            StandardWatchEventKinds.ENTRY_MODIFY);
+                mKeys.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(noteFiles)
+                    note(file);
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void note(Path path) {
+        Pending p = mPending.get(path);
+        if(p != null) {
+            p.mChanged = System.currentTimeMillis();
+            return;
+        }
+
+        if(mExclude != null && path.startsWith(mExclude))
+            return;
+
+        if(!FileUtil.ALL_FILTER.accept(path.toFile()))
+            return;
+
+        if(mPending.size() >= mMaxPending) {
+            mRescan = true;
+            return;
+        }
+
+        mPending.put(path, new Pending());
+    }
+
+    /**
+     * Picks up files whose events were dropped. Directories are registered
+     * again in case their creation was missed, and files are noted until
+     * the pending limit is reached, continuing from where the last rescan
+     * stopped.
+     */
+    private void rescan() throws IOException, InterruptedException {
+        mRescan = false;
+        if(mRescanFrom == null)
+            registerTree(mRoot, false);
+
+        DirSpider spider = new DirSpider(mRoot.toFile(), FileUtil.ALL_FILTER);
+        if(mRescanFrom != null)
+            spider.gotoFile(mRescanFrom);
+
+        mRescanFrom = null;
+
+        for(File f = spider.getNextFile(true); f != null; f = spider.getNextFile(true)) {
+            if(mPending.size() >= mMaxPending) {
+                mRescan = true;
+                mRescanFrom = f;
+                return;
+            }
+
+            note(f.getAbsoluteFile().toPath().normalize());
+        }
+    }
+
+    private void collectReady(long now, List<File> out) {
+        Iterator<Map.Entry<Path,Pending>> iter = mPending.entrySet().iterator();
+
+        while(iter.hasNext()) {
+            Map.Entry<Path,Pending> e = iter.next();
+            //Report files relative to the root as given, as a crawl of the root would.
+            File file = new File(mRootFile, mRoot.relativize(e.getKey()).toString());
+            Pending p = e.getValue();
+
+            long size = file.length();
+            long mtime = file.lastModified();
+
+            if(mtime == 0L && !file.exists()) {
+                //Removed or renamed before it settled.
+                iter.remove();
+                continue;
+            }
+
+            if(size != p.mSize || mtime != p.mModified) {
+                p.mSize = size;
+                p.mModified = mtime;
+                p.mChanged = now;
+                continue;
+            }
+
+            if(now - p.mChanged >= mQuietMillis) {
+                out.add(file);
+                iter.remove();
+            }
+        }
+
+        Collections.sort(out);
+    }
+
+
+
+    private static final class Pending {
+        long mSize = -1L;
+        long mModified = -1L;
+        long mChanged = System.currentTimeMillis();
+    }
+
+}
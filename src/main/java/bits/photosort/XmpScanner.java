@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/**
+ * Extracts dates from XMP packets without parsing XML. The packet is
+ * searched byte-wise for known property names, and the value is taken from
+ * either attribute form, <code>xmp:CreateDate="..."</code>, or element form,
+ * <code>&lt;xmp:CreateDate&gt;...&lt;/xmp:CreateDate&gt;</code>.
+ * <p>
+ * XMP is written in UTF-8, and all property names and dates are ASCII, so
+ * no character decoding is required.
+ */
+public class XmpScanner {
+
+    /**
+     * Payload prefix of an APP1 segment that holds XMP.
+     */
+    public static final byte[] APP1_HEADER = ascii("http://ns.adobe.com/xap/1.0/\0");
+
+    /**
+     * Properties that hold a creation date, in order of preference.
+     */
+    private static final byte[][] DATE_PROPS = {
+        ascii("xmp:CreateDate"),
+        ascii("photoshop:DateCreated"),
+        ascii("exif:DateTimeOriginal")
+    };
+
+    /**
+     * Sidecars larger than this are not XMP we can make sense of.
+     */
+    private static final int MAX_SIDECAR_BYTES = 4 << 20;
+
+
+    /**
+     * @param buf Buffer containing XMP packet. Buffer position is not modified.
+     * @return timestamp in micros, or Long.MIN_VALUE if not found.
+     */
+    public static long findDateMicros(ByteBuffer buf) {
+        for(byte[] prop: DATE_PROPS) {
+            long t = findDateMicros(buf, prop);
+            if(t != Long.MIN_VALUE)
+                return t;
+        }
+
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * @param sidecar XMP sidecar file.
+     * @return timestamp in micros, or Long.MIN_VALUE if not found.
+     */
+    public static long readSidecarMicros(File sidecar) throws IOException {
+        if(sidecar.length() > MAX_SIDECAR_BYTES)
+            return Long.MIN_VALUE;
+
+        return findDateMicros(FileUtil.bufferFile(sidecar));
+    }
+
+    /**
+     * Locates the XMP sidecar for an image. Both the
+     * <code>name.xmp</code> and <code>name.ext.xmp</code> conventions are
+     * recognized.
+     *
+     * @return sidecar file, or null if none exists.
+     */
+    public static File findSidecar(File image) {
+        for(String name: sidecarNames(image.getName())) {
+            File f = new File(image.getParentFile(), name);
+            if(f.isFile())
+                return f;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return candidate file names for sidecar of image named <code>imageName</code>.
+     */
+    public static String[] sidecarNames(String imageName) {
+        int idx = imageName.lastIndexOf('.');
+        String base = (idx < 0 ? imageName : imageName.substring(0, idx));
+        return new String[]{ base + ".xmp", base + ".XMP", imageName + ".xmp", imageName + ".XMP" };
+    }
+
+    public static boolean isSidecar(File file) {
+        return file.getName().toLowerCase().endsWith(".xmp");
+    }
+
+    /**
+     * @return true iff an image to which <code>sidecar</code> belongs exists beside it.
+     */
+    public static boolean hasImage(File sidecar) {
+        File dir = sidecar.getParentFile();
+        String name = sidecar.getName();
+        String base = name.substring(0, name.length() - 4);
+
+        //name.ext.xmp
+        if(base.indexOf('.') > 0 && new File(dir, base).isFile())
+            return true;
+
+        //name.xmp
+        String[] names = (dir == null ? null : dir.list());
+        if(names == null)
+            return false;
+
+        for(String n: names) {
+            if(n.length() > base.length() + 1 &&
+               n.startsWith(base) &&
+               n.charAt(base.length()) == '.' &&
+               n.indexOf('.', base.length() + 1) < 0 &&
+               !n.toLowerCase().endsWith(".xmp"))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+
+    private static long findDateMicros(ByteBuffer buf, byte[] prop) {
+        final int start = buf.position();
+        final int lim = buf.limit();
+
+        for(int p = indexOf(buf, prop, start, lim); p >= 0; p = indexOf(buf, prop, p + 1, lim)) {
+            //Property name must not be the tail of a longer name.
+            if(p > start) {
+                int c = buf.get(p - 1) & 0xFF;
+                if(c != '<' && c != ' ' && c != '\t' && c != '\r' && c != '\n')
+                    continue;
+            }
+
+            int q = p + prop.length;
+            while(q < lim && isSpace(buf.get(q)))
+                q++;
+
+            if(q >= lim)
+                return Long.MIN_VALUE;
+
+            int open = buf.get(q) & 0xFF;
+            int close;
+
+            if(open == '=') {
+                q++;
+                while(q < lim && isSpace(buf.get(q)))
+                    q++;
+
+                if(q >= lim)
+                    return Long.MIN_VALUE;
+
+                close = buf.get(q) & 0xFF;
+                if(close != '"' && close != '\'')
+                    continue;
+            }else if(open == '>') {
+                close = '<';
+            }else{
+                continue;
+            }
+
+            int valStart = ++q;
+            while(q < lim && (buf.get(q) & 0xFF) != close && q - valStart < 64)
+                q++;
+
+            if(q >= lim || (buf.get(q) & 0xFF) != close)
+                continue;
+
+            byte[] val = new byte[q - valStart];
+            for(int i = 0; i < val.length; i++)
+                val[i] = buf.get(valStart + i);
+
+            long t = parseIsoDate(new String(val, 0, val.length).trim());
+            if(t != Long.MIN_VALUE)
+                return t;
+        }
+
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Parses the ISO 8601 subset used by XMP:
+     * <code>YYYY[-MM[-DD[Thh:mm[:ss[.s+]][TZD]]]]</code>.
+     * Dates without a time zone are interpreted in the local zone, which
+     * matches the treatment of EXIF dates.
+     *
+     * @return timestamp in micros, or Long.MIN_VALUE if not parseable.
+     */
+    static long parseIsoDate(String s) {
+        int[] f = { 0, 1, 1, 0, 0, 0 };
+        int[] sep = { '-', '-', 'T', ':', ':' };
+        int pos = 0;
+        int n = 0;
+        long micros = 0;
+
+        while(n < f.length) {
+            int digits = (n == 0 ? 4 : 2);
+            if(pos + digits > s.length())
+                return Long.MIN_VALUE;
+
+            int v = 0;
+            for(int i = 0; i < digits; i++) {
+                char c = s.charAt(pos++);
+                if(c < '0' || c > '9')
+                    return Long.MIN_VALUE;
+
+                v = v * 10 + (c - '0');
+            }
+
+            f[n++] = v;
+
+            if(pos >= s.length() || n == f.length || s.charAt(pos) != sep[n - 1])
+                break;
+
+            pos++;
+        }
+
+        //Fractional seconds.
+        if(n == 6 && pos < s.length() && s.charAt(pos) == '.') {
+            pos++;
+            long scale = 100000L;
+            while(pos < s.length() && Character.isDigit(s.charAt(pos))) {
+                micros += (s.charAt(pos++) - '0') * scale;
+                scale /= 10;
+            }
+        }
+
+        //Hours without minutes are not valid.
+        if(n == 4)
+            return Long.MIN_VALUE;
+
+        TimeZone zone = TimeZone.getDefault();
+        if(pos < s.length()) {
+            char c = s.charAt(pos);
+
+            if(c == 'Z') {
+                zone = TimeZone.getTimeZone("UTC");
+            }else if((c == '+' || c == '-') && pos + 6 <= s.length() && s.charAt(pos + 3) == ':') {
+                zone = TimeZone.getTimeZone("GMT" + s.substring(pos, pos + 6));
+            }else{
+                return Long.MIN_VALUE;
+            }
+        }
+
+        if(f[1] < 1 || f[1] > 12 || f[2] < 1 || f[2] > 31 || f[3] > 23 || f[4] > 59 || f[5] > 60)
+            return Long.MIN_VALUE;
+
+        Calendar cal = Calendar.getInstance(zone);
+        cal.clear();
+        cal.set(f[0], f[1] - 1, f[2], f[3], f[4], f[5]);
+        return cal.getTimeInMillis() * 1000L + micros;
+    }
+
+
+    private static int indexOf(ByteBuffer buf, byte[] needle, int from, int lim) {
+        final byte first = needle[0];
+        final int last = lim - needle.length;
+
+        outer:
+        for(int i = from; i <= last; i++) {
+            if(buf.get(i) != first)
+                continue;
+
+            for(int j = 1; j < needle.length; j++) {
+                if(buf.get(i + j) != needle[j])
+                    continue outer;
+            }
+
+            return i;
+        }
+
+        return -1;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] ret = new byte[s.length()];
+        for(int i = 0; i < ret.length; i++)
+            ret[i] = (byte)s.charAt(i);
+
+        return ret;
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.nio.*;
+
+
+/**
+ * Streaming implementation of the 64-bit xxHash. Fast enough to be
+ * computed over file contents as they are copied without slowing the copy.
+ * Not a cryptographic hash.
+ */
+public final class XxHash64 {
+
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+
+    public static long hash(byte[] b, int off, int len) {
+        XxHash64 h = new XxHash64();
+        h.update(b, off, len);
+        return h.digest();
+    }
+
+
+    private final long mSeed;
+    private long mV1;
+    private long mV2;
+    private long mV3;
+    private long mV4;
+    private long mTotal = 0;
+
+    private final ByteBuffer mTail = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+
+    public XxHash64() {
+        this(0L);
+    }
+
+    public XxHash64(long seed) {
+        mSeed = seed;
+        reset();
+    }
+
+
+    public void reset() {
+        mV1 = mSeed + P1 + P2;
+        mV2 = mSeed + P2;
+        mV3 = mSeed;
+        mV4 = mSeed - P1;
+        mTotal = 0;
+        mTail.clear();
+    }
+
+    public void update(byte[] b, int off, int len) {
+        update(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Consumes remaining bytes of buf. Buffer position is not modified.
+     */
+    public void update(ByteBuffer buf) {
+        buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        mTotal += buf.remaining();
+
+        //Complete a partial stripe left by the previous update.
+        if(mTail.position() > 0) {
+            while(mTail.hasRemaining() && buf.hasRemaining())
+                mTail.put(buf.get());
+
+            if(mTail.hasRemaining())
+                return;
+
+            mTail.flip();
+            stripe(mTail);
+            mTail.clear();
+        }
+
+        while(buf.remaining() >= 32)
+            stripe(buf);
+
+        mTail.put(buf);
+    }
+
+    /**
+     * @return hash of all bytes consumed since construction or reset. Does not modify state.
+     */
+    public long digest() {
+        long h;
+
+        if(mTotal >= 32) {
+            h = Long.rotateLeft(mV1, 1) + Long.rotateLeft(mV2, 7) + Long.rotateLeft(mV3, 12) + Long.rotateLeft(mV4, 18);
+            h = merge(h, mV1);
+            h = merge(h, mV2);
+            h = merge(h, mV3);
+            h = merge(h, mV4);
+        }else{
+            h = mSeed + P5;
+        }
+
+        h += mTotal;
+
+        ByteBuffer tail = mTail.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        tail.flip();
+
+        while(tail.remaining() >= 8) {
+            h ^= round(0, tail.getLong());
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+
+        if(tail.remaining() >= 4) {
+            h ^= (tail.getInt() & 0xFFFFFFFFL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+        }
+
+        while(tail.hasRemaining()) {
+            h ^= (tail.get() & 0xFFL) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+
+
+    private void stripe(ByteBuffer buf) {
+        mV1 = round(mV1, buf.getLong());
+        mV2 = round(mV2, buf.getLong());
+        mV3 = round(mV3, buf.getLong());
+        mV4 = round(mV4, buf.getLong());
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long merge(long acc, long v) {
+        acc ^= round(0, v);
+        return acc * P1 + P4;
+    }
+
+}
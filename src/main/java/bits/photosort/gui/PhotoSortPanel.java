@@ -23,7 +23,7 @@ public class PhotoSortPanel extends JPanel {
         JFrame frame = new JFrame();
         PhotoSortPanel panel = new PhotoSortPanel( frame );
         frame.setContentPane( panel );
-        frame.setSize( 650, 350 );
+        frame.setSize( 650, 390 );
         frame.setLocationRelativeTo( null );
         frame.setVisible(true);
         frame.setDefaultCloseOperation( JFrame.EXIT_ON_CLOSE );
@@ -34,6 +34,11 @@ public class PhotoSortPanel extends JPanel {
     private final JComboBox mOpBox;
     private final JTextField mPatternField;
     private final JTextField mUndatedField;
+    private final JTextField mRateField;
+    private final JTextField mFilesField;
+    
+    //Shared with running sorts, so edits to the limit fields take effect mid-run.
+    private final RateLimiter mLimiter = new RateLimiter();
     
     private final JButton mGoButton;
     
@@ -59,7 +64,7 @@ public class PhotoSortPanel extends JPanel {
         add(WordLayout.createWallHook());
         add(WordLayout.createNewLine());
         
-        mOpBox = new JComboBox(new String[]{"COPY", "MOVE"});
+        mOpBox = new JComboBox(TransferMode.values());
         
         mOpBox.setSize(150, h);
         add(WordLayout.createCursorHorizontal(84));
@@ -90,6 +95,50 @@ public class PhotoSortPanel extends JPanel {
         add(WordLayout.createWallHook());
         add(WordLayout.createNewLine());
 
+        label = new JLabel("MB/s:");
+        label.setHorizontalAlignment(SwingConstants.RIGHT);
+        label.setSize(80, h);
+        add(label);
+        
+        mRateField = new JTextField("0");
+        mRateField.setToolTipText("Maximum megabytes per second. 0 is unlimited. Press Enter to apply while sorting.");
+        mRateField.setSize(80, h);
+        add(mRateField);
+        
+        label = new JLabel("Files/s:");
+        label.setHorizontalAlignment(SwingConstants.RIGHT);
+        label.setSize(80, h);
+        add(label);
+        
+        mFilesField = new JTextField("0");
+        mFilesField.setToolTipText("Maximum files per second. 0 is unlimited. Press Enter to apply while sorting.");
+        mFilesField.setSize(80, h);
+        add(mFilesField);
+        add(WordLayout.createNewLine());
+        
+        //Each field applies only its own limit, and only when changed, since setting a
+        //limit releases waiting transfers and refills its burst.
+        mRateField.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                updateRateLimit();
+            }
+        });
+        mRateField.addFocusListener(new FocusAdapter() {
+            public void focusLost(FocusEvent e) {
+                updateRateLimit();
+            }
+        });
+        mFilesField.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                updateFilesLimit();
+            }
+        });
+        mFilesField.addFocusListener(new FocusAdapter() {
+            public void focusLost(FocusEvent e) {
+                updateFilesLimit();
+            }
+        });
+        
         add(WordLayout.createCursorVertical(20));
         
         mGoButton = new JButton("Go");
@@ -106,6 +155,43 @@ public class PhotoSortPanel extends JPanel {
 
 
     
+    /**
+     * Applies limit fields to the rate limiter.
+     */
+    private void updateLimits() {
+        updateRateLimit();
+        updateFilesLimit();
+    }
+    
+    /**
+     * Applies the bytes/s field if it differs from the current limit. Invalid entries are reset to the current limit.
+     */
+    private void updateRateLimit() {
+        try{
+            double mb = Double.parseDouble(mRateField.getText().trim());
+            long bytes = (long)(Math.max(0.0, mb) * (1 << 20));
+            if(bytes != mLimiter.bytesPerSec())
+                mLimiter.setBytesPerSec(bytes);
+        }catch(NumberFormatException ex) {
+            Toolkit.getDefaultToolkit().beep();
+            mRateField.setText(String.valueOf(mLimiter.bytesPerSec() / (double)(1 << 20)));
+        }
+    }
+    
+    /**
+     * Applies the files/s field if it differs from the current limit. Invalid entries are reset to the current limit.
+     */
+    private void updateFilesLimit() {
+        try{
+            double files = Math.max(0.0, Double.parseDouble(mFilesField.getText().trim()));
+            if(files != mLimiter.filesPerSec())
+                mLimiter.setFilesPerSec(files);
+        }catch(NumberFormatException ex) {
+            Toolkit.getDefaultToolkit().beep();
+            mFilesField.setText(String.valueOf(mLimiter.filesPerSec()));
+        }
+    }
+    
     private void process() {
         NameFormatter f1 = null;
         NameFormatter f2 = null;
@@ -130,9 +216,11 @@ public class PhotoSortPanel extends JPanel {
             PhotoSort sorter = new PhotoSort();
             sorter.setSource(mSourceChooser.getFile());
             sorter.setTarget(mTargetChooser.getFile());
-            sorter.enableMove(mOpBox.getSelectedItem().equals("MOVE"));
+            sorter.setTransferMode((TransferMode)mOpBox.getSelectedItem());
             sorter.setNameFormatter(f1);
             sorter.setUndatedNameFormatter(f2);
+            updateLimits();
+            sorter.setRateLimiter(mLimiter);
             
             ProgressDialog d = new ProgressDialog(this, sorter, "Photo Sort Progress");
             d.startTask();
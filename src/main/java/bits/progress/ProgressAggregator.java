@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.progress;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Collects progress updates from any number of threads without locking,
+ * for a display that samples them at its own pace. Progress is kept as an
+ * immutable {@link Snapshot} that each update replaces, so a reader only
+ * ever sees the latest state, and intermediate states are never queued.
+ * Info text is queued, and the queue is trimmed from the front once it
+ * holds more text than the display would keep anyway.
+ * <p>
+ * Throughput and time left are worked out here too, from the snapshots a
+ * display samples, so every display reports the same figures.
+ */
+public class ProgressAggregator {
+
+    private final int mMaxInfoChars;
+    private final AtomicReference<Snapshot> mState = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+    private final ConcurrentLinkedQueue<String> mInfo = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger mInfoChars = new AtomicInteger(0);
+    private final ThroughputMeter mMeter = new ThroughputMeter();
+
+
+    /**
+     * @param maxInfoChars Most info text that a reader will display. Older text beyond this may be discarded.
+     */
+    public ProgressAggregator(int maxInfoChars) {
+        mMaxInfoChars = Math.max(1, maxInfoChars);
+    }
+
+
+    public void setNote(String note) {
+        Snapshot s;
+        do {
+            s = mState.get();
+        } while(!mState.compareAndSet(s, new Snapshot(note, s.mSubnote, s.mMin, s.mMax, s.mProgress, s.mBytes, s.mTotalBytes, s.mFinished)));
+    }
+
+    public void setMinimum(int min) {
+        Snapshot s;
+        do {
+            s = mState.get();
+        } while(!mState.compareAndSet(s, new Snapshot(s.mNote, s.mSubnote, min, s.mMax, s.mProgress, s.mBytes, s.mTotalBytes, s.mFinished)));
+    }
+
+    public void setMaximum(int max) {
+        Snapshot s;
+        do {
+            s = mState.get();
+        } while(!mState.compareAndSet(s, new Snapshot(s.mNote, s.mSubnote, s.mMin, max, s.mProgress, s.mBytes, s.mTotalBytes, s.mFinished)));
+    }
+
+    /**
+     * Sets progress, with a subnote counting progress against the current range.
+     */
+    public void setProgress(int progress) {
+        Snapshot s;
+        do {
+            s = mState.get();
+        } while(!mState.compareAndSet(s, new Snapshot(s.mNote,
+                                                      (progress - s.mMin) + " out of " + (s.mMax - s.mMin),
+                                                      s.mMin,
+                                                      s.mMax,
+                                                      progress,
+                                                      s.mBytes,
+                                                      s.mTotalBytes,
+                                                      s.mFinished)));
+    }
+
+    public void setProgress(int progress, String message) {
+        Snapshot s;
+        do {
+            s = mState.get();
+        } while(!mState.compareAndSet(s, new Snapshot(s.mNote, message, s.mMin, s.mMax, progress, s.mBytes, s.mTotalBytes, s.mFinished)));
+    }
+
+    /**
+     * @param bytes      Bytes done so far.
+     * @param totalBytes Bytes to be done in all, or -1 if unknown.
+     */
+    public void setBytes(long bytes, long totalBytes) {
+        Snapshot s;
+        do {
+            s = mState.get();
+        } while(!mState.compareAndSet(s, new Snapshot(s.mNote, s.mSubnote, s.mMin, s.mMax, s.mProgress, bytes, totalBytes, s.mFinished)));
+    }
+
+    /**
+     * Marks task as finished.
+     *
+     * @param note    New note, or null to leave as is.
+     * @param subnote New subnote, or null to leave as is.
+     */
+    public void finish(String note, String subnote) {
+        Snapshot s;
+        do {
+            s = mState.get();
+        } while(!mState.compareAndSet(s, new Snapshot(note != null ? note : s.mNote,
+                                                      subnote != null ? subnote : s.mSubnote,
+                                                      s.mMin,
+                                                      s.mMax,
+                                                      s.mProgress,
+                                                      s.mBytes,
+                                                      s.mTotalBytes,
+                                                      true)));
+    }
+
+    public void addInfo(String text) {
+        if(text == null || text.length() == 0)
+            return;
+
+        mInfo.offer(text);
+
+        //Keep memory bounded if the reader falls behind.
+        int chars = mInfoChars.addAndGet(text.length());
+        while(chars > mMaxInfoChars * 2) {
+            String old = mInfo.poll();
+            if(old == null)
+                break;
+
+            chars = mInfoChars.addAndGet(-old.length());
+        }
+    }
+
+    /**
+     * @return latest state.
+     */
+    public Snapshot snapshot() {
+        return mState.get();
+    }
+
+    /**
+     * Samples progress into the throughput meter. Meant to be called by the
+     * display each time it draws, from one thread at a time.
+     *
+     * @param s Snapshot about to be drawn.
+     * @return smoothed rates and time left.
+     */
+    public ThroughputMeter.Rate measure(Snapshot s) {
+        mMeter.update(System.nanoTime(), s.mProgress - s.mMin, Math.max(0L, s.mBytes));
+        return mMeter.rate(s.mMax - s.mMin, s.mTotalBytes);
+    }
+
+    /**
+     * Removes all queued info text.
+     *
+     * @return queued text in order, keeping at most the last <code>maxInfoChars</code>,
+     *         or null if there is none.
+     */
+    public String drainInfo() {
+        String first = mInfo.poll();
+        if(first == null)
+            return null;
+
+        int chars = first.length();
+        StringBuilder s = new StringBuilder(first);
+
+        for(String text = mInfo.poll(); text != null; text = mInfo.poll()) {
+            s.append(text);
+            chars += text.length();
+        }
+
+        mInfoChars.addAndGet(-chars);
+
+        if(s.length() > mMaxInfoChars)
+            return s.substring(s.length() - mMaxInfoChars);
+
+        return s.toString();
+    }
+
+
+
+    /**
+     * Progress at one moment. Snapshots are immutable, so a reader can
+     * tell whether anything changed by comparing references.
+     */
+    public static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot("", "", 0, 100, 0, 0L, -1L, false);
+
+        public final String mNote;
+        public final String mSubnote;
+        public final int mMin;
+        public final int mMax;
+        public final int mProgress;
+        public final long mBytes;
+        public final long mTotalBytes;
+        public final boolean mFinished;
+
+        Snapshot(String note, String subnote, int min, int max, int progress, long bytes, long totalBytes, boolean finished) {
+            mNote = note;
+            mSubnote = subnote;
+            mMin = min;
+            mMax = max;
+            mProgress = progress;
+            mBytes = bytes;
+            mTotalBytes = totalBytes;
+            mFinished = finished;
+        }
+
+        /**
+         * @return fraction done from 0 to 1, by bytes where the total is known and by progress otherwise.
+         */
+        public double fraction() {
+            if(mTotalBytes > 0L)
+                return Math.min(1.0, Math.max(0.0, (double)mBytes / mTotalBytes));
+
+            if(mMax <= mMin)
+                return mFinished ? 1.0 : 0.0;
+
+            return Math.min(1.0, Math.max(0.0, (double)(mProgress - mMin) / (mMax - mMin)));
+        }
+    }
+
+}
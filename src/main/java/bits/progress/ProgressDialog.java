@@ -21,12 +21,24 @@ import javax.swing.text.*;
  */
 public class ProgressDialog extends JFrame {
 
+    /**
+     * Interval at which progress is copied to the display. Updates arriving
+     * faster than this are coalesced, so a fast task cannot flood the EDT.
+     */
+    private static final int FRAME_MILLIS = 33;
+    private static final int MAX_INFO_CHARS = 10000;
+    
+    
     private final ProgressTask mTask;
     private final ProgressListener mProgressListener;
     private final Component mParent;
     private final boolean mExitOnClose;
+    private final ProgressAggregator mAggregator = new ProgressAggregator(MAX_INFO_CHARS);
+    private final Timer mTimer;
+    private ProgressAggregator.Snapshot mShown = null;
+    private String mRate = "";
     
-    private boolean mCancelled = false;
+    private volatile boolean mCancelled = false;
     private boolean mCompleted = false;
 
     private JLabel mNote;
@@ -47,6 +59,13 @@ public class ProgressDialog extends JFrame {
         mExitOnClose = exitOnClose;
         mProgressListener = new MyProgressListener();
         initLayout();
+        
+        mTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                publish();
+            }
+        });
+        mTimer.setCoalesce(true);
     }
     
     
@@ -127,6 +146,7 @@ public class ProgressDialog extends JFrame {
     }
 
     public void startTask() {
+        mTimer.start();
         setVisible(true);
         mTask.startTask(mProgressListener);
     }
@@ -141,15 +161,19 @@ public class ProgressDialog extends JFrame {
                 if(mExitOnClose)
                     System.exit(0);
                 
-                setVisible(false);
+                close();
                 return;
             }
             
             mCancelled = true;
         }
         
-        mNote.setText("CANCELLING");
-        mButton.setText("OK");
+        mAggregator.setNote("CANCELLING");
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                mButton.setText("OK");
+            }
+        });
         mTask.cancelTask();
     }
 
@@ -159,7 +183,7 @@ public class ProgressDialog extends JFrame {
                 if(mExitOnClose)
                     System.exit(0);
                 
-                setVisible(false);
+                close();
                 return;
             }
         }
@@ -175,17 +199,86 @@ public class ProgressDialog extends JFrame {
             if(mExitOnClose)
                 System.exit(0);
             
-            setVisible(false);
+            close();
+        }
+    }
+    
+    private void close() {
+        mTimer.stop();
+        setVisible(false);
+    }
+    
+    /**
+     * Copies the latest progress and any queued info to the display. Called on the EDT.
+     */
+    private void publish() {
+        ProgressAggregator.Snapshot s = mAggregator.snapshot();
+        
+        if(s != mShown) {
+            mBar.setMinimum(s.mMin);
+            mBar.setMaximum(s.mMax);
+            mBar.setValue(s.mProgress);
+            mNote.setText(s.mNote);
+            mSubnote.setText(s.mSubnote);
+            
+            if(s.mFinished)
+                mButton.setText("OK");
+            
+            mShown = s;
+        }
+        
+        //Sampled every frame, even without new progress, so the rate decays while the task is stalled.
+        String rate = s.mFinished ? "" : mAggregator.measure(s).toString();
+        if(!rate.equals(mRate)) {
+            mBar.setString(rate);
+            mBar.setStringPainted(rate.length() > 0);
+            mRate = rate;
+        }
+        
+        String info = mAggregator.drainInfo();
+        if(info != null)
+            appendInfo(info);
+    }
+    
+    /**
+     * Appends text to the info pane with at most one removal, which drops
+     * enough old text to leave room for many more appends.
+     */
+    private void appendInfo(String text) {
+        Document doc = mInfo.getDocument();
+        
+        try{
+            int length = doc.getLength();
+            int excess = length + text.length() - MAX_INFO_CHARS;
+            
+            if(excess > 0) {
+                int cut = Math.min(length, excess + MAX_INFO_CHARS / 2);
+                doc.remove(0, cut);
+                length -= cut;
+            }
+            
+            doc.insertString(length, text, null);
+        }catch(BadLocationException ex) {
+            ex.printStackTrace();
+            mInfo.setDocument(new DefaultStyledDocument());
         }
     }
     
     
     
+    /**
+     * Safe to call from any thread. Updates only reach Swing through publish().
+     */
     private class MyProgressListener implements ProgressListener { 
         
-        public void exceptionOccurred(Exception ex) {
-            taskCancelled(mNote.getText() + " - CANCELLED!!!", null);
-            JOptionPane.showMessageDialog(getParent(), ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        public void exceptionOccurred(final Exception ex) {
+            taskCancelled(mAggregator.snapshot().mNote + " - CANCELLED!!!", null);
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    publish();
+                    JOptionPane.showMessageDialog(getParent(), ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            });
         }
         
         public boolean isCancelled() {
@@ -193,55 +286,40 @@ public class ProgressDialog extends JFrame {
         }
         
         public void setMaximum(int max) {
-            mBar.setMaximum(max);
+            mAggregator.setMaximum(max);
         }
         
         public void setMinimum(int min) {
-            mBar.setMinimum(min);
+            mAggregator.setMinimum(min);
         }
         
         public void setProgress(int progress) {
-            mBar.setValue(progress);
-            mSubnote.setText((progress - mBar.getMinimum()) + " out of " + (mBar.getMaximum() - mBar.getMinimum()));
+            mAggregator.setProgress(progress);
         }
 
         public void setProgress(int progress, String message) {
-            mBar.setValue(progress);
-            mSubnote.setText(message);
+            mAggregator.setProgress(progress, message);
+        }
+        
+        public void setBytes(long bytes, long totalBytes) {
+            mAggregator.setBytes(bytes, totalBytes);
         }
 
         public void addInfo(String info) {
-            try{
-                int length = mInfo.getDocument().getLength();
-                
-                if(length > 10000){
-                    length /= 2;
-                    mInfo.getDocument().remove(0, length);
-                }
-                
-                mInfo.getDocument().insertString(length, info, null);
-            }catch(BadLocationException ex) {
-                ex.printStackTrace();
-                mInfo.setDocument(new DefaultStyledDocument());
-            }
+            mAggregator.addInfo(info);
         }
         
         public void setNote(String text) {
-            mNote.setText(text);
+            mAggregator.setNote(text);
         }
     
 
         public void taskFinished(String note, String subnote) {
             synchronized(ProgressDialog.this){
                 mCompleted = true;
-                mButton.setText("OK");
             }
             
-            if(note != null)
-                mNote.setText(note);
-            
-            if(subnote != null)
-                mSubnote.setText(subnote);
+            mAggregator.finish(note, subnote);
         }
 
         public void taskCancelled(String note, String subnote) {
@@ -20,6 +20,16 @@ public interface ProgressListener {
     public void setMaximum(int max);
     public void setProgress(int progress);
     public void setProgress(int progress, String message);
+    
+    /**
+     * Reports progress by bytes, alongside the progress count. Displays
+     * use this for throughput and time left, since files vary in size.
+     * Ignored unless overridden.
+     * 
+     * @param bytes      Bytes done so far.
+     * @param totalBytes Bytes to be done in all, or -1 if unknown.
+     */
+    public default void setBytes(long bytes, long totalBytes) {}
     public void addInfo(String text);
     public void exceptionOccurred(Exception ex);
     
@@ -13,60 +13,124 @@ import java.io.*;
  */
 public class ProgressPrinter extends ProgressAdapter {
 
+    /**
+     * Least time between redraws of the status line on a terminal.
+     */
+    public static final long REDRAW_MILLIS = 250L;
+    
+    /**
+     * Least time between status lines when output is not a terminal, where
+     * a line cannot be redrawn and every update adds to the log.
+     */
+    public static final long LOG_MILLIS = 10000L;
+    
+    private static final int MAX_WIDTH = 79;
+    
+    
     private final PrintStream mOut;
     private final PrintStream mErr;
+    private final boolean mInPlace;
+    private final long mIntervalNanos;
+    private final ProgressAggregator mAggregator = new ProgressAggregator(1);
     
-    private int mMin = 0;
-    private int mMax = 100;
-    
+    private long mLastDraw = 0L;
+    private boolean mDrawn = false;
+    private boolean mShown = false;
+    private int mLineLength = 0;
     private boolean mCancelled = false;
+    private boolean mFinished = false;
     
+    
+    /**
+     * Prints to standard out and err, redrawing progress in place if attached to a terminal.
+     */
     public ProgressPrinter() {
-        mOut = System.out;
-        mErr = System.err;
+        this(System.out, System.err, System.console() != null);
+    }
+    
+    /**
+     * @param inPlace If true, progress is shown on a single line that is redrawn with carriage returns.
+     *                Otherwise, a new progress line is printed now and then.
+     */
+    public ProgressPrinter(PrintStream out, PrintStream err, boolean inPlace) {
+        mOut = out;
+        mErr = err;
+        mInPlace = inPlace;
+        mIntervalNanos = (inPlace ? REDRAW_MILLIS : LOG_MILLIS) * 1000000L;
     }
     
     
-    public void setNote(String note) {
+    public synchronized void setNote(String note) {
+        mAggregator.setNote(note);
+        clearLine();
         mOut.println(note);
     }
     
-    public void setMinimum(int min) {
-        mMin = min;
+    public synchronized void setMinimum(int min) {
+        mAggregator.setMinimum(min);
+    }
+    
+    public synchronized void setMaximum(int max) {
+        mAggregator.setMaximum(max);
     }
     
-    public void setMaximum(int max) {
-        mMax = max;
+    public synchronized void setProgress(int prog) {
+        mAggregator.setProgress(prog);
+        draw(false);
     }
     
-    public void setProgress(int prog) {
-        float per = (float)(prog - mMin) / (float)(mMax - mMin) * 100.0f;
-        mOut.println(per + "%");
+    public synchronized void setProgress(int prog, String message) {
+        mAggregator.setProgress(prog, message);
+        draw(false);
     }
     
-    public void setProgress(int prog, String message) {
-        float per = (float)(prog - mMin) / (float)(mMax - mMin) * 100.0f;
-        mOut.println(per + "%  " + message);
+    public synchronized void setBytes(long bytes, long totalBytes) {
+        mAggregator.setBytes(bytes, totalBytes);
+        draw(false);
     }
     
-    public void addInfo(String text) {
+    public synchronized void addInfo(String text) {
+        clearLine();
         mOut.println(text);
     }
     
-    public void exceptionOccurred(Exception ex) {
+    public synchronized void exceptionOccurred(Exception ex) {
+        clearLine();
         ex.printStackTrace(mErr);
     }
     
-    public void taskFinished(String note, String subnote) {
-        if(note != null)
-            mOut.println(note);
-        
-        if(subnote != null)
-            mOut.println(subnote);
+    public synchronized void taskFinished(String note, String subnote) {
+        mFinished = true;
+        finish(note, subnote);
     }
     
-    public void taskCancelled(String note, String subnote) {
+    public synchronized void taskCancelled(String note, String subnote) {
         mCancelled = true;
+        finish(note, subnote);
+    }
+    
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+    
+    /**
+     * @return true if the task reported finishing, rather than being cancelled or failing.
+     */
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+    
+    
+    
+    private void finish(String note, String subnote) {
+        //Leave the final state on screen.
+        if(mShown) {
+            draw(true);
+            if(mInPlace)
+                mOut.println();
+            
+            mLineLength = 0;
+        }
         
         if(note != null)
             mOut.println(note);
@@ -75,8 +139,67 @@ public class ProgressPrinter extends ProgressAdapter {
             mOut.println(subnote);
     }
     
-    public boolean isCancelled() {
-        return mCancelled;
+    /**
+     * Prints the status line, unless one was printed too recently.
+     * 
+     * @param force Print regardless of when the last line was printed.
+     */
+    private void draw(boolean force) {
+        long now = System.nanoTime();
+        if(!force && mDrawn && now - mLastDraw < mIntervalNanos)
+            return;
+        
+        mLastDraw = now;
+        mDrawn = true;
+        mShown = true;
+        
+        ProgressAggregator.Snapshot s = mAggregator.snapshot();
+        String rate = mAggregator.measure(s).toString();
+        
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("%5.1f%%", s.fraction() * 100.0));
+        if(s.mSubnote != null && s.mSubnote.length() > 0)
+            line.append("  ").append(s.mSubnote);
+        
+        if(rate.length() > 0)
+            line.append("  ").append(rate);
+        
+        if(!mInPlace) {
+            mOut.println(line);
+            return;
+        }
+        
+        if(line.length() > MAX_WIDTH)
+            line.setLength(MAX_WIDTH);
+        
+        int len = line.length();
+        
+        //Pad over whatever remains of a longer previous line.
+        while(line.length() < mLineLength)
+            line.append(' ');
+        
+        mOut.print('\r');
+        mOut.print(line);
+        mOut.flush();
+        mLineLength = len;
+    }
+    
+    /**
+     * Blanks the status line so other output starts at the left margin. It is redrawn on the next update.
+     */
+    private void clearLine() {
+        if(!mInPlace || mLineLength == 0)
+            return;
+        
+        StringBuilder s = new StringBuilder(mLineLength + 2);
+        s.append('\r');
+        for(int i = 0; i < mLineLength; i++)
+            s.append(' ');
+        
+        s.append('\r');
+        mOut.print(s);
+        mLineLength = 0;
+        mDrawn = false;
     }
     
 }
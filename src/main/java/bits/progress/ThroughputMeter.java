@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.progress;
+
+
+/**
+ * Smoothed rate of progress, in files and bytes per second, and the time
+ * left at that rate. Rates are exponentially weighted moving averages
+ * over time rather than over samples, so a display that samples unevenly,
+ * or stops sampling for a while, still gets the same answer. A burst of
+ * small files is averaged against the large files around it rather than
+ * sending the ETA swinging.
+ * <p>
+ * Counts are cumulative. If either goes backwards, a new phase of work is
+ * assumed and the meter starts over.
+ */
+public class ThroughputMeter {
+
+    /**
+     * Time over which rates are averaged, in seconds. A change in rate is
+     * about two-thirds reflected after this long.
+     */
+    public static final double DEFAULT_WINDOW_SECONDS = 10.0;
+
+    /**
+     * Samples closer together than this are ignored, since counts that
+     * arrive a file at a time are too coarse to give a rate over a few milliseconds.
+     */
+    public static final long MIN_INTERVAL_NANOS = 250000000L;
+
+
+    private final double mWindowNanos;
+
+    private long mStartNanos = 0L;
+    private long mLastNanos = 0L;
+    private long mLastFiles = 0L;
+    private long mLastBytes = 0L;
+    private boolean mStarted = false;
+    private double mFileRate = 0.0;
+    private double mByteRate = 0.0;
+    private boolean mHasRate = false;
+
+
+    public ThroughputMeter() {
+        this(DEFAULT_WINDOW_SECONDS);
+    }
+
+    /**
+     * @param windowSeconds Time over which rates are averaged.
+     */
+    public ThroughputMeter(double windowSeconds) {
+        mWindowNanos = Math.max(0.001, windowSeconds) * 1e9;
+    }
+
+
+    /**
+     * Adds a sample.
+     *
+     * @param nanos Time of sample, from System.nanoTime().
+     * @param files Files done so far.
+     * @param bytes Bytes done so far.
+     */
+    public synchronized void update(long nanos, long files, long bytes) {
+        if(!mStarted || files < mLastFiles || bytes < mLastBytes) {
+            reset(nanos, files, bytes);
+            return;
+        }
+
+        long dt = nanos - mLastNanos;
+        if(dt < MIN_INTERVAL_NANOS)
+            return;
+
+        double fileRate = (files - mLastFiles) * 1e9 / dt;
+        double byteRate = (bytes - mLastBytes) * 1e9 / dt;
+
+        if(mHasRate) {
+            //Until a full window has passed, weigh samples by time so far instead, giving the
+            //plain average rate since the start. Otherwise a slow start would linger for a whole window.
+            double alpha = Math.max(1.0 - Math.exp(-dt / mWindowNanos), (double)dt / (nanos - mStartNanos));
+            mFileRate += alpha * (fileRate - mFileRate);
+            mByteRate += alpha * (byteRate - mByteRate);
+        }else{
+            //No history to weigh against, so the first interval stands alone.
+            mFileRate = fileRate;
+            mByteRate = byteRate;
+            mHasRate = true;
+        }
+
+        mLastNanos = nanos;
+        mLastFiles = files;
+        mLastBytes = bytes;
+    }
+
+    public synchronized void reset(long nanos, long files, long bytes) {
+        mStartNanos = nanos;
+        mLastNanos = nanos;
+        mLastFiles = files;
+        mLastBytes = bytes;
+        mStarted = true;
+        mFileRate = 0.0;
+        mByteRate = 0.0;
+        mHasRate = false;
+    }
+
+    /**
+     * @return smoothed files per second, or 0 before a rate is known.
+     */
+    public synchronized double filesPerSec() {
+        return mFileRate;
+    }
+
+    /**
+     * @return smoothed bytes per second, or 0 before a rate is known.
+     */
+    public synchronized double bytesPerSec() {
+        return mByteRate;
+    }
+
+    /**
+     * Estimates time left, by bytes where the total is known and by files otherwise.
+     *
+     * @param totalFiles Files to be done in all, or -1 if unknown.
+     * @param totalBytes Bytes to be done in all, or -1 if unknown.
+     * @return seconds left, or -1 if there is no rate or total to go by.
+     */
+    public synchronized double etaSeconds(long totalFiles, long totalBytes) {
+        if(totalBytes >= 0L && mByteRate > 0.0)
+            return Math.max(0L, totalBytes - mLastBytes) / mByteRate;
+
+        if(totalFiles >= 0L && mFileRate > 0.0)
+            return Math.max(0L, totalFiles - mLastFiles) / mFileRate;
+
+        return -1.0;
+    }
+
+    /**
+     * @return current rates and ETA as a single reading.
+     */
+    public synchronized Rate rate(long totalFiles, long totalBytes) {
+        return new Rate(mFileRate, mByteRate, etaSeconds(totalFiles, totalBytes), mHasRate);
+    }
+
+
+
+    /**
+     * Rates at one moment.
+     */
+    public static final class Rate {
+        public final double mFilesPerSec;
+        public final double mBytesPerSec;
+        public final double mEtaSeconds;
+        public final boolean mKnown;
+
+        Rate(double filesPerSec, double bytesPerSec, double etaSeconds, boolean known) {
+            mFilesPerSec = filesPerSec;
+            mBytesPerSec = bytesPerSec;
+            mEtaSeconds = etaSeconds;
+            mKnown = known;
+        }
+
+        /**
+         * @return e.g. "42.0 files/s  12.5 MB/s  ETA 3:07", or an empty string before a rate is known.
+         */
+        public String toString() {
+            if(!mKnown)
+                return "";
+
+            StringBuilder s = new StringBuilder();
+            s.append(String.format("%.1f files/s", mFilesPerSec));
+            if(mBytesPerSec > 0.0)
+                s.append(String.format("  %.1f MB/s", mBytesPerSec / (1 << 20)));
+
+            s.append("  ETA ").append(formatSeconds(mEtaSeconds));
+            return s.toString();
+        }
+    }
+
+
+    /**
+     * @return seconds as "h:mm:ss" or "m:ss", or "--:--" if negative.
+     */
+    public static String formatSeconds(double seconds) {
+        if(seconds < 0.0 || Double.isNaN(seconds) || Double.isInfinite(seconds))
+            return "--:--";
+
+        long t = (long)Math.ceil(seconds);
+        long h = t / 3600;
+        long m = t / 60 % 60;
+        long s = t % 60;
+
+        if(h > 0)
+            return String.format("%d:%02d:%02d", h, m, s);
+
+        return String.format("%d:%02d", m, s);
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import bits.progress.ProgressAdapter;
+
+
+/**
+ * Fuzzing harness for TimestampReader. Mutates a set of well-formed seed
+ * files and checks that every mutant is handled without an exception and
+ * within a fixed time bound. A share of the mutants are then written out
+ * and sorted by PhotoSort, which must place every one of them, dated or
+ * not, without a failure.
+ * <p>
+ * Usage: <code>ExifFuzz [iterations] [seed] [sortedFiles]</code>. Exits
+ * with a non-zero status if any input throws, exceeds the bound, or is
+ * not sorted.
+ */
+class ExifFuzz {
+
+    private static final long MAX_NANOS_PER_INPUT = 20000000L;
+    private static final int WARMUP = 20000;
+    private static final int DEFAULT_SORTED_FILES = 2000;
+
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        int sortedFiles = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SORTED_FILES;
+        Random rand = new Random(seed);
+        byte[][] seeds = { exifSeed(), makerNoteSeed(), xmpSeed() };
+
+        System.out.println("ExifFuzz: " + iterations + " iterations, seed " + seed);
+
+        //Seeds must parse, or the mutants exercise nothing beyond the first check.
+        for(byte[] s: seeds) {
+            try{
+                if(TimestampReader.readJpegTimestampMicros(ByteBuffer.wrap(s)) == Long.MIN_VALUE &&
+                   TimestampReader.readXmpTimestampMicros(ByteBuffer.wrap(s)) == Long.MIN_VALUE)
+                {
+                    System.out.println("Seed failed to parse.");
+                    System.exit(1);
+                }
+            }catch(Exception ex) {
+                ex.printStackTrace();
+                System.exit(1);
+            }
+        }
+
+        long maxNanos = 0;
+        long totalNanos = 0;
+        int failures = 0;
+
+        for(int i = 0; i < iterations + WARMUP; i++) {
+            byte[] input = mutate(seeds[rand.nextInt(seeds.length)], rand);
+            long t0 = System.nanoTime();
+
+            try{
+                TimestampReader.readJpegTimestampMicros(ByteBuffer.wrap(input));
+                TimestampReader.readXmpTimestampMicros(ByteBuffer.wrap(input));
+            }catch(Throwable ex) {
+                failures++;
+                System.out.println("Input " + i + " threw " + ex);
+                continue;
+            }
+
+            long dt = System.nanoTime() - t0;
+            if(i < WARMUP)
+                continue;
+
+            totalNanos += dt;
+            maxNanos = Math.max(maxNanos, dt);
+        }
+
+        System.out.format("mean %.2f us, max %.2f us, %d failures\n",
+                          totalNanos / 1000.0 / iterations, maxNanos / 1000.0, failures);
+
+        if(failures > 0 || maxNanos > MAX_NANOS_PER_INPUT)
+            System.exit(1);
+
+        try{
+            if(!sortMutants(seeds, rand, sortedFiles))
+                System.exit(1);
+        }catch(Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * Writes mutants to a scratch folder and sorts them into another.
+     *
+     * @return true if every mutant was placed or found to be a duplicate of another, and none failed.
+     */
+    private static boolean sortMutants(byte[][] seeds, Random rand, int count) throws Exception {
+        if(count <= 0)
+            return true;
+
+        File root = File.createTempFile("exiffuzz", "");
+        root.delete();
+        File source = new File(root, "source");
+        File target = new File(root, "target");
+        source.mkdirs();
+
+        try{
+            for(int i = 0; i < count; i++) {
+                OutputStream out = new FileOutputStream(new File(source, String.format("fuzz%06d.jpg", i)));
+                try{
+                    out.write(mutate(seeds[rand.nextInt(seeds.length)], rand));
+                }finally{
+                    out.close();
+                }
+            }
+
+            final List<String> info = Collections.synchronizedList(new ArrayList<String>());
+            final boolean[] finished = { false };
+
+            PhotoSort sorter = new PhotoSort();
+            sorter.setSource(source);
+            sorter.setTarget(target);
+            sorter.setEventLogFile(new File(root, "events.log"));
+            sorter.setMetadataCache(new MetadataCache(MetadataCache.DEFAULT_MAX_ENTRIES, MetadataCache.DEFAULT_MAX_BYTES));
+            sorter.setNameFormatter(NameFormatter.compile(NameFormatter.DEFAULT_FILE_PATTERN));
+            sorter.setUndatedNameFormatter(NameFormatter.compile(NameFormatter.DEFAULT_UNDATED_PATTERN));
+
+            long t0 = System.nanoTime();
+            sorter.startTask(new ProgressAdapter() {
+                public void addInfo(String text) {
+                    if(text.startsWith("Failed"))
+                        info.add(text.trim());
+                }
+
+                public void exceptionOccurred(Exception ex) {
+                    info.add(ex.toString());
+                }
+
+                public void taskFinished(String note, String subnote) {
+                    finished[0] = true;
+                }
+            });
+            sorter.awaitTask(0L);
+            long dt = System.nanoTime() - t0;
+
+            SortMonitor mon = sorter.getMonitor();
+            int placed = countFiles(target);
+            System.out.format("sorted %d mutants in %.2f s: %d placed, %d duplicates, %d failures\n",
+                              count, dt / 1e9, placed, mon.getDuplicates(), mon.getFailures());
+
+            for(String s: info)
+                System.out.println(s);
+
+            return finished[0] && info.isEmpty() && mon.getFailures() == 0 && placed + mon.getDuplicates() == count;
+
+        }finally{
+            delete(root);
+        }
+    }
+
+    private static int countFiles(File dir) {
+        File[] files = dir.listFiles();
+        if(files == null)
+            return 0;
+
+        int ret = 0;
+        for(File f: files)
+            ret += f.isDirectory() ? countFiles(f) : 1;
+
+        return ret;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if(files != null) {
+            for(File f: files)
+                delete(f);
+        }
+
+        file.delete();
+    }
+
+
+    private static byte[] mutate(byte[] seed, Random rand) {
+        byte[] b = seed.clone();
+
+        switch(rand.nextInt(6)) {
+        case 0:
+            //Flip random bytes.
+            for(int n = rand.nextInt(8) + 1; n > 0; n--)
+                b[rand.nextInt(b.length)] = (byte)rand.nextInt(256);
+            break;
+
+        case 1:
+            //Truncate.
+            b = Arrays.copyOf(b, rand.nextInt(b.length));
+            break;
+
+        case 2:
+            //Max out a 16-bit field, such as an entry count or segment length.
+            int p = rand.nextInt(b.length - 1);
+            b[p] = (byte)0xFF;
+            b[p + 1] = (byte)0xFF;
+            break;
+
+        case 3:
+            //Point a 32-bit field somewhere else in the file, possibly at itself.
+            int q = rand.nextInt(b.length - 4);
+            int target = rand.nextBoolean() ? q : rand.nextInt(b.length);
+            ByteBuffer.wrap(b).putInt(q, target);
+            break;
+
+        case 4:
+            //Overwrite a run with 0xFF marker bytes.
+            int r = rand.nextInt(b.length);
+            for(int i = r; i < b.length && i < r + rand.nextInt(32); i++)
+                b[i] = (byte)0xFF;
+            break;
+
+        default:
+            //Random garbage of the same length.
+            rand.nextBytes(b);
+            break;
+        }
+
+        return b;
+    }
+
+
+    private static byte[] exifSeed() {
+        ByteBuffer tiff = ByteBuffer.allocate(64);
+        tiff.put((byte)'M').put((byte)'M').putShort((short)42).putInt(8);
+        //IFD0: one entry pointing to SubIFD at 26.
+        tiff.putShort((short)1).putShort((short)0x8769).putShort((short)4).putInt(1).putInt(26).putInt(0);
+        //SubIFD: DateTimeOriginal at 44.
+        tiff.putShort((short)1).putShort((short)0x9003).putShort((short)2).putInt(20).putInt(44).putInt(0);
+        tiff.put("2015:06:07 08:09:10\0".getBytes());
+        return jpeg(concat("Exif\0\0".getBytes(), tiff.array()));
+    }
+
+    private static byte[] makerNoteSeed() {
+        ByteBuffer tiff = ByteBuffer.allocate(70);
+        tiff.order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte)'I').put((byte)'I').putShort((short)42).putInt(8);
+        tiff.putShort((short)1).putShort((short)0x8769).putShort((short)4).putInt(1).putInt(26).putInt(0);
+        tiff.putShort((short)1).putShort((short)0x927C).putShort((short)7).putInt(1).putInt(44).putInt(0);
+        tiff.putShort((short)1).putShort((short)0xFDE8).putShort((short)4).putInt(2).putInt(62).putInt(0);
+        tiff.putInt(1433664550).putInt(123456);
+        return jpeg(concat("Exif\0\0".getBytes(), tiff.array()));
+    }
+
+    private static byte[] xmpSeed() {
+        String xmp = "<x:xmpmeta><rdf:Description xmp:CreateDate=\"2015-06-07T08:09:10.5+02:00\"/>" +
+                     "<photoshop:DateCreated>2015-06-07</photoshop:DateCreated></x:xmpmeta>";
+        return jpeg(concat(XmpScanner.APP1_HEADER, xmp.getBytes()));
+    }
+
+    private static byte[] jpeg(byte[] app1) {
+        ByteBuffer b = ByteBuffer.allocate(app1.length + 10);
+        b.put((byte)0xFF).put((byte)0xD8);
+        b.put((byte)0xFF).put((byte)0xE1).putShort((short)(app1.length + 2)).put(app1);
+        b.put((byte)0xFF).put((byte)0xDA);
+        return b.array();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] ret = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+        return ret;
+    }
+
+}
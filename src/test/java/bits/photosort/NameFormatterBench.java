@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2015. Philip DeCamp
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.photosort;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.*;
+
+
+/**
+ * Benchmark for NameFormatter. Times compiled formatting against the
+ * formatter as it was before patterns were compiled, kept here as
+ * {@link Baseline}, and checks that both give the same names.
+ * <p>
+ * Usage: <code>NameFormatterBench [iterations] [threads]</code>.
+ */
+class NameFormatterBench {
+
+    private static final String[] PATTERNS = {
+        NameFormatter.DEFAULT_FILE_PATTERN,
+        NameFormatter.DEFAULT_UNDATED_PATTERN,
+        "%p" + File.separator + "%n-%d(HHmmss)-%%.%e"
+    };
+
+    private static final int FILES = 4096;
+    private static final int WARMUP = 200000;
+
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        Random rand = new Random(0);
+        File targetDir = new File("target");
+        File[] files = new File[FILES];
+        long[] micros = new long[FILES];
+
+        for(int i = 0; i < FILES; i++) {
+            String ext = (i % 17 == 0 ? "" : i % 5 == 0 ? ".CR2" : ".jpg");
+            files[i] = new File("card" + (i % 7) + File.separator + "DCIM", "IMG_" + i + ext);
+            micros[i] = (1400000000000L + (rand.nextLong() & 0xFFFFFFFFFL)) * 1000L;
+        }
+
+        System.out.println("NameFormatterBench: " + iterations + " names per run, " + threads + " threads");
+        System.out.format("%-40s %12s %12s %12s\n", "pattern", "baseline ns", "compiled ns", "speedup");
+
+        for(String pattern: PATTERNS) {
+            NameFormatter compiled = NameFormatter.compile(pattern);
+            Baseline baseline = Baseline.compile(pattern);
+
+            for(int i = 0; i < FILES; i++) {
+                String a = baseline.format(files[i], targetDir, micros[i]);
+                String b = compiled.format(files[i], targetDir, micros[i]);
+                if(!a.equals(b)) {
+                    System.out.println("Mismatch for " + files[i] + ": \"" + a + "\" != \"" + b + "\"");
+                    System.exit(1);
+                }
+            }
+
+            run(baseline, null, files, micros, WARMUP);
+            run(null, compiled, files, micros, WARMUP);
+            double baselineNanos = run(baseline, null, files, micros, iterations);
+            double compiledNanos = run(null, compiled, files, micros, iterations);
+
+            System.out.format("%-40s %12.1f %12.1f %11.1fx\n", pattern, baselineNanos, compiledNanos, baselineNanos / compiledNanos);
+        }
+
+        if(threads > 1) {
+            NameFormatter compiled = NameFormatter.compile(NameFormatter.DEFAULT_FILE_PATTERN);
+            double nanos = runThreads(compiled, files, micros, iterations, threads);
+            System.out.format("%d threads sharing one compiled formatter: %.1f ns per name overall\n", threads, nanos);
+        }
+    }
+
+
+    /**
+     * @return nanoseconds per name.
+     */
+    private static double run(Baseline baseline, NameFormatter compiled, File[] files, long[] micros, int iterations) {
+        File targetDir = new File("target");
+        long sink = 0;
+        long t0 = System.nanoTime();
+
+        for(int i = 0; i < iterations; i++) {
+            int j = i & (FILES - 1);
+            String s = (baseline != null ? baseline.format(files[j], targetDir, micros[j]) : compiled.format(files[j], targetDir, micros[j]));
+            sink += s.length();
+        }
+
+        long t1 = System.nanoTime();
+        if(sink == 42)
+            System.out.print("");
+
+        return (double)(t1 - t0) / iterations;
+    }
+
+    /**
+     * @return wall time per name, over all threads.
+     */
+    private static double runThreads(final NameFormatter compiled,
+                                     final File[] files,
+                                     final long[] micros,
+                                     final int iterations,
+                                     int threads)
+        throws InterruptedException
+    {
+        Thread[] workers = new Thread[threads];
+        long t0 = System.nanoTime();
+
+        for(int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    NameFormatterBench.run(null, compiled, files, micros, iterations);
+                }
+            };
+            workers[i].start();
+        }
+
+        for(Thread t: workers)
+            t.join();
+
+        return (double)(System.nanoTime() - t0) / ((long)iterations * threads);
+    }
+
+
+    /**
+     * NameFormatter and TokenFormatter as they were before patterns were
+     * compiled: a list of tokens, each formatted by its own call for every
+     * name, with a new SimpleDateFormat for every date token.
+     */
+    private static final class Baseline {
+
+        static Baseline compile(String pattern) throws IllegalArgumentException {
+            Pattern argPat = Pattern.compile("^\\(([^\\)]*+)\\)");
+            Matcher m = Pattern.compile("[^\\%]+|\\%").matcher(pattern);
+
+            List<String> tokens = new ArrayList<String>();
+            List<Token> formatters = new ArrayList<Token>();
+            Token[] arr = Token.values();
+
+            while(m.find()) {
+                if(m.group(0).startsWith("%")) {
+                    int off = m.end();
+                    int len = pattern.length();
+
+                    if(len - off < 1)
+                        throw new IllegalArgumentException("Invalid pattern: ends with %");
+
+                    String token = "%" + pattern.charAt(off++);
+
+                    for(Token ff: arr) {
+                        if(!ff.mToken.equals(token))
+                            continue;
+
+                        if(ff.mNeedsArg) {
+                            if(len - off < 2)
+                                throw new IllegalArgumentException("Invalid pattern: missing argument: " + ff.mToken + ")");
+
+                            Matcher mm = argPat.matcher(pattern.substring(off));
+                            if(!mm.find())
+                                throw new IllegalArgumentException("Invalid pattern: missing argument: " + ff.mToken + ")");
+
+                            tokens.add(mm.group(1));
+                            formatters.add(ff);
+                            off += mm.end();
+
+                        }else{
+                            tokens.add(null);
+                            formatters.add(ff);
+                        }
+
+                        break;
+                    }
+
+                    m.region(off, len);
+
+                }else{
+                    tokens.add(m.group(0));
+                    formatters.add(null);
+                }
+            }
+
+            return new Baseline(tokens, formatters);
+        }
+
+
+        private final List<String> mTokens;
+        private final List<Token> mFormatters;
+
+
+        Baseline(List<String> tokens, List<Token> formatters) {
+            mTokens = tokens;
+            mFormatters = formatters;
+        }
+
+
+        String format(File source, File targetDir, long micros) {
+            StringBuilder sb = new StringBuilder();
+
+            for(int i = 0; i < mTokens.size(); i++) {
+                Token formatter = mFormatters.get(i);
+                String token = mTokens.get(i);
+
+                if(formatter == null) {
+                    sb.append(token);
+                }else{
+                    sb.append(formatter.format(source, token, targetDir, micros));
+                }
+            }
+
+            return sb.toString();
+        }
+    }
+
+
+    private enum Token {
+
+        FILE_NAME    ("%n", false) {
+            String format(File source, String pattern, File targetDir, long micros) {
+                String name = source.getName();
+                int idx = name.lastIndexOf('.');
+                if(idx < 0)
+                    return name;
+
+                return name.substring(0, idx);
+            }
+        },
+
+        FILE_EXT     ("%e", false) {
+            String format(File source, String pattern, File targetDir, long micros) {
+                String name = source.getName();
+                int idx = name.lastIndexOf('.');
+                if(idx < 0)
+                    return "";
+
+                return name.substring(idx + 1);
+            }
+        },
+
+        DATE         ("%d", true) {
+            String format(File source, String pattern, File targetDir, long micros) {
+                DateFormat f = new SimpleDateFormat(pattern);
+                return f.format(new Date(micros / 1000L));
+            }
+        },
+
+        PARENT       ("%p", false) {
+            String format(File source, String pattern, File targetDir, long micros) {
+                File parent = source.getParentFile();
+                if(parent == null)
+                    return "";
+
+                return parent.getName();
+            }
+        },
+
+        ESCAPE       ("%%", false) {
+            String format(File source, String pattern, File targetDir, long micros) {
+                return "%";
+            }
+        };
+
+
+        final String mToken;
+        final boolean mNeedsArg;
+
+        Token(String token, boolean needsArg) {
+            mToken = token;
+            mNeedsArg = needsArg;
+        }
+
+        abstract String format(File input, String pattern, File targetDir, long micros);
+    }
+
+}